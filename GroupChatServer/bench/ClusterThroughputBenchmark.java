@@ -0,0 +1,112 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@summary Measures broadcast throughput through one server, or through a cluster of them.}
+ * Connects receiving and sending clients, spread evenly across every server given, then has each sender
+ * send its messages as fast as it can and times how long it takes every receiver to receive every
+ * message, wherever it was sent from. Reports deliveries, i.e. messages received by a client, per
+ * second, so runs against one node and against several with the same clients compare directly.
+ * Servers should be started with a --queue deep enough to hold a whole run, so nothing is dropped.
+ * <p>
+ * Build and run from this directory with, for example:
+ * <pre>
+ *   javac -sourcepath .:../common ClusterThroughputBenchmark.java
+ *   java ClusterThroughputBenchmark localhost:5601,localhost:5602,localhost:5603 [receivers] [senders] [messages]
+ * </pre> */
+public class ClusterThroughputBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("\033[1;31m[Error]:\033[0m Invalid arg count.\n\t\033[1;34m[Usage]:\033[0m " +
+                    "java ClusterThroughputBenchmark <host>:<port>[,...] [receivers] [senders] [messages]");
+            System.exit(1);
+        }
+        String[] servers = args[0].split(",");
+        int receivers = (args.length > 1 ? Integer.parseInt(args[1]) : 30);
+        int senders = (args.length > 2 ? Integer.parseInt(args[2]) : 3);
+        int messages = (args.length > 3 ? Integer.parseInt(args[3]) : 20_000);
+        long expected = (long) senders * messages;
+
+        CountDownLatch done = new CountDownLatch(receivers);
+        AtomicLong delivered = new AtomicLong();
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < receivers; ++i) {
+            Socket socket = connect(servers[i % servers.length], "recv" + i);
+            sockets.add(socket);
+            FrameReader in = new FrameReader(socket.getInputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(() -> {
+                long received = 0;
+                try {
+                    while (received < expected && in.nextLine()) {
+                        if (startsWithMsg(in))
+                            ++received;
+                    }
+                } catch (IOException e) {
+                    System.err.println("\033[1;31m[Error]:\033[0m " + e.getMessage());
+                }
+                delivered.addAndGet(received);
+                done.countDown();
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+        List<Socket> senderSockets = new ArrayList<Socket>();
+        for (int i = 0; i < senders; ++i) {
+            senderSockets.add(connect(servers[i % servers.length], "send" + i));
+        }
+        // Let every node hear of every client before anything is sent.
+        Thread.sleep(1000);
+
+        long start = System.nanoTime();
+        for (Socket socket : senderSockets) {
+            Thread sender = new Thread(() -> {
+                try {
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+                    byte[] body = "benchmark message with a little text in it\n".getBytes(StandardCharsets.UTF_8);
+                    for (int m = 0; m < messages; ++m) {
+                        out.write(body);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("\033[1;31m[Error]:\033[0m " + e.getMessage());
+                }
+            });
+            sender.setDaemon(true);
+            sender.start();
+        }
+        boolean finished = done.await(5, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d node(s), %d receivers, %d senders x %d messages%n", servers.length, receivers,
+                senders, messages);
+        System.out.printf("%d of %d deliveries in %.2f s: %.0f deliveries/s, %.0f messages/s%s%n",
+                delivered.get(), expected * receivers, seconds, delivered.get() / seconds,
+                expected / seconds, (finished ? "" : " (timed out)"));
+        System.exit(0);
+    }
+
+    // Connects a text protocol client and reads past its handshake.
+    private static Socket connect(String server, String name) throws IOException {
+        int colon = server.lastIndexOf(':');
+        Socket socket = new Socket(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+        socket.getOutputStream().write(("[UNAME]\t" + name + "\n").getBytes(StandardCharsets.UTF_8));
+        return socket;
+    }
+
+    private static boolean startsWithMsg(FrameReader in) {
+        byte[] data = in.array();
+        int off = in.sliceStart();
+        return in.sliceLength() > 5 && data[off] == '[' && data[off + 1] == 'M' && data[off + 2] == 'S'
+                && data[off + 3] == 'G' && data[off + 4] == ']';
+    }
+}
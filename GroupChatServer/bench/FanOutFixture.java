@@ -0,0 +1,46 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@summary One broadcast fanned out to N clients whose sockets are in-memory sinks.}
+ * {@link #broadcast} encodes a [MSG] once into a pooled {@link SharedLine}, then, as a shard does for
+ * every recipient, offers it to the recipient's {@link OutboundQueue}, which takes a reference of its own
+ * and applies the server's default overflow policy, before dropping the dispatcher's own reference. Each
+ * recipient's writer then drains its queue, counting the bytes it would have written, and releases its
+ * reference, which returns the line to the pool. No sockets are involved, so this is the cost of the
+ * relay alone. Run by benchmarks.FanOutBenchmark. */
+public final class FanOutFixture {
+    private static final byte[] USER = "alice".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BODY = "hello from the fan-out benchmark".getBytes(StandardCharsets.UTF_8);
+
+    private final SharedLine.Pool pool = new SharedLine.Pool(false, StandardCharsets.UTF_8);
+    private final OutboundQueue[] sinks;
+
+    public FanOutFixture(int recipients) {
+        ServerOptions defaults = new ServerOptions();
+        sinks = new OutboundQueue[recipients];
+        for (int i = 0; i < recipients; ++i) {
+            sinks[i] = new OutboundQueue(defaults.queueCapacity, defaults.overflowPolicy);
+        }
+    }
+
+    // Returns the bytes the recipients would have been written.
+    public long broadcast() {
+        SharedLine line = pool.encodeChatLine(USER, BODY, 0, BODY.length);
+        for (OutboundQueue sink : sinks) {
+            sink.offer(line);
+        }
+        line.release();
+        long written = 0;
+        for (OutboundQueue sink : sinks) {
+            SharedLine queued;
+            while ((queued = sink.poll()) != null) {
+                written += queued.length();
+                queued.release();
+            }
+        }
+        return written;
+    }
+}
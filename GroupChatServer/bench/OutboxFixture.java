@@ -0,0 +1,46 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@summary Messages through the server's outbox: enqueued by client threads and drained by the dispatcher.}
+ * Drives the server's own {@link Outbox}, which producers add to, counting each message into the outbox
+ * depth metric, and which the dispatcher polls in batches of up to {@link Outbox#BATCH_SIZE}, each in an
+ * array of its own for the shards. The dispatcher's parking is left out, as it only happens once the
+ * outbox is empty. Run by benchmarks.OutboxBenchmark.
+ * <p>
+ * {@link #enqueue} waits while the outbox holds more than {@link #BACKLOG} messages, as a dispatcher that
+ * can't keep up with its producers would otherwise leave the queue to grow without bound; the server's
+ * readers likewise pause while it holds more than --outbox-max-bytes. */
+public final class OutboxFixture {
+    public static final int BATCH_SIZE = Outbox.BATCH_SIZE;
+    static final long BACKLOG = 64 * BATCH_SIZE;
+
+    // Stands in for a ServerMessage; the outbox neither knows nor cares what it holds.
+    private static final Object MESSAGE = new Object();
+
+    // Each message counted as one byte, so the bytes queued are the messages queued.
+    private final Outbox<Object> outbox = new Outbox<Object>(Object[]::new, msg -> 1, new LongAdder());
+
+    public void enqueue() {
+        while (outbox.bytes() > BACKLOG) {
+            Thread.onSpinWait();
+        }
+        outbox.add(MESSAGE);
+    }
+
+    // One pass of the dispatcher. Returns the number of messages drained.
+    public int dispatch() {
+        Object[] batch = outbox.poll();
+        return (batch != null ? batch.length : 0);
+    }
+
+    // A full batch enqueued and then dispatched on the one thread.
+    public int batch() {
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            outbox.add(MESSAGE);
+        }
+        return dispatch();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@summary Reading a client's message and building the [MSG] the server relays, as a client handle does.}
+ * {@link #relayLine} and {@link #relayFrame} frame one message in place with {@link FrameReader}, from a
+ * stream that never runs dry, and encode it into a pooled {@link SharedLine}, for a text client and a
+ * binary one respectively. {@link #formatLine} and {@link #formatFrame} build a line from its fields, as
+ * every other broadcast, such as [NC], is built. Run by benchmarks.ProtocolBenchmark. */
+public final class ProtocolFixture {
+    private static final byte[] USER = "alice".getBytes(StandardCharsets.UTF_8);
+
+    private final SharedLine.Pool pool = new SharedLine.Pool(false, StandardCharsets.UTF_8);
+    private final FrameReader lines, frames;
+    private final String[] fields;
+
+    // length is that of the message body, in bytes.
+    public ProtocolFixture(int length) {
+        String body = "x".repeat(length);
+        lines = new FrameReader(new Repeating((body + "\n").getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        ByteBuffer frame = FrameCodec.encode("[CHAT]", body);
+        byte[] frameBytes = new byte[frame.limit()];
+        frame.get(frameBytes);
+        frames = new FrameReader(new Repeating(frameBytes), StandardCharsets.UTF_8);
+        fields = new String[] { "[MSG]", "alice", body };
+    }
+
+    public int relayLine() throws IOException {
+        lines.nextLine();
+        SharedLine line = pool.encodeChatLine(USER, lines.array(), lines.sliceStart(), lines.sliceLength());
+        int length = line.length();
+        line.release();
+        return length;
+    }
+
+    public int relayFrame() throws IOException {
+        frames.nextFrame();
+        // The payload of a [CHAT] frame is its one field, preceded by the field's length.
+        SharedLine frame = pool.encodeChatFrame(USER, frames.array(), frames.sliceStart() + 4, frames.sliceLength() - 4);
+        int length = frame.length();
+        frame.release();
+        return length;
+    }
+
+    public int formatLine() {
+        String contents = fields[0];
+        for (int i = 1; i < fields.length; ++i) {
+            contents = contents.concat("\t").concat(GroupChatServer.sanitize(fields[i]));
+        }
+        SharedLine line = pool.encode(contents);
+        int length = line.length();
+        line.release();
+        return length;
+    }
+
+    public int formatFrame() {
+        SharedLine frame = pool.encodeFrame(fields);
+        int length = frame.length();
+        frame.release();
+        return length;
+    }
+
+    // The same bytes over and over, forever, without allocating.
+    private static final class Repeating extends InputStream {
+        private final byte[] data;
+        private int pos = 0;
+
+        Repeating(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[pos] & 0xff;
+            pos = (pos + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos = (pos + n) % data.length;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@summary Measures the heap allocated per relayed chat message, before and after the byte-level relay path.}
+ * Each run reads a stream of chat lines as a text client would send them and builds, for each, the
+ * [MSG] line and the [MSG] frame the dispatcher would broadcast: once the way the server used to
+ * (BufferedReader, String.replaceAll, String.format, getBytes and FrameCodec.encode) and once the way it
+ * does now ({@link FrameReader#nextLine} and {@link SharedLine.Pool#encodeChatLine}/{@code encodeChatFrame}).
+ * Allocation is read from the JVM's per-thread allocation counter, so the numbers are bytes actually
+ * allocated rather than an estimate, and the input stream's own buffer is allocated before counting.
+ * <p>
+ * Build and run from this directory with:
+ * <pre>
+ *   javac -sourcepath .:../server:../common RelayAllocationBenchmark.java
+ *   java RelayAllocationBenchmark [messages]
+ * </pre> */
+public class RelayAllocationBenchmark {
+    private static final byte[] USER = "alice".getBytes(StandardCharsets.UTF_8);
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int count = (args.length > 0 ? Integer.parseInt(args[0]) : 200_000);
+        byte[] input = chatLines(count);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("\033[1;31m[Error]:\033[0m Thread allocation counters are not supported by this JVM.");
+            System.exit(1);
+        }
+        SharedLine.Pool pool = new SharedLine.Pool(false, StandardCharsets.UTF_8);
+        long sink = 0;
+        // The last round of each is the one reported; the earlier ones warm up the JIT and the pool.
+        long legacyBytes = 0, relayBytes = 0, legacyNanos = 0, relayNanos = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            InputStream in = new ByteArrayInputStream(input);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            long before = threads.getCurrentThreadAllocatedBytes(), start = System.nanoTime();
+            sink += legacy(reader);
+            legacyNanos = System.nanoTime() - start;
+            legacyBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            FrameReader frameReader = new FrameReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8);
+            before = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            sink += relay(frameReader, pool);
+            relayNanos = System.nanoTime() - start;
+            relayBytes = threads.getCurrentThreadAllocatedBytes() - before;
+        }
+        System.out.println("Relayed " + count + " messages per run (checksum " + sink + ").");
+        report("String path", legacyBytes, legacyNanos, count);
+        report("Byte path", relayBytes, relayNanos, count);
+    }
+
+    // Lines of varying length, as a text client sends them, some with tabs for the relay to replace.
+    private static byte[] chatLines(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            sb.append("message ").append(i).append(i % 7 == 0 ? "\twith a tab" : " from the benchmark")
+                    .append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The relay as it was: decode the line, sanitize and format it, then encode it for each protocol.
+    private static long legacy(BufferedReader reader) throws IOException {
+        long sum = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String body = line.replaceAll("\t", " ").replaceAll("\n", " ");
+            String contents = String.format("%s\t%s\t%s", "[MSG]", "alice", body);
+            byte[] text = contents.concat("\n").getBytes(StandardCharsets.UTF_8);
+            String[] fields = contents.split("\t");
+            ByteBuffer frame = FrameCodec.encode(fields);
+            sum += text.length + frame.remaining();
+        }
+        return sum;
+    }
+
+    // The relay as it is: find the line in place and build both encodings from its bytes, into pooled lines.
+    private static long relay(FrameReader reader, SharedLine.Pool pool) throws IOException {
+        long sum = 0;
+        while (reader.nextLine()) {
+            SharedLine text = pool.encodeChatLine(USER, reader.array(), reader.sliceStart(), reader.sliceLength());
+            SharedLine frame = pool.encodeChatFrame(USER, text,
+                    SharedLine.Pool.chatLineBodyOffset(USER.length), reader.sliceLength());
+            sum += text.length() + frame.length();
+            text.release();
+            frame.release();
+        }
+        return sum;
+    }
+
+    private static void report(String name, long bytes, long nanos, int count) {
+        System.out.printf("%-12s %10.1f bytes/msg %12.0f msgs/s%n", name, (double) bytes / count,
+                count / (nanos / 1e9));
+    }
+}
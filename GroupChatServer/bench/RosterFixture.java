@@ -0,0 +1,32 @@
+/**
+ * @author Burton O Sumner
+ * */
+
+/**
+ * {@summary Encoding the roster into the [ACK_CONN] every newly connected client is sent.}
+ * {@link #encodeAck} is the acknowledgement as {@link Roster#encode} builds it; {@link #joinAndEncode}
+ * also registers the newcomer beforehand and removes it afterwards, as the server does for every
+ * connection. Run by benchmarks.RosterBenchmark. */
+public final class RosterFixture {
+    private final Roster<String> roster = new Roster<String>(String[]::new);
+
+    // A roster of users already connected.
+    public RosterFixture(int users) {
+        for (int i = 0; i < users; ++i) {
+            String name = "user" + i;
+            roster.register(name, name);
+        }
+    }
+
+    public String encodeAck() {
+        return roster.encode("[ACK_CONN]\tnewcomer", '\t');
+    }
+
+    public String joinAndEncode() {
+        int suffix = roster.register("newcomer", "newcomer");
+        String name = (suffix > 0 ? "newcomer" + suffix : "newcomer");
+        String ack = roster.encode("[ACK_CONN]\t" + name, '\t');
+        roster.remove(name, "newcomer", "newcomer", suffix);
+        return ack;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * {@summary Entry point of the benchmarks jar: runs JMH as its own launcher would, with allocation tracking on.}
+ * Takes every JMH command line option, and always adds the GC profiler, so that each benchmark reports
+ * the bytes it allocates per operation (<code>gc.alloc.rate.norm</code>) next to its throughput. Results
+ * are also written to <code>jmh-result.json</code>, unless <code>-rff</code> says otherwise, for comparing
+ * a change against the results of the run before it, such as with
+ * <a href="https://jmh.morethan.io">JMH Visualizer</a>.
+ * <pre>
+ *   java -jar target/bench/benchmarks.jar [regexp] [JMH options]
+ * </pre> */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions cli;
+        try {
+            cli = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("\033[1;31m[Error]:\033[0m " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+            // Nothing to run; JMH's own launcher prints what was asked for.
+            try {
+                org.openjdk.jmh.Main.main(args);
+            } catch (Exception e) {
+                throw new RunnerException(e);
+            }
+            return;
+        }
+        ChainedOptionsBuilder opts = new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class);
+        if (!cli.getResult().hasValue()) {
+            opts.result("jmh-result.json");
+            if (!cli.getResultFormat().hasValue())
+                opts.resultFormat(ResultFormatType.JSON);
+        }
+        new Runner(opts.build()).run();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@summary One broadcast fanned out to in-memory sinks, per broadcast; see FanOutFixture.} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final MethodHandle NEW = Fixtures.constructor("FanOutFixture", int.class);
+    private static final MethodHandle BROADCAST = Fixtures.method("FanOutFixture", "broadcast", long.class);
+
+    @Param({ "10", "100", "1000" })
+    int recipients;
+
+    private Object fixture;
+
+    @Setup
+    public void setup() throws Throwable {
+        fixture = NEW.invoke(recipients);
+    }
+
+    @Benchmark
+    public long broadcast() throws Throwable {
+        return (long) BROADCAST.invokeExact(fixture);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * {@summary Handles on the fixtures, in the default package, that the benchmarks in this package run.}
+ * JMH refuses benchmark classes in the default package, and no class in a named package can name one in
+ * the default package, where the server's classes are. So each benchmark's code lives in a public fixture
+ * class there, and the benchmark calls it through {@link MethodHandle}s held in static final fields,
+ * which the JIT treats as constants and inlines like any direct call. Every handle takes and returns the
+ * fixture as an Object. */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    // The public constructor of the named fixture that takes params.
+    static MethodHandle constructor(String fixture, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .findConstructor(Class.forName(fixture), MethodType.methodType(void.class, params));
+            return handle.asType(MethodType.methodType(Object.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The named public method of the named fixture, which takes no arguments and returns returnType.
+    static MethodHandle method(String fixture, String name, Class<?> returnType) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                    .findVirtual(Class.forName(fixture), name, MethodType.methodType(returnType));
+            return handle.asType(MethodType.methodType(returnType, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
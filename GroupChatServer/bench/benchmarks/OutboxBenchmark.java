@@ -0,0 +1,81 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@summary Enqueueing into and draining the outbox; see OutboxFixture.}
+ * {@link #batch} fills and drains one batch on a single thread, scored per message. The {@code contended}
+ * group has three producers enqueueing while a dispatcher drains: its {@code enqueue} score is messages
+ * through the outbox, while {@code dispatch} counts passes, including those that found it empty. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboxBenchmark {
+    // Outbox.BATCH_SIZE, which as a class in the default package can't be named here.
+    static final int BATCH_SIZE = 256;
+
+    private static final MethodHandle NEW = Fixtures.constructor("OutboxFixture");
+    private static final MethodHandle ENQUEUE = Fixtures.method("OutboxFixture", "enqueue", void.class);
+    private static final MethodHandle DISPATCH = Fixtures.method("OutboxFixture", "dispatch", int.class);
+    private static final MethodHandle BATCH = Fixtures.method("OutboxFixture", "batch", int.class);
+
+    @State(Scope.Thread)
+    public static class Single {
+        Object fixture;
+
+        @Setup
+        public void setup() throws Throwable {
+            fixture = NEW.invoke();
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        Object fixture;
+
+        @Setup
+        public void setup() throws Throwable {
+            fixture = NEW.invoke();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int batch(Single state) throws Throwable {
+        return (int) BATCH.invokeExact(state.fixture);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void enqueue(Shared state) throws Throwable {
+        ENQUEUE.invokeExact(state.fixture);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public int dispatch(Shared state) throws Throwable {
+        return (int) DISPATCH.invokeExact(state.fixture);
+    }
+}
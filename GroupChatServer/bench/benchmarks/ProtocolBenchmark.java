@@ -0,0 +1,66 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@summary Parsing a client's message and formatting what is relayed; see ProtocolFixture.} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final MethodHandle NEW = Fixtures.constructor("ProtocolFixture", int.class);
+    private static final MethodHandle RELAY_LINE = Fixtures.method("ProtocolFixture", "relayLine", int.class);
+    private static final MethodHandle RELAY_FRAME = Fixtures.method("ProtocolFixture", "relayFrame", int.class);
+    private static final MethodHandle FORMAT_LINE = Fixtures.method("ProtocolFixture", "formatLine", int.class);
+    private static final MethodHandle FORMAT_FRAME = Fixtures.method("ProtocolFixture", "formatFrame", int.class);
+
+    // Length of the message body, in bytes.
+    @Param({ "16", "256" })
+    int length;
+
+    private Object fixture;
+
+    @Setup
+    public void setup() throws Throwable {
+        fixture = NEW.invoke(length);
+    }
+
+    @Benchmark
+    public int relayLine() throws Throwable {
+        return (int) RELAY_LINE.invokeExact(fixture);
+    }
+
+    @Benchmark
+    public int relayFrame() throws Throwable {
+        return (int) RELAY_FRAME.invokeExact(fixture);
+    }
+
+    @Benchmark
+    public int formatLine() throws Throwable {
+        return (int) FORMAT_LINE.invokeExact(fixture);
+    }
+
+    @Benchmark
+    public int formatFrame() throws Throwable {
+        return (int) FORMAT_FRAME.invokeExact(fixture);
+    }
+}
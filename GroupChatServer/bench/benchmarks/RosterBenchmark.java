@@ -0,0 +1,53 @@
+/**
+ * @author Burton O Sumner
+ * */
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@summary Encoding the roster into [ACK_CONN], for rosters of increasing size; see RosterFixture.} */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RosterBenchmark {
+    private static final MethodHandle NEW = Fixtures.constructor("RosterFixture", int.class);
+    private static final MethodHandle ENCODE_ACK = Fixtures.method("RosterFixture", "encodeAck", String.class);
+    private static final MethodHandle JOIN_AND_ENCODE = Fixtures.method("RosterFixture", "joinAndEncode", String.class);
+
+    @Param({ "10", "1000", "10000" })
+    int users;
+
+    private Object fixture;
+
+    @Setup
+    public void setup() throws Throwable {
+        fixture = NEW.invoke(users);
+    }
+
+    @Benchmark
+    public String encodeAck() throws Throwable {
+        return (String) ENCODE_ACK.invokeExact(fixture);
+    }
+
+    @Benchmark
+    public String joinAndEncode() throws Throwable {
+        return (String) JOIN_AND_ENCODE.invokeExact(fixture);
+    }
+}
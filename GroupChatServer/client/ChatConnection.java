@@ -0,0 +1,507 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@summary A client's connection to a group chat server, without any user interface.}
+ * Does the [UNAME]/[ACK_CONN] handshake, asking only for the options it was given, and falling back to the
+ * original bare handshake should the server not answer one with options. Then accepts the server's offer
+ * of the binary protocol when it speaks the version offered, along with compression of large frames if the
+ * server agrees to it, which {@link FrameReader} undoes, and reads everything the server sends on a thread
+ * of its own, handing each event to a {@link Listener} in the order it arrived, and answering the server's
+ * heartbeat pings itself. When the connection drops, the listener decides whether to reconnect, in which
+ * case the session is resumed if the server still holds it, so whatever was missed is sent and nobody sees
+ * us leave and rejoin, and otherwise a new one is started.
+ * <p>
+ * Messages can be sent from any thread, in whichever protocol is in use. {@link GroupChatClient} is built
+ * on this, as is the {@link LoadGenerator}. */
+final class ChatConnection {
+    // Delay before trying to reconnect after losing the connection, doubling on each failed attempt up
+    // to the maximum.
+    static final long RECONNECT_MILLIS = 250, MAX_RECONNECT_MILLIS = 8000;
+    // Longest we wait for the server to answer a handshake with options before trying it without. Servers
+    // older than the options ignore such a handshake without closing the connection; those that know of
+    // some close it over any others.
+    static final int HANDSHAKE_MILLIS = 10_000;
+
+    // What can be asked for in the handshake, by the name it is asked for by.
+    enum Option {
+        // A token to resume the session with should the connection drop.
+        RESUME("resume"),
+        // Being pinged when quiet, which the connection answers itself.
+        HEARTBEAT(FrameCodec.HEARTBEAT),
+        // Users connecting and disconnecting as [PRESENCE] batches.
+        PRESENCE(FrameCodec.PRESENCE_BATCHES),
+        // Large frames sent deflated; only ever asked for along with the binary protocol.
+        DEFLATE(FrameCodec.DEFLATE);
+
+        final String wireName;
+
+        Option(String wireName) {
+            this.wireName = wireName;
+        }
+
+        // The option asked for by wireName, or null if there is none.
+        static Option forName(String wireName) {
+            for (Option option : values()) {
+                if (option.wireName.equals(wireName))
+                    return option;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * {@summary Everything a connection reports, called on the thread reading from the server.}
+     * Every method does nothing unless overridden. */
+    interface Listener {
+        // Everyone connected, as of a new session starting, ourselves included.
+        default void onRoster(String[] users) {}
+        // Someone connecting or disconnecting, [NC] and [DC].
+        default void onUserJoined(String user) {}
+        default void onUserLeft(String user) {}
+        // Everyone who connected or disconnected since the last batch, [PRESENCE]. Handed to the two
+        // above one by one unless overridden.
+        default void onPresence(String[] joined, String[] left) {
+            for (String user : joined) {
+                onUserJoined(user);
+            }
+            for (String user : left) {
+                onUserLeft(user);
+            }
+        }
+        // A chat message to everyone, [MSG].
+        default void onMessage(String sender, String text) {}
+        // A message to a room we are in, [RMSG].
+        default void onRoomMessage(String room, String sender, String text) {}
+        // A direct message to us, [DM].
+        default void onDirectMessage(String sender, String text) {}
+        // Our own join of a room, listing everyone in it, [ROOM].
+        default void onRoomJoined(String room, String[] members) {}
+        // Someone joining or leaving a room we are in, or our own leave, [JOIN] and [LEAVE].
+        default void onRoomMembership(String room, String user, boolean joined) {}
+        // A request of ours the server couldn't carry out, [ERR].
+        default void onError(String description) {}
+        // The server's metrics, as name=value pairs, [STATS].
+        default void onStats(String[] values) {}
+        // Anything else, which is either malformed or from a newer server.
+        default void onUnknown(String[] fields) {}
+        // The connection dropped. Returns whether to reconnect; if not, the connection is closed for good.
+        default boolean onDisconnected() { return false; }
+        // Reconnected after the connection dropped, resuming the session or starting a new one.
+        default void onReconnected(boolean resumed) {}
+    }
+
+    // The username asked for, the server to ask, and the number of the most recent messages the server
+    // is asked to send on connecting, if it keeps a history.
+    private final String requestedName, hostName;
+    private final int portNumber, history;
+    private final Listener listener;
+    // Whether to accept the server's offer of the binary protocol.
+    private final boolean binary;
+    // What to ask for in the handshake; never compression without the binary protocol, as it only
+    // applies to binary frames.
+    private final EnumSet<Option> options;
+    // Whether the server has shown it doesn't understand a handshake with options, so we no longer ask.
+    // Only touched by whichever thread is connecting, which is the reading thread once started.
+    private boolean bareHandshake = false;
+
+    private volatile Socket socket;
+    private FrameReader sockIn;
+    // Text protocol writer, layered over sockOutRaw, which binary frames are written to directly.
+    // Writes to either, and replacing them on reconnecting, are done holding sendLock.
+    private PrintWriter sockOut;
+    private OutputStream sockOutRaw;
+    private final Object sendLock = new Object();
+    // Whether the server sends binary frames (see FrameCodec). Only touched by the reading thread.
+    private boolean binaryIn = false;
+    // Whether messages are sent to the server as binary frames. Guarded by sendLock.
+    private boolean binaryOut = false;
+    // Whether the connection is up; nothing is sent while it is down.
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+    // Our username as the server registered it, which may differ from the one asked for.
+    private volatile String username;
+    // Token the server issued to resume the session with should the connection drop, or null if it
+    // didn't issue one. Only touched by the reading thread once connected.
+    private String resumeToken;
+    // Number of lines and frames received since the server's [ACK_CONN], which is where a resumed session
+    // picks up from. Only touched by the reading thread.
+    private long received = 0;
+    private Thread receiver;
+
+    ChatConnection(String requestedName, String hostName, int portNumber, int history, Listener listener) {
+        this(requestedName, hostName, portNumber, history, true, listener);
+    }
+
+    // As above, staying with the text protocol, uncompressed, unless binary.
+    ChatConnection(String requestedName, String hostName, int portNumber, int history, boolean binary,
+            Listener listener) {
+        this(requestedName, hostName, portNumber, history, binary, EnumSet.allOf(Option.class), listener);
+    }
+
+    // As above, asking for only the options given in the handshake.
+    ChatConnection(String requestedName, String hostName, int portNumber, int history, boolean binary,
+            Set<Option> options, Listener listener) {
+        this.requestedName = requestedName;
+        this.hostName = hostName;
+        this.portNumber = portNumber;
+        this.history = history;
+        this.binary = binary;
+        this.options = (options.isEmpty() ? EnumSet.noneOf(Option.class) : EnumSet.copyOf(options));
+        if (!binary)
+            this.options.remove(Option.DEFLATE);
+        this.listener = listener;
+    }
+
+    /** {@summary Connects to the server and starts a session.}
+     * The listener is sent the roster before this returns, but nothing else until {@link #start}.
+     * @throws IOException If the server can't be reached or the handshake fails. */
+    void connect() throws IOException {
+        connectToServer();
+        connected = true;
+    }
+
+    // Starts reading from the server on a thread made by threads.
+    void start(ThreadFactory threads) {
+        receiver = threads.newThread(this::receive);
+        receiver.start();
+    }
+
+    void start() {
+        start(Thread::new);
+    }
+
+    String username() {
+        return username;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    // Closes the connection for good. The listener is told nothing more.
+    void close() {
+        closed = true;
+        connected = false;
+        closeConnection();
+        if (receiver != null)
+            receiver.interrupt();
+    }
+
+    // Reads from the server until the connection is closed, or drops without the listener reconnecting.
+    private void receive() {
+        while (!closed) {
+            String[] split;
+            try {
+                split = (binaryIn ? sockIn.readFrame() : sockIn.readFields((byte) '\t'));
+            } catch (IOException e) {
+                split = null;
+            }
+            if (split == null) {
+                if (closed)
+                    break;
+                connected = false;
+                closeConnection();
+                if (!listener.onDisconnected() || !reconnect()) {
+                    close();
+                    break;
+                }
+                continue;
+            }
+            ++received;
+            dispatch(split);
+        }
+    }
+
+    // Hands one line or frame from the server to the listener, unless it belongs to the protocol itself.
+    private void dispatch(String[] split) {
+        switch (split[0]) {
+            case "[NC]":
+                if (split.length == 2)
+                    listener.onUserJoined(split[1]);
+                return;
+            case "[DC]":
+                if (split.length == 2)
+                    listener.onUserLeft(split[1]);
+                return;
+            case "[MSG]":
+                if (split.length == 3)
+                    listener.onMessage(split[1], split[2]);
+                return;
+            case "[RMSG]":
+                if (split.length == 4)
+                    listener.onRoomMessage(split[1], split[2], split[3]);
+                return;
+            case "[DM]":
+                if (split.length == 3)
+                    listener.onDirectMessage(split[1], split[2]);
+                return;
+            case "[ROOM]":
+                if (split.length >= 3)
+                    listener.onRoomJoined(split[1], Arrays.copyOfRange(split, 2, split.length));
+                return;
+            case "[JOIN]":
+            case "[LEAVE]":
+                if (split.length == 3)
+                    listener.onRoomMembership(split[1], split[2], split[0].equals("[JOIN]"));
+                return;
+            case "[ERR]":
+                if (split.length == 2)
+                    listener.onError(split[1]);
+                return;
+            case "[STATS]":
+                listener.onStats(Arrays.copyOfRange(split, 1, split.length));
+                return;
+            case "[PRESENCE]": {
+                int joined;
+                try {
+                    joined = (split.length >= 2 ? Integer.parseInt(split[1]) : -1);
+                } catch (NumberFormatException e) {
+                    joined = -1;
+                }
+                if (joined < 0 || joined > split.length - 2) {
+                    listener.onUnknown(split);
+                    return;
+                }
+                listener.onPresence(Arrays.copyOfRange(split, 2, 2 + joined),
+                        Arrays.copyOfRange(split, 2 + joined, split.length));
+                return;
+            }
+            case "[PING]":
+                // Answered straight from this thread, so a listener busy with something else still
+                // doesn't leave the server thinking we are gone.
+                if (split.length == 2)
+                    sendRequest("[PONG]", split[1]);
+                return;
+            case FrameCodec.PROTO_OFFER:
+                // Declined by saying nothing, when staying with text, so never reaches the listener.
+                acceptProtocolOffer(split);
+                return;
+            case FrameCodec.PROTO_ACK:
+                // Everything the server sends after its confirmation is a binary frame, provided we
+                // accepted; one we never asked for is ignored like the offer it answers.
+                synchronized (sendLock) {
+                    if (binaryOut)
+                        binaryIn = true;
+                }
+                return;
+            default:
+                listener.onUnknown(split);
+                return;
+        }
+    }
+
+    // Reconnects once the connection has dropped, retrying with backoff until it succeeds or the connection
+    // is closed. Returns false if it was closed first.
+    private boolean reconnect() {
+        long backoff = RECONNECT_MILLIS;
+        while (!closed) {
+            try {
+                boolean resumed = (resumeToken != null && resumeSession());
+                if (!resumed)
+                    connectToServer();
+                connected = true;
+                listener.onReconnected(resumed);
+                return true;
+            } catch (IOException e) {
+                closeConnection();
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_RECONNECT_MILLIS);
+        }
+        return false;
+    }
+
+    // Asks the server to resume the session from the last line received, in the protocol we were
+    // sending in. Returns false if the server no longer holds the session.
+    private boolean resumeSession() throws IOException {
+        int version;
+        synchronized (sendLock) {
+            version = (binaryOut ? FrameCodec.VERSION : FrameCodec.TEXT_VERSION);
+        }
+        String[] reply = open(String.format("[RESUME]\t%s\t%d\t%d", resumeToken, received, version));
+        if (reply.length == 2 && reply[0].equals("[RESUMED]"))
+            return true;
+        closeConnection();
+        resumeToken = null;
+        return false;
+    }
+
+    // Accept the server's offer of the binary protocol if we speak its version. From our reply on,
+    // everything we send is a binary frame; the server confirms with [PROTO_ACK] once it follows suit.
+    private void acceptProtocolOffer(String[] split) {
+        if (!binary || split.length != 2 || !split[1].equals(Integer.toString(FrameCodec.VERSION)))
+            return;
+        synchronized (sendLock) {
+            sockOut.println(FrameCodec.PROTO_OFFER + "\t" + FrameCodec.VERSION);
+            sockOut.flush();
+            binaryOut = true;
+        }
+    }
+
+    // Sends a chat message to everyone. Returns false if it couldn't be sent.
+    boolean sendMessage(String msg) {
+        synchronized (sendLock) {
+            if (!connected)
+                return false;
+            if (binaryOut) {
+                // Frames carry arbitrary text, tabs included.
+                return writeFrame(FrameCodec.encode("[CHAT]", msg));
+            }
+            // Lines starting with [ are escaped, so nothing typed is ever taken for a request.
+            String line = msg.replaceAll("\t", " ");
+            sockOut.println(line.startsWith("[") ? FrameCodec.HEADERS[FrameCodec.CHAT] + "\t" + line : line);
+            sockOut.flush();
+            return !sockOut.checkError();
+        }
+    }
+
+    // Sends a request to the server, header first. Returns false if it couldn't be sent.
+    boolean sendRequest(String... fields) {
+        synchronized (sendLock) {
+            if (!connected)
+                return false;
+            if (binaryOut)
+                return writeFrame(FrameCodec.encode(fields));
+            StringBuilder line = new StringBuilder(fields[0]);
+            for (int i = 1; i < fields.length; ++i) {
+                line.append('\t').append(fields[i].replaceAll("[\t\n\r]", " "));
+            }
+            sockOut.println(line);
+            sockOut.flush();
+            return !sockOut.checkError();
+        }
+    }
+
+    // Must hold sendLock.
+    private boolean writeFrame(ByteBuffer frame) {
+        try {
+            sockOutRaw.write(frame.array(), 0, frame.limit());
+            sockOutRaw.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Opens a new connection to the server and sends line, the opening line of a handshake, returning the
+    // fields of the server's reply.
+    // Throws SocketTimeoutException if the server doesn't reply within HANDSHAKE_MILLIS, and EOFException
+    // if it closes the connection instead.
+    private String[] open(String line) throws IOException {
+        Socket sock = new Socket(hostName, portNumber);
+        // Chat lines are short and typed by hand, so send each one as soon as it is flushed.
+        sock.setTcpNoDelay(true);
+        synchronized (sendLock) {
+            socket = sock;
+            sockIn = new FrameReader(sock.getInputStream(), Charset.defaultCharset());
+            // Not autoflushing: every write is followed by an explicit flush, once per complete message.
+            sockOutRaw = new BufferedOutputStream(sock.getOutputStream());
+            sockOut = new PrintWriter(new OutputStreamWriter(sockOutRaw), false);
+            sockOut.println(line);
+            sockOut.flush();
+        }
+        // Split in a single pass, however many users are listed.
+        String[] split;
+        try {
+            sock.setSoTimeout(HANDSHAKE_MILLIS);
+            split = sockIn.readFields((byte) '\t');
+            sock.setSoTimeout(0);
+        } catch (IOException e) {
+            closeConnection();
+            throw e;
+        }
+        if (split == null) {
+            closeConnection();
+            throw new EOFException("Disconnected during handshake.");
+        }
+        return split;
+    }
+
+    private void closeConnection() {
+        Socket sock = socket;
+        if (sock == null)
+            return;
+        try {
+            sock.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The opening line of a new session: [UNAME]\t<username>[\t<history>[\t<option>...]], with only the
+    // options asked for, and nothing past the username at all if there is nothing to ask for, which is the
+    // only handshake servers older than the history and its options accept.
+    private String handshake(Set<Option> asked) {
+        StringBuilder line = new StringBuilder("[UNAME]\t").append(requestedName);
+        if (history > 0 || !asked.isEmpty())
+            line.append('\t').append(history);
+        for (Option option : asked) {
+            line.append('\t').append(option.wireName);
+        }
+        return line.toString();
+    }
+
+    // Establishes connection to host of group chat server. Sends username, received uniqueness-resolved
+    // username from server along with the token to resume the session with and a tab-delimited list of all
+    // connected users, which is handed to the listener.
+    private void connectToServer() throws IOException {
+        synchronized (sendLock) {
+            binaryOut = false;
+        }
+        binaryIn = false;
+        received = 0;
+        Set<Option> asked = (bareHandshake ? EnumSet.noneOf(Option.class) : options);
+        String[] split;
+        try {
+            split = open(handshake(asked));
+        } catch (SocketTimeoutException | EOFException e) {
+            if (asked.isEmpty())
+                throw e;
+            // Ignored or refused, as servers that don't know every option asked for do, so ask again
+            // without any.
+            bareHandshake = true;
+            asked = EnumSet.noneOf(Option.class);
+            split = open(handshake(asked));
+        }
+        // Server connection acknowledgement reply message is tab delimited as:
+        // <header>\t<username>[\t<resume token, or ->][\t<codec>]\t<<tab-delim'd string of all connected
+        // client's username>>, the token and codec only if asked for, and then only from a server that knows
+        // of them. As the roster always lists at least ourselves, a field asked for that would leave no
+        // room for it wasn't sent, and is treated as not supported.
+        if (split.length < 3 || !split[0].equals("[ACK_CONN]")) {
+            closeConnection();
+            throw new IOException("Malformed data received from server.");
+        }
+        int users = 2;
+        resumeToken = null;
+        if (asked.contains(Option.RESUME) && split.length > users + 1) {
+            String token = split[users++];
+            resumeToken = (token.equals("-") ? null : token);
+        }
+        if (asked.contains(Option.DEFLATE) && split.length > users + 1
+                && (split[users].equals(FrameCodec.DEFLATE) || split[users].equals(FrameCodec.NO_CODEC)))
+            ++users;
+        username = split[1];
+        listener.onRoster(Arrays.copyOfRange(split, users, split.length));
+    }
+}
@@ -4,25 +4,167 @@
  */
 
 import javax.swing.*;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.io.*;
 
 public class GroupChatClient extends JFrame {
-    Socket socket;
-    BufferedReader sockIn;
-    PrintWriter sockOut;
-    boolean disposeCalled;
-    String userName, windowTitle;
+    private static final long serialVersionUID = 1L;
+    static final String USAGE = "java GroupChatClient <username> <server name> <server port> [--scrollback=<lines>]" +
+            " [--history=<messages>] [--text-only] [--handshake=<option>,...]";
+    // Lines of chat log kept by default before the oldest are trimmed.
+    static final int DEFAULT_SCROLLBACK = 5000;
+    // How long log text is collected for before it is rendered in one go; about one frame at 60Hz.
+    static final int FRAME_MILLIS = 16;
+    // Most users connecting or disconnecting at once that are each logged by name, rather than counted.
+    static final int PRESENCE_LOG_LIMIT = 10;
+    volatile boolean disposeCalled;
+    // Our username as the server registered it, which may differ from the one asked for.
+    volatile String userName;
+    String windowTitle;
+    // Usernames of everyone connected, as the receiver sees them, for validating [NC]s and [DC]s.
+    // The list on screen is the separate rosterModel, which lags behind by at most a frame.
     HashSet<String> userList = new HashSet<String>();
+    // Most lines of chat log kept; older lines are trimmed as new ones arrive.
+    int scrollback = DEFAULT_SCROLLBACK;
+
+    // Styled log text waiting to be rendered, guarded by itself, as is pendingRoster. At least one of
+    // them is non-empty exactly while renderTimer is pending, so whoever adds to them while both are
+    // empty starts the timer.
+    private final ArrayList<LogFragment> pendingLog = new ArrayList<LogFragment>();
+    // Joins and leaves waiting to be applied to rosterModel, in the order they happened.
+    private final ArrayList<RosterChange> pendingRoster = new ArrayList<RosterChange>();
+    // Single-shot timer that renders pending updates on the EDT one frame after the first arrives.
+    private javax.swing.Timer renderTimer;
+
+    // A piece of log text and the style it is shown in.
+    private static final class LogFragment {
+        final String text;
+        final AttributeSet attr;
+
+        LogFragment(String text, AttributeSet attr) {
+            this.text = text;
+            this.attr = attr;
+        }
+    }
+
+    // A user joining or leaving, waiting to be applied to rosterModel, or with a null username, everyone
+    // leaving at once.
+    private static final class RosterChange {
+        final String username;
+        final boolean joined;
+
+        RosterChange(String username, boolean joined) {
+            this.username = username;
+            this.joined = joined;
+        }
+    }
+
+    /**
+     * {@summary List model of connected users that applies each join and leave in O(1).}
+     * A join appends; a leave moves the last user into the leaver's place. A whole frame's worth of changes,
+     * such as a presence batch, is applied in one go, firing at most one event for the rows added or removed
+     * and one for the rows that changed hands, so the list never rebuilds or repaints the whole roster for
+     * a change to part of it, nor lays itself out again once per user. Only touched on the EDT. */
+    static class RosterListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<String> names = new ArrayList<String>();
+        private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+        @Override
+        public int getSize() {
+            return names.size();
+        }
+
+        @Override
+        public String getElementAt(int i) {
+            return names.get(i);
+        }
+
+        void add(String name) {
+            if (index.putIfAbsent(name, names.size()) != null)
+                return;
+            names.add(name);
+            fireIntervalAdded(this, names.size() - 1, names.size() - 1);
+        }
+
+        // Applies changes in order, a null username clearing the list.
+        void apply(RosterChange[] changes) {
+            int before = names.size();
+            // The first row of those there before whose user changed.
+            int lowest = before;
+            for (RosterChange change : changes) {
+                if (change.username == null) {
+                    names.clear();
+                    index.clear();
+                    lowest = 0;
+                } else if (change.joined) {
+                    if (index.putIfAbsent(change.username, names.size()) == null)
+                        names.add(change.username);
+                } else {
+                    Integer slot = index.remove(change.username);
+                    if (slot == null)
+                        continue;
+                    String moved = names.remove(names.size() - 1);
+                    if (slot != names.size()) {
+                        names.set(slot, moved);
+                        index.put(moved, slot);
+                    }
+                    lowest = Math.min(lowest, slot);
+                }
+            }
+            int after = names.size();
+            if (after > before)
+                fireIntervalAdded(this, before, after - 1);
+            else if (after < before)
+                fireIntervalRemoved(this, after, before - 1);
+            if (lowest < Math.min(before, after))
+                fireContentsChanged(this, lowest, Math.min(before, after) - 1);
+        }
+    }
+
+    // Queues a join or leave for rosterModel, to be applied with the next frame. Safe from any thread.
+    private void queueRosterChange(String username, boolean joined) {
+        synchronized (pendingLog) {
+            boolean scheduled = !pendingLog.isEmpty() || !pendingRoster.isEmpty();
+            pendingRoster.add(new RosterChange(username, joined));
+            if (scheduled)
+                return;
+        }
+        renderTimer.start();
+    }
+
+    // As above, for a batch of joins and leaves.
+    private void queueRosterChanges(List<RosterChange> changes) {
+        if (changes.isEmpty())
+            return;
+        synchronized (pendingLog) {
+            boolean scheduled = !pendingLog.isEmpty() || !pendingRoster.isEmpty();
+            pendingRoster.addAll(changes);
+            if (scheduled)
+                return;
+        }
+        renderTimer.start();
+    }
 
     /** {@summary Add text to the chat log text pane on the GUI.}
+     * Safe to call from any thread. The text is queued and rendered along with everything else queued
+     * within the same frame, so a busy room costs the EDT one document update per frame rather than
+     * several per message. Every log entry should end with a newline.
      * @param text Text to add. 
      * @param color The color the text should be displayed as. If null, defaults to black.
      * @param bold Boolean field, make text displayed as bold if true, otherwise regular. 
@@ -31,116 +173,316 @@ public class GroupChatClient extends JFrame {
         SimpleAttributeSet attr = new SimpleAttributeSet();
         StyleConstants.setBold(attr, bold);
         StyleConstants.setForeground(attr, (color==null ? Color.BLACK : color));
+        synchronized (pendingLog) {
+            boolean scheduled = !pendingLog.isEmpty() || !pendingRoster.isEmpty();
+            pendingLog.add(new LogFragment(text, attr));
+            if (scheduled)
+                return;
+        }
+        renderTimer.start();
+    }
 
-        logs.setEditable(true);
-        logs.setCaretPosition(logs.getDocument().getLength());
-        logs.setCharacterAttributes(attr, false);
-        logs.replaceSelection(text);
-        logs.setEditable(false);
+    // Applies every queued roster change to rosterModel, then renders everything queued by logAppend
+    // in a single insert and trims the scrollback. Runs on the EDT.
+    private void renderPending() {
+        LogFragment[] fragments;
+        RosterChange[] changes;
+        synchronized (pendingLog) {
+            fragments = pendingLog.toArray(new LogFragment[pendingLog.size()]);
+            pendingLog.clear();
+            changes = pendingRoster.toArray(new RosterChange[pendingRoster.size()]);
+            pendingRoster.clear();
+        }
+        if (changes.length > 0)
+            rosterModel.apply(changes);
+        if (fragments.length == 0)
+            return;
+        ChatDocument doc = (ChatDocument) logs.getStyledDocument();
+        try {
+            doc.append(fragments);
+            doc.trimLines(scrollback);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        logs.setCaretPosition(doc.getLength());
+    }
+
+    /**
+     * {@summary Styled document for the chat log that appends a whole batch of text as one edit.}
+     * {@link #append} builds the element structure for the batch up front and inserts it in one go,
+     * producing the same paragraphs and runs as inserting each fragment separately would, but with a
+     * single document event, and so a single layout pass, for the lot. {@link #trimLines} keeps the
+     * number of lines bounded, removing old lines in bulk rather than one at a time. */
+    static class ChatDocument extends DefaultStyledDocument {
+        private static final long serialVersionUID = 1L;
+
+        // Appends fragments, which should end with a newline, at the end of the document.
+        void append(LogFragment[] fragments) throws BadLocationException {
+            int offset = getLength();
+            AttributeSet pattr = getParagraphElement(offset).getAttributes();
+            ArrayList<ElementSpec> specs = new ArrayList<ElementSpec>();
+            ElementSpec lastStart = null;
+            if (offset > 0) {
+                // The previous batch ended with a newline, so this one starts a new paragraph.
+                specs.add(new ElementSpec(pattr, ElementSpec.EndTagType));
+                specs.add(lastStart = new ElementSpec(pattr, ElementSpec.StartTagType));
+            }
+            for (LogFragment fragment : fragments) {
+                char[] chars = fragment.text.toCharArray();
+                int start = 0;
+                for (int i = 0; i < chars.length; ++i) {
+                    if (chars[i] != '\n')
+                        continue;
+                    specs.add(new ElementSpec(fragment.attr, ElementSpec.ContentType, chars, start, i + 1 - start));
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    specs.add(lastStart = new ElementSpec(pattr, ElementSpec.StartTagType));
+                    start = i + 1;
+                }
+                if (start < chars.length)
+                    specs.add(new ElementSpec(fragment.attr, ElementSpec.ContentType, chars, start, chars.length - start));
+            }
+            if (specs.isEmpty())
+                return;
+            // The last paragraph opened merges with the one holding the document's implied final newline,
+            // exactly as insertString would arrange it.
+            if (lastStart != null)
+                lastStart.setDirection(offset > 0 ? ElementSpec.JoinNextDirection : ElementSpec.JoinFractureDirection);
+            insert(offset, specs.toArray(new ElementSpec[specs.size()]));
+        }
+
+        // Removes the oldest lines once there are more than an eighth over maxLines, leaving maxLines,
+        // so the cost of a removal is spread over many appended lines.
+        void trimLines(int maxLines) throws BadLocationException {
+            Element root = getDefaultRootElement();
+            // The last paragraph is the document's implied final newline, not a line of the log.
+            int lines = root.getElementCount() - 1;
+            if (lines <= maxLines + Math.max(1, maxLines / 8))
+                return;
+            remove(0, root.getElement(lines - maxLines).getStartOffset());
+        }
     }
     
-   /** 
-    * {@summary Thread that reads from connection socket and relays to GUI.} 
-    * Class that runs asyncronously by inheriting from {@link Thread}; reads from {@link BufferedReader} that is connected to 
-    * {@link Socket} connecting client to group chat server. */
-    private class SocketInputReceiver extends Thread {
-        private boolean shouldExit;
-        public SocketInputReceiver() {
-            shouldExit = false;
+   /**
+    * {@summary Relays everything the server sends to the GUI.}
+    * Called by the {@link ChatConnection} on its reading thread, so everything shown goes through
+    * {@link #logAppend} and {@link #queueRosterChange}, which are safe from any thread. */
+    private class Receiver implements ChatConnection.Listener {
+        @Override
+        public void onRoster(String[] users) {
+            userList.clear();
+            if (!started) {
+                // The window isn't showing yet, so the model can be filled in directly.
+                for (String user : users) {
+                    userList.add(user);
+                    rosterModel.add(user);
+                }
+                return;
+            }
+            // A new session replacing one that was lost, whose roster is replaced with the new one's.
+            queueRosterChange(null, false);
+            for (String user : users) {
+                userList.add(user);
+                queueRosterChange(user, true);
+            }
         }
+
         @Override
-        public void run() {
-            try {
-                while (!disposeCalled && !shouldExit) {
-                    String msgRecvd = sockIn.readLine();
-                    if (msgRecvd == null) {
-                        System.out.println("Server disconnected.");
-                        logAppend("[Disconnected from server]: ", Color.RED, true);
-                        logAppend("Close window to exit program.", null, false);
-                        break;
-                    }
-                    String[] split = msgRecvd.split("\t");
-                    switch (split[0]) {
-                        case "[NC]":
-                            handleNewClientNotif(split);
-                            continue;
-                        case "[DC]":
-                            handleDisconnectedClientNotif(split);
-                            continue;
-                        case "[MSG]":
-                            handleMessageNotif(split);
-                            continue;
-                        default:
-                            System.err.println("\033[1;31m[Error]:\033[0m Malformed data received." +
-                                "raw message: " + msgRecvd);
-                            continue;
-                    }
+        public void onUserJoined(String user) {
+            if (!userList.add(user))
+                return;
+            queueRosterChange(user, true);
+            logAppend(user, Color.BLUE, true);
+            logAppend(" has connected.\n", null, false);
+        }
+
+        @Override
+        public void onUserLeft(String user) {
+            if (!userList.remove(user))
+                return;
+            queueRosterChange(user, false);
+            logAppend(user, Color.BLUE, true);
+            logAppend(" has disconnected.\n", null, false);
+        }
+
+        // Queued as one batch, so it reaches the list in a single update, and logged user by user unless
+        // there are so many that a count says more.
+        @Override
+        public void onPresence(String[] joined, String[] left) {
+            ArrayList<RosterChange> changes = new ArrayList<RosterChange>(joined.length + left.length);
+            ArrayList<String> connected = new ArrayList<String>(), disconnected = new ArrayList<String>();
+            for (String user : joined) {
+                if (userList.add(user)) {
+                    changes.add(new RosterChange(user, true));
+                    connected.add(user);
                 }
-            } catch (IOException e) {
-                System.out.println(e);
             }
-            return;
+            for (String user : left) {
+                if (userList.remove(user)) {
+                    changes.add(new RosterChange(user, false));
+                    disconnected.add(user);
+                }
+            }
+            queueRosterChanges(changes);
+            logPresence(connected, " has connected.\n", " users have connected.\n");
+            logPresence(disconnected, " has disconnected.\n", " users have disconnected.\n");
         }
 
+        private void logPresence(List<String> users, String each, String count) {
+            if (users.size() > PRESENCE_LOG_LIMIT) {
+                logAppend(Integer.toString(users.size()), Color.BLUE, true);
+                logAppend(count, null, false);
+                return;
+            }
+            for (String user : users) {
+                logAppend(user, Color.BLUE, true);
+                logAppend(each, null, false);
+            }
+        }
 
-        private boolean handleMessageNotif(String[] splitMsg) {
-            if (splitMsg.length != 3)
-                return false;
-            logAppend(splitMsg[1] + ": ", Color.BLUE, true);
-            logAppend(splitMsg[2] + "\n", null, false);
-            return true;
+        @Override
+        public void onMessage(String sender, String text) {
+            logAppend(sender + ": ", Color.BLUE, true);
+            logAppend(text + "\n", null, false);
+        }
 
+        @Override
+        public void onRoomMessage(String room, String sender, String text) {
+            logAppend("[" + room + "] ", Color.GRAY, true);
+            logAppend(sender + ": ", Color.BLUE, true);
+            logAppend(text + "\n", null, false);
         }
-        
-        
-        private boolean handleNewClientNotif(String[] splitMsg) {
-            if (splitMsg.length != 2)
-                return false;
-            if (userList.contains(splitMsg[1]))
-                return false;
-            userList.add(splitMsg[1]);
-            users.setListData(userList.toArray(new String[userList.size()]));
-            logAppend(splitMsg[1], Color.BLUE, true);
-            logAppend(" has connected.\n", null, false);
-            return true;
+
+        @Override
+        public void onDirectMessage(String sender, String text) {
+            logAppend("(DM) " + sender + ": ", Color.MAGENTA, true);
+            logAppend(text + "\n", null, false);
         }
 
-        private boolean handleDisconnectedClientNotif(String[] splitMsg) {
-            if (splitMsg.length != 2)
-                return false;
-            if (!userList.contains(splitMsg[1]))
+        @Override
+        public void onRoomJoined(String room, String[] members) {
+            logAppend("[" + room + "] ", Color.GRAY, true);
+            logAppend("Joined; members: " + String.join(", ", members) + "\n", null, false);
+        }
+
+        @Override
+        public void onRoomMembership(String room, String user, boolean joined) {
+            logAppend("[" + room + "] ", Color.GRAY, true);
+            logAppend(user, Color.BLUE, true);
+            logAppend(joined ? " has joined.\n" : " has left.\n", null, false);
+        }
+
+        @Override
+        public void onError(String description) {
+            logAppend("[Server]: " + description + "\n", Color.RED, false);
+        }
+
+        @Override
+        public void onStats(String[] values) {
+            for (String value : values) {
+                logAppend("[Stats]: " + value + "\n", Color.GRAY, false);
+            }
+        }
+
+        @Override
+        public void onUnknown(String[] fields) {
+            System.err.println("\033[1;31m[Error]:\033[0m Malformed data received." +
+                "raw message: " + String.join("\t", fields));
+        }
+
+        // Reconnect, unless the window has been closed.
+        @Override
+        public boolean onDisconnected() {
+            System.out.println("Server disconnected.");
+            if (disposeCalled)
                 return false;
-            userList.remove(splitMsg[1]);
-            users.setListData(userList.toArray(new String[userList.size()]));
-            logAppend(splitMsg[1], Color.BLUE, true);
-            logAppend(" has disconnected.\n", null, false);
+            logAppend("[Disconnected from server]: ", Color.RED, true);
+            logAppend("Reconnecting...\n", null, false);
             return true;
         }
+
+        @Override
+        public void onReconnected(boolean resumed) {
+            userName = connection.username();
+            logAppend("[Reconnected]: ", Color.RED, true);
+            logAppend(resumed ? "Session resumed.\n" : "New session started.\n", null, false);
+        }
     }
-    // Handles messages received from server via a BufferedReader that reads from sockets inputstream.
-    private SocketInputReceiver receiver;
+    // The connection to the server, which hands everything it receives to a Receiver.
+    private ChatConnection connection;
+    // Whether the connection has been started, after which the window is showing.
+    private volatile boolean started = false;
     // Displays all server notifs and messages received.
     JTextPane logs;
     // Displays list of all users connected to the server
     JList<String> users;
+    // The users shown, updated one join or leave at a time.
+    RosterListModel rosterModel = new RosterListModel();
     // Client message input text field.
     JTextField input;
     // Button to send client's inputed messages to server.
     JButton sendBtn;
 
+    // Sends a line typed by the user: a chat message, or one of the room and direct message commands,
+    // /join <room>, /leave <room>, /room <room> <message> and /dm <user> <message>, and /stats [<prefix>],
+    // which shows the server's metrics, or those whose names start with prefix.
+    private void sendInput(String input) {
+        if (!connection.isConnected()) {
+            logAppend("[Not connected]: Message not sent.\n", Color.RED, false);
+            return;
+        }
+        String[] command = input.split(" ", 3);
+        switch (command[0]) {
+            case "/join":
+            case "/leave":
+                if (command.length != 2)
+                    break;
+                connection.sendRequest(command[0].equals("/join") ? "[JOIN]" : "[LEAVE]", command[1]);
+                return;
+            case "/room":
+                if (command.length != 3)
+                    break;
+                connection.sendRequest("[RMSG]", command[1], command[2]);
+                logAppend("[" + command[1] + "] ", Color.GRAY, true);
+                logAppend(userName + ": ", Color.BLUE, true);
+                logAppend(command[2] + "\n", null, false);
+                return;
+            case "/dm":
+                if (command.length != 3)
+                    break;
+                connection.sendRequest("[DM]", command[1], command[2]);
+                logAppend("(DM to " + command[1] + ") ", Color.MAGENTA, true);
+                logAppend(command[2] + "\n", null, false);
+                return;
+            case "/stats":
+                if (command.length > 2)
+                    break;
+                connection.sendRequest("[STATS]", (command.length == 2 ? command[1] : ""));
+                return;
+            default:
+                sendMessage(input);
+                return;
+        }
+        logAppend("Usage: /join <room>, /leave <room>, /room <room> <message>, /dm <user> <message> or /stats [<prefix>]\n",
+                Color.RED, false);
+    }
+
     private void sendMessage(String msg) {
-        msg = msg.replaceAll("\t", " ");
-        sockOut.println(msg);
+        if (!connection.sendMessage(msg)) {
+            logAppend("[Not connected]: Message not sent.\n", Color.RED, false);
+            return;
+        }
         logAppend(userName + ": ", Color.BLUE, true);
-        logAppend(msg + "\n", null, false);
+        logAppend(msg.replaceAll("\t", " ") + "\n", null, false);
     }
     // Configure the GUI frontend to be formatted and displayed as neatly as I possibly could.
     private void configureUI() {
         setSize(1280, 720);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        logs = new JTextPane();
+        logs = new JTextPane(new ChatDocument());
         logs.setEditable(false);
-        users = new JList<String>();
+        renderTimer = new javax.swing.Timer(FRAME_MILLIS, e -> renderPending());
+        renderTimer.setRepeats(false);
+        users = new JList<String>(rosterModel);
         Container root = getContentPane();
         root.setLayout(new BoxLayout(root, BoxLayout.Y_AXIS));
         JPanel inputPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
@@ -151,7 +493,7 @@ public class GroupChatClient extends JFrame {
             input.setText("");
             if (msg==null || msg.length()<=0)
                 return;
-            sendMessage(msg);
+            sendInput(msg);
         }));
         inputPanel.add(input);
         inputPanel.add(sendBtn);
@@ -167,75 +509,62 @@ public class GroupChatClient extends JFrame {
         root.add(splitViewWrapper);
         root.add(inputPanel);
     }
-    // Establishes connection to host of group chat server. Sends username, received uniqueness-resolved
-    // username from server along with tab-delimited list of all connected users.
-    private void connectToServer(String userName, String hostName, int portNumber) throws IOException {
-        socket = new Socket(hostName, portNumber);
-        sockIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        sockOut = new PrintWriter(socket.getOutputStream(), true);
-        sockOut.println("[UNAME]\t".concat(userName));
-        String s = sockIn.readLine();
-                
-        if (s == null) {
-            sockOut.close();
-            sockIn.close();
-            socket.close();
-            throw new IOException("Disconnected during handshake.");
-        }
-        
-        String[] split = s.split("\t");
-        
-        
-        // Server connection acknowledgement reply message is tab delimited as:
-        // <header>\t<username>\t<<tab-delim'd string of all connected client's username>>
-        // Therefore split at the very least should contain:
-        // [ACK_CONN]\t<this client's registered username>\t<this client's registered username>
-        if (split.length < 3 || !split[0].equals("[ACK_CONN]")) {
-            sockOut.close();
-            sockIn.close();
-            socket.close();
-            throw new IOException("Malformed data received from server.");
-        }
-        this.userName = new String(split[1]);
-        for (int i = 2; i < split.length; ++i) {
-            userList.add(split[i]);
-        }
-        users.setListData(userList.toArray(new String[userList.size()]));
+    public GroupChatClient(String userName, String hostName, int portNumber) throws IOException {
+        this(userName, hostName, portNumber, DEFAULT_SCROLLBACK);
     }
 
-    public GroupChatClient(String userName, String hostName, int portNumber) throws IOException {
+    // As above, keeping at most scrollback lines of chat log.
+    public GroupChatClient(String userName, String hostName, int portNumber, int scrollback) throws IOException {
+        this(userName, hostName, portNumber, scrollback, 0);
+    }
+
+    // As above, starting the chat log with up to history of the most recent messages sent before connecting.
+    public GroupChatClient(String userName, String hostName, int portNumber, int scrollback, int history)
+            throws IOException {
+        this(userName, hostName, portNumber, scrollback, history, true);
+    }
+
+    // As above, staying with the text protocol unless binary.
+    public GroupChatClient(String userName, String hostName, int portNumber, int scrollback, int history,
+            boolean binary) throws IOException {
+        this(userName, hostName, portNumber, scrollback, history, binary,
+                EnumSet.allOf(ChatConnection.Option.class));
+    }
+
+    // As above, asking for only the given options in the handshake.
+    public GroupChatClient(String userName, String hostName, int portNumber, int scrollback, int history,
+            boolean binary, Set<ChatConnection.Option> handshake) throws IOException {
         super();
         disposeCalled = false;
+        this.scrollback = scrollback;
         configureUI();
-        connectToServer(userName, hostName, portNumber);
+        connection = new ChatConnection(userName, hostName, portNumber, history, binary, handshake,
+                new Receiver());
+        connection.connect();
+        this.userName = connection.username();
         windowTitle = String.format("Group Chat | Username: %s | Server:  %s:%d", userName, hostName, portNumber);
         setTitle(windowTitle);
-        receiver = new SocketInputReceiver();
         setVisible(true);
     }
 
+    // Starts relaying everything the server sends to the window.
+    void start() {
+        started = true;
+        connection.start(r -> new Thread(r, "receiver"));
+    }
+
     @Override
     public void dispose() {
         disposeCalled = true;
-        receiver.shouldExit = true;
-
-        try {
-            socket.close();
-            sockIn.close();
-            sockOut.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        receiver.interrupt();
+        connection.close();
 
         super.dispose();
     }
 
     public static void main(String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3 || args.length > 7) {
         System.err.println("\033[1;31m[Error]:\033[0m Invalid arg count.\n" +
-            "\t\033[1;34m[Usage]:\033[0m " +
-            "java GroupChatClient <username> <server name> <server port>");
+            "\t\033[1;34m[Usage]:\033[0m " + USAGE);
         System.exit(1);
       }
         int port = 0;
@@ -247,10 +576,44 @@ public class GroupChatClient extends JFrame {
                  + "port number from \"" + args[2] + "\"");
              System.exit(1);
         }
+        int scrollback = DEFAULT_SCROLLBACK, history = 0;
+        boolean binary = true;
+        EnumSet<ChatConnection.Option> handshake = EnumSet.allOf(ChatConnection.Option.class);
+        for (int i = 3; i < args.length; ++i) {
+            try {
+                if (args[i].startsWith("--scrollback=")) {
+                    scrollback = Integer.parseInt(args[i].substring("--scrollback=".length()));
+                    if (scrollback < 1)
+                        throw new NumberFormatException("Must be positive");
+                } else if (args[i].startsWith("--history=")) {
+                    history = Integer.parseInt(args[i].substring("--history=".length()));
+                    if (history < 0)
+                        throw new NumberFormatException("Must not be negative");
+                } else if (args[i].equals("--text-only")) {
+                    binary = false;
+                } else if (args[i].startsWith("--handshake=")) {
+                    // Comma-separated, and empty for the bare handshake older servers expect.
+                    handshake.clear();
+                    String list = args[i].substring("--handshake=".length());
+                    for (String name : (list.isEmpty() ? new String[0] : list.split(","))) {
+                        ChatConnection.Option option = ChatConnection.Option.forName(name);
+                        if (option == null)
+                            throw new NumberFormatException("Unrecognized handshake option " + name);
+                        handshake.add(option);
+                    }
+                } else {
+                    throw new NumberFormatException("Unrecognized option");
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Invalid option " + args[i] + ": " + e.getMessage() +
+                    "\n\t\033[1;34m[Usage]:\033[0m " + USAGE);
+                System.exit(1);
+            }
+        }
         GroupChatClient client = null;
         try {
-            client = new GroupChatClient(args[0], args[1], port);
-            client.receiver.start();
+            client = new GroupChatClient(args[0], args[1], port, scrollback, history, binary, handshake);
+            client.start();
         } catch (IOException e) {
             System.out.println(e);
         }
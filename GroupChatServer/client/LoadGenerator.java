@@ -0,0 +1,209 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@summary Load generator that connects thousands of simulated users to a server and measures fan-out.}
+ * Every user is a headless {@link ChatConnection}. Once all of them are connected, the first few send chat
+ * messages at a fixed total rate, each carrying the time it was due to be sent, and every user records how
+ * long each one took to reach it. Stamping the due time rather than the time the send actually happened
+ * means a server that falls behind shows up in the latency, rather than just slowing the senders down.
+ * <p>
+ * Reports how fast users connected and how long each connection's handshake took, how many messages were
+ * sent and delivered, and the percentiles of fan-out latency. Meant to run on the same host as the
+ * server, since the latencies are measured against one clock. */
+public class LoadGenerator {
+    static final String USAGE = "java LoadGenerator <server name> <server port> [--users=<count>]" +
+            " [--senders=<count>] [--rate=<messages per second>] [--duration=<seconds>] [--size=<bytes>]" +
+            " [--connect-rate=<users per second>] [--text-only]";
+    // Marks a chat message as one of ours, followed by the time it was due to be sent, in System.nanoTime().
+    static final String MARK = "lg ";
+    // Longest to wait for another message to be delivered once the last is sent, before giving up on the
+    // rest, in milliseconds.
+    static final long DRAIN_MILLIS = 5000;
+    // Stack size of each user's reading thread; reading and recording needs very little.
+    static final long STACK_SIZE = 128 << 10;
+
+    String hostName;
+    int portNumber;
+    // Number of users connected, and how many of them send.
+    int users = 1000;
+    int senders = 10;
+    // Messages sent per second across every sender, for how many seconds, and each one's length in characters.
+    int rate = 100;
+    int durationSeconds = 10;
+    int size = 64;
+    // Users connected per second, or zero to connect each as soon as the last one is done.
+    int connectRate = 0;
+    // Don't accept the server's offer of the binary protocol.
+    boolean textOnly = false;
+
+    private final List<ChatConnection> connections = new ArrayList<ChatConnection>();
+    // Time from a message being due to be sent to a user receiving it, and from opening a connection to
+    // the server's acknowledgement, in nanoseconds.
+    private final Histogram fanOutLatency = new Histogram(), connectTime = new Histogram();
+    private final LongAdder delivered = new LongAdder(), dropped = new LongAdder();
+
+    // Records each of our messages a user receives.
+    private final ChatConnection.Listener receiver = new ChatConnection.Listener() {
+        @Override
+        public void onMessage(String sender, String text) {
+            long now = System.nanoTime();
+            if (!text.startsWith(MARK))
+                return;
+            int end = text.indexOf(' ', MARK.length());
+            try {
+                fanOutLatency.record(now - Long.parseLong(text.substring(MARK.length(), end < 0 ? text.length() : end)));
+                delivered.increment();
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+
+        @Override
+        public boolean onDisconnected() {
+            dropped.increment();
+            return false;
+        }
+    };
+
+    // Connects every user, paced to connectRate, returning how long it took in nanoseconds.
+    private long connectAll() throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threads = r -> {
+            Thread t = new Thread(null, r, "user-" + count.incrementAndGet(), STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < users; ++i) {
+            if (connectRate > 0)
+                parkUntil(start + i * 1_000_000_000L / connectRate);
+            ChatConnection connection = new ChatConnection("lg" + i, hostName, portNumber, 0, !textOnly, receiver);
+            long opened = System.nanoTime();
+            connection.connect();
+            connectTime.record(System.nanoTime() - opened);
+            connections.add(connection);
+            connection.start(threads);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Sends rate messages a second for durationSeconds, round-robin across the senders, returning how
+    // many were sent.
+    private long sendAll() {
+        StringBuilder padding = new StringBuilder(" ");
+        while (padding.length() < size - MARK.length() - 20) {
+            padding.append('x');
+        }
+        long total = (long) rate * durationSeconds;
+        long interval = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long sent = 0;
+        for (long i = 0; i < total; ++i) {
+            long due = start + i * interval;
+            parkUntil(due);
+            if (connections.get((int) (i % senders)).sendMessage(MARK + due + padding))
+                ++sent;
+        }
+        return sent;
+    }
+
+    private static void parkUntil(long deadline) {
+        for (long wait; (wait = deadline - System.nanoTime()) > 0;) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    void run() throws IOException {
+        long connectNanos = connectAll();
+        System.out.printf("Connected %d users in %.2f s (%.1f/s); handshake %s%n", users, connectNanos / 1e9,
+                users / (connectNanos / 1e9), percentiles(connectTime));
+        long start = System.nanoTime();
+        long sent = sendAll();
+        long sendNanos = System.nanoTime() - start;
+        // Everyone but the sender receives each message.
+        long expected = sent * (users - 1);
+        long lastDelivered = -1, deadline = 0;
+        for (long count; (count = delivered.sum()) < expected; LockSupport.parkNanos(10_000_000L)) {
+            if (count != lastDelivered) {
+                lastDelivered = count;
+                deadline = System.nanoTime() + DRAIN_MILLIS * 1_000_000L;
+            } else if (System.nanoTime() - deadline > 0) {
+                break;
+            }
+        }
+        long totalNanos = System.nanoTime() - start;
+        System.out.printf("Sent %d messages in %.2f s (%.1f/s)%n", sent, sendNanos / 1e9, sent / (sendNanos / 1e9));
+        System.out.printf("Delivered %d of %d (%.1f/s); %d connections dropped%n", delivered.sum(), expected,
+                delivered.sum() / (totalNanos / 1e9), dropped.sum());
+        System.out.println("Fan-out latency " + percentiles(fanOutLatency));
+        for (ChatConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return String.format("p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus", histogram.percentile(50) / 1000.0,
+                histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0, histogram.max() / 1000.0);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("\033[1;31m[Error]:\033[0m Invalid arg count.\n" +
+                "\t\033[1;34m[Usage]:\033[0m " + USAGE);
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator();
+        generator.hostName = args[0];
+        for (int i = 1; i < args.length; ++i) {
+            String arg = args[i];
+            try {
+                if (i == 1) {
+                    generator.portNumber = Integer.parseInt(arg);
+                } else if (arg.startsWith("--users=")) {
+                    generator.users = positiveInt(arg, "--users=");
+                } else if (arg.startsWith("--senders=")) {
+                    generator.senders = positiveInt(arg, "--senders=");
+                } else if (arg.startsWith("--rate=")) {
+                    generator.rate = positiveInt(arg, "--rate=");
+                } else if (arg.startsWith("--duration=")) {
+                    generator.durationSeconds = positiveInt(arg, "--duration=");
+                } else if (arg.startsWith("--size=")) {
+                    generator.size = positiveInt(arg, "--size=");
+                } else if (arg.startsWith("--connect-rate=")) {
+                    generator.connectRate = positiveInt(arg, "--connect-rate=");
+                } else if (arg.equals("--text-only")) {
+                    generator.textOnly = true;
+                } else {
+                    throw new NumberFormatException("Unrecognized option");
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Invalid option " + arg + ": " + e.getMessage() +
+                    "\n\t\033[1;34m[Usage]:\033[0m " + USAGE);
+                System.exit(1);
+            }
+        }
+        generator.senders = Math.min(generator.senders, generator.users);
+        try {
+            generator.run();
+        } catch (IOException e) {
+            System.err.println("\033[1;31m[Error]:\033[0m Couldn't connect: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int positiveInt(String arg, String prefix) {
+        int value = Integer.parseInt(arg.substring(prefix.length()));
+        if (value < 1)
+            throw new NumberFormatException("Must be positive");
+        return value;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@summary Encoder and decoder for the length-prefixed binary frame protocol (protocol version 2).}
+ * Every frame is laid out as:
+ * <pre>
+ *   u8  type            one of the frame type constants below
+ *   u32 payload length  big-endian, at most {@link #MAX_PAYLOAD}
+ *   payload             zero or more fields, each a big-endian u32 byte length followed by that
+ *                       many bytes of UTF-8
+ * </pre>
+ * Fields may contain anything, tabs and newlines included. Both ends of a connection start out speaking
+ * the legacy tab-delimited text protocol (version 1) and only switch once they have agreed on version 2:
+ * <pre>
+ *   server: [ACK_CONN]\t...           (text, as always)
+ *   server: [PROTO]\t2                (text; an offer, which legacy clients ignore)
+ *   client: [PROTO]\t2                (text; the client sends binary frames from here on)
+ *   server: [PROTO_ACK]\t2            (text; the server sends binary frames from here on)
+ * </pre>
+ * Decoded frames are handed around in the same shape as a split text line: an array whose first element
+ * is the text protocol header for the frame type, e.g. <code>[MSG]</code>, followed by its fields.
+ * <p>
+ * A client that asked for compression in its handshake may also be sent {@link #DEFLATED} frames, each
+ * wrapping one whole frame of any other type, deflated; {@link #inflate} unwraps them.
+ * <p>
+ * Clustered servers link to each other with the same frames, from the first byte on: the server to
+ * client forms of the chat, roster and room types relay what happens on one node to the others, and a
+ * few node to node types, <code>[N_...]</code>, introduce the nodes and keep usernames unique. */
+final class FrameCodec {
+    static final int TEXT_VERSION = 1;
+    static final int VERSION = 2;
+
+    static final String PROTO_OFFER = "[PROTO]";
+    static final String PROTO_ACK = "[PROTO_ACK]";
+
+    // Server to client: [MSG] <sender> <message>
+    static final byte MSG = 1;
+    // Server to client: [NC] <username>
+    static final byte NC = 2;
+    // Server to client: [DC] <username>
+    static final byte DC = 3;
+    // Client to server: [CHAT] <message>, the binary form of a plain text line from the client.
+    static final byte CHAT = 4;
+    // Client to server: [JOIN] <room>, subscribing to a room. Server to client: [JOIN] <room> <username>,
+    // sent to a room's other members when someone joins it.
+    static final byte JOIN = 5;
+    // Client to server: [LEAVE] <room>. Server to client: [LEAVE] <room> <username>, sent to the room's
+    // members, the leaver included, when someone leaves it.
+    static final byte LEAVE = 6;
+    // Client to server: [RMSG] <room> <message>. Server to client: [RMSG] <room> <sender> <message>,
+    // sent to the room's other members.
+    static final byte ROOM_MSG = 7;
+    // Client to server: [DM] <username> <message>. Server to client: [DM] <sender> <message>, sent to
+    // the named user alone. Node to node: [DM] <username> <sender> <message>, for a user on that node.
+    static final byte DM = 8;
+    // Server to client: [ROOM] <room> <member> <...>, sent to a user who has joined a room, listing its
+    // members, the new member included.
+    static final byte ROOM = 9;
+    // Server to client: [ERR] <description>, when a request from the client can't be carried out.
+    static final byte ERR = 10;
+    // Node to node: [N_HELLO] <node id>, the first frame each side of a link sends.
+    static final byte HELLO = 11;
+    // Node to node: [N_CLAIM] <username>, asking whether a node's new user may have the name.
+    static final byte CLAIM = 12;
+    // Node to node: [N_CLAIMED] <username> ok|taken, the answer to a claim.
+    static final byte CLAIMED = 13;
+    // Node to node: [N_RELEASE] <username>, withdrawing a claim that another node turned down.
+    static final byte RELEASE = 14;
+    // Client to server: [STATS] <prefix>, asking for the server's metrics whose names start with prefix,
+    // which may be empty. Server to client: [STATS] <name>=<value> <...>, the metrics asked for.
+    static final byte STATS = 15;
+    // Server to client, when the client agreed to compression: another frame, deflated. Rather than
+    // fields, the payload is the u32 length of the original frame, followed by the frame as a raw
+    // deflate stream (RFC 1951).
+    static final byte DEFLATED = 16;
+    // Server to client, when the client asked for heartbeats: [PING] <token>, sent to a client that has
+    // gone quiet. Client to server: [PONG] <token>, the answer, echoing the ping's token.
+    static final byte PING = 17;
+    static final byte PONG = 18;
+    // Server to client, when the client asked for presence batches: [PRESENCE] <number joined> <joined
+    // username> <...> <left username> <...>, everyone who connected or disconnected since the last batch,
+    // in place of their [NC]s and [DC]s.
+    static final byte PRESENCE = 19;
+
+    // Text protocol header for each frame type, indexed by type.
+    static final String[] HEADERS = { null, "[MSG]", "[NC]", "[DC]", "[CHAT]", "[JOIN]", "[LEAVE]", "[RMSG]",
+            "[DM]", "[ROOM]", "[ERR]", "[N_HELLO]", "[N_CLAIM]", "[N_CLAIMED]", "[N_RELEASE]",
+            "[STATS]", "[DEFLATED]", "[PING]", "[PONG]", "[PRESENCE]" };
+
+    // Compression codecs a client may ask for in its handshake, and the answer when none is agreed.
+    static final String DEFLATE = "deflate";
+    static final String NO_CODEC = "none";
+    // Handshake option asking the server to ping the client when it goes quiet, and to drop it when it
+    // stops answering.
+    static final String HEARTBEAT = "ping";
+    // Handshake option asking for users connecting and disconnecting to be sent as [PRESENCE] batches.
+    static final String PRESENCE_BATCHES = "presence";
+
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_PAYLOAD = 1 << 18;
+
+    private FrameCodec() {
+    }
+
+    // Returns the frame type for a text protocol header, or -1 if it has no binary form.
+    static byte typeOf(String header) {
+        for (int i = 1; i < HEADERS.length; ++i) {
+            if (HEADERS[i].equals(header))
+                return (byte) i;
+        }
+        return -1;
+    }
+
+    // Encodes fields (header first) as a frame into a heap buffer of exactly the right size.
+    static ByteBuffer encode(String... fields) {
+        byte[][] payload = payloadOf(fields);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + encodedLength(payload));
+        put(buf, typeOf(fields[0]), payload);
+        buf.flip();
+        return buf;
+    }
+
+    // Encodes fields (header first) as a frame at dst's position. Returns false, leaving dst as it
+    // was, if the frame doesn't fit in dst's remaining space.
+    static boolean encode(String[] fields, ByteBuffer dst) {
+        byte[][] payload = payloadOf(fields);
+        if (dst.remaining() < HEADER_LENGTH + encodedLength(payload))
+            return false;
+        put(dst, typeOf(fields[0]), payload);
+        return true;
+    }
+
+    private static byte[][] payloadOf(String[] fields) {
+        if (typeOf(fields[0]) < 0)
+            throw new IllegalArgumentException("No binary frame type for header " + fields[0]);
+        byte[][] payload = new byte[fields.length - 1][];
+        for (int i = 1; i < fields.length; ++i) {
+            payload[i - 1] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        if (encodedLength(payload) > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Frame payload exceeds " + MAX_PAYLOAD + " bytes");
+        return payload;
+    }
+
+    private static int encodedLength(byte[][] payload) {
+        int len = 0;
+        for (byte[] field : payload) {
+            len += 4 + field.length;
+        }
+        return len;
+    }
+
+    private static void put(ByteBuffer dst, byte type, byte[][] payload) {
+        dst.put(type);
+        dst.putInt(encodedLength(payload));
+        for (byte[] field : payload) {
+            dst.putInt(field.length);
+            dst.put(field);
+        }
+    }
+
+    /** {@summary Check the header of the frame at src's position, without moving it.}
+     * @return The frame's payload length, or -1 if src doesn't hold the complete frame yet.
+     * @throws ProtocolException If the frame has an unknown type or exceeds {@link #MAX_PAYLOAD}. */
+    static int payloadLength(ByteBuffer src) throws ProtocolException {
+        if (src.remaining() < HEADER_LENGTH)
+            return -1;
+        int start = src.position();
+        int type = src.get(start);
+        int len = src.getInt(start + 1);
+        if (type < 1 || type >= HEADERS.length)
+            throw new ProtocolException("Unknown frame type " + type);
+        if (len < 0 || len > MAX_PAYLOAD)
+            throw new ProtocolException("Frame payload length " + len + " out of bounds");
+        if (src.remaining() < HEADER_LENGTH + len)
+            return -1;
+        return len;
+    }
+
+    // Reads a big-endian u32 (a payload or field length) from data at pos.
+    static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /** {@summary Decode a frame's payload, already checked by {@link #payloadLength}, in place.}
+     * @return The header for type, followed by the fields in the len bytes at off in data.
+     * @throws ProtocolException If the fields overrun the payload. */
+    static String[] decode(byte type, byte[] data, int off, int len) throws ProtocolException {
+        if (type < 1 || type >= HEADERS.length)
+            throw new ProtocolException("Unknown frame type " + type);
+        int end = off + len, count = 0;
+        for (int pos = off; pos < end; ++count) {
+            if (end - pos < 4)
+                throw new ProtocolException("Truncated field length");
+            int fieldLen = getInt(data, pos);
+            if (fieldLen < 0 || fieldLen > end - pos - 4)
+                throw new ProtocolException("Field length " + fieldLen + " out of bounds");
+            pos += 4 + fieldLen;
+        }
+        String[] fields = new String[count + 1];
+        fields[0] = HEADERS[type];
+        for (int i = 1, pos = off; i <= count; ++i) {
+            int fieldLen = getInt(data, pos);
+            fields[i] = new String(data, pos + 4, fieldLen, StandardCharsets.UTF_8);
+            pos += 4 + fieldLen;
+        }
+        return fields;
+    }
+
+    /** {@summary Inflate and decode the payload of a {@link #DEFLATED} frame.}
+     * @param inflater A raw deflate (nowrap) inflater, reset before use.
+     * @return The header and fields of the frame it wraps.
+     * @throws ProtocolException If the payload doesn't inflate to exactly one frame of another type. */
+    static String[] inflate(byte[] data, int off, int len, Inflater inflater) throws ProtocolException {
+        if (len < 4)
+            throw new ProtocolException("Truncated deflated frame");
+        int frameLength = getInt(data, off);
+        if (frameLength < HEADER_LENGTH || frameLength > HEADER_LENGTH + MAX_PAYLOAD)
+            throw new ProtocolException("Deflated frame length " + frameLength + " out of bounds");
+        byte[] frame = new byte[frameLength];
+        inflater.reset();
+        inflater.setInput(data, off + 4, len - 4);
+        try {
+            int inflated = 0;
+            while (inflated < frameLength && !inflater.finished()) {
+                int n = inflater.inflate(frame, inflated, frameLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+            if (inflated != frameLength || !inflater.finished())
+                throw new ProtocolException("Deflated frame doesn't inflate to its stated length");
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt deflated frame: " + e.getMessage());
+        }
+        byte type = frame[0];
+        if (type == DEFLATED || getInt(frame, 1) != frameLength - HEADER_LENGTH)
+            throw new ProtocolException("Malformed deflated frame");
+        return decode(type, frame, HEADER_LENGTH, frameLength - HEADER_LENGTH);
+    }
+
+    /** {@summary Decode the frame at src's position.}
+     * @return The header and fields of the frame, with src positioned just past it, or null, with src
+     *         untouched, if src doesn't hold the complete frame yet.
+     * @throws ProtocolException If the frame is malformed or exceeds {@link #MAX_PAYLOAD}. */
+    static String[] decode(ByteBuffer src) throws ProtocolException {
+        int len = payloadLength(src);
+        if (len < 0)
+            return null;
+        int start = src.position();
+        int type = src.get(start);
+        // Count the fields first so the result is allocated at its final size.
+        int end = start + HEADER_LENGTH + len, count = 0;
+        for (int pos = start + HEADER_LENGTH; pos < end; ++count) {
+            if (end - pos < 4)
+                throw new ProtocolException("Truncated field length");
+            int fieldLen = src.getInt(pos);
+            if (fieldLen < 0 || fieldLen > end - pos - 4)
+                throw new ProtocolException("Field length " + fieldLen + " out of bounds");
+            pos += 4 + fieldLen;
+        }
+        String[] fields = new String[count + 1];
+        fields[0] = HEADERS[type];
+        src.position(start + HEADER_LENGTH);
+        for (int i = 1; i <= count; ++i) {
+            int fieldLen = src.getInt();
+            if (src.hasArray()) {
+                fields[i] = new String(src.array(), src.arrayOffset() + src.position(), fieldLen,
+                        StandardCharsets.UTF_8);
+                src.position(src.position() + fieldLen);
+            } else {
+                byte[] bytes = new byte[fieldLen];
+                src.get(bytes);
+                fields[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.Inflater;
+
+/**
+ * {@summary Byte-level reader for a connection that may switch from text lines to binary frames.}
+ * Stands in for a {@link java.io.BufferedReader}, which can't be used here because whatever it has
+ * buffered past the last line is already decoded as text, whereas a peer that has just switched to the
+ * binary protocol (see {@link FrameCodec}) may follow its last text line with frames in the same read.
+ * Lines and frames are both framed from one buffer of raw bytes, so a caller can read either at any time.
+ * <p>
+ * {@link #nextLine} and {@link #nextFrame} find the next line or frame in place and expose it as a slice
+ * of {@link #array}, without decoding or copying anything, for callers on the hot path; {@link #readLine},
+ * {@link #readFields} and {@link #readFrame} decode it into strings for everyone else. */
+final class FrameReader {
+    // Upper bound on a text line, excluding its newline. Longer lines are a protocol error.
+    static final int MAX_LINE_LENGTH = 1 << 16;
+
+    private final InputStream in;
+    private final Charset charset;
+    private ByteBuffer buf = ByteBuffer.allocate(8192);
+    // Bytes of the current line scanned without finding its end, so a refill only scans what's new.
+    private int scanned = 0;
+    // The most recently read line or frame payload, as a slice of buf's backing array.
+    private int sliceStart, sliceLength;
+    private byte frameType;
+    // Inflates DEFLATED frames, made when the first one arrives.
+    private Inflater inflater;
+
+    // Text lines are decoded with charset; frames are always UTF-8.
+    FrameReader(InputStream in, Charset charset) {
+        this.in = in;
+        this.charset = charset;
+        buf.flip();
+    }
+
+    // Backing array of the current slice. Only valid until the next read.
+    byte[] array() {
+        return buf.array();
+    }
+
+    int sliceStart() {
+        return sliceStart;
+    }
+
+    int sliceLength() {
+        return sliceLength;
+    }
+
+    // Type of the frame last read by nextFrame.
+    byte frameType() {
+        return frameType;
+    }
+
+    /** {@summary Find the next newline-terminated text line, without its line terminator, in place.}
+     * @return False if the stream ended first, otherwise true with the line as the current slice. */
+    boolean nextLine() throws IOException {
+        while (true) {
+            byte[] data = buf.array();
+            int start = buf.position(), end = buf.limit();
+            for (int i = start + scanned; i < end; ++i) {
+                if (data[i] != '\n')
+                    continue;
+                int len = i - start;
+                if (len > 0 && data[i - 1] == '\r')
+                    --len;
+                // However much of it arrived in one read.
+                if (len > MAX_LINE_LENGTH)
+                    throw new ProtocolException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+                sliceStart = start;
+                sliceLength = len;
+                scanned = 0;
+                buf.position(i + 1);
+                return true;
+            }
+            scanned = end - start;
+            // Leaving room for a carriage return before the newline.
+            if (scanned > MAX_LINE_LENGTH + 1)
+                throw new ProtocolException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+            if (!fill())
+                return false;
+        }
+    }
+
+    /** {@summary Find the next binary frame in place.}
+     * @return False if the stream ended first, otherwise true with the frame's payload as the current
+     *         slice and its type as {@link #frameType}.
+     * @throws ProtocolException If the frame is malformed or too large. */
+    boolean nextFrame() throws IOException {
+        while (true) {
+            int len = FrameCodec.payloadLength(buf);
+            if (len >= 0) {
+                frameType = buf.get(buf.position());
+                sliceStart = buf.position() + FrameCodec.HEADER_LENGTH;
+                sliceLength = len;
+                buf.position(sliceStart + len);
+                return true;
+            }
+            if (!fill())
+                return false;
+        }
+    }
+
+    /** {@summary Read a newline-terminated text line, without its line terminator.}
+     * @return The line, or null if the stream ended first. */
+    String readLine() throws IOException {
+        if (!nextLine())
+            return null;
+        return new String(buf.array(), sliceStart, sliceLength, charset);
+    }
+
+    /** {@summary Read a text line and split it at every delimiter, in a single pass over its bytes.}
+     * Each field is decoded straight from the buffer, so neither the whole line nor any intermediate
+     * list is ever built.
+     * @return The fields of the line, or null if the stream ended first. */
+    String[] readFields(byte delimiter) throws IOException {
+        if (!nextLine())
+            return null;
+        byte[] data = buf.array();
+        int end = sliceStart + sliceLength, count = 1;
+        for (int i = sliceStart; i < end; ++i) {
+            if (data[i] == delimiter)
+                ++count;
+        }
+        String[] fields = new String[count];
+        int start = sliceStart;
+        for (int i = 0; i < count; ++i) {
+            int stop = start;
+            while (stop < end && data[stop] != delimiter)
+                ++stop;
+            fields[i] = new String(data, start, stop - start, charset);
+            start = stop + 1;
+        }
+        return fields;
+    }
+
+    /** {@summary Read one binary frame, inflating it if it is deflated.}
+     * @return The frame's header and fields, as from {@link FrameCodec#decode}, or null if the stream
+     *         ended first. */
+    String[] readFrame() throws IOException {
+        if (!nextFrame())
+            return null;
+        if (frameType != FrameCodec.DEFLATED)
+            return FrameCodec.decode(frameType, buf.array(), sliceStart, sliceLength);
+        if (inflater == null)
+            inflater = new Inflater(true);
+        return FrameCodec.inflate(buf.array(), sliceStart, sliceLength, inflater);
+    }
+
+    // Compacts the buffer and reads more into it, growing it if it is full. Returns false on EOF.
+    private boolean fill() throws IOException {
+        buf.compact();
+        if (!buf.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(buf.capacity() * 2);
+            buf.flip();
+            grown.put(buf);
+            buf = grown;
+        }
+        int n = in.read(buf.array(), buf.position(), buf.remaining());
+        if (n > 0)
+            buf.position(buf.position() + n);
+        buf.flip();
+        return n >= 0;
+    }
+
+    void close() throws IOException {
+        if (inflater != null)
+            inflater.end();
+        in.close();
+    }
+}
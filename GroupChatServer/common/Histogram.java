@@ -0,0 +1,82 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@summary Log-linear histogram of non-negative long values, in the manner of an HDR histogram.}
+ * Values are counted in buckets that double in width every {@link #SUB_BUCKETS} buckets, so any value
+ * is recorded to within about 3% of itself, from nanoseconds up to centuries, in a fixed array of
+ * under two thousand counters. Recording a value is a couple of shifts to find its bucket, then an
+ * increment of the bucket's counter and of the total, and an update of the maximum. All three are
+ * striped across cells, as {@link LongAdder} and {@link LongAccumulator} are, so any number of threads
+ * can record into the same hot bucket without contending on one word. Nothing is summed until the
+ * histogram is read. Used for the server's latency metrics and by the load generator. */
+final class Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final LongAdder[] counts = new LongAdder[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)].increment();
+        total.increment();
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // The smallest value counted in bucket i.
+    static long lowest(int i) {
+        if (i < SUB_BUCKETS)
+            return i;
+        int shift = i / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // The value below which percent of those recorded fall, to within a bucket, or zero if none are.
+    long percentile(double percent) {
+        long count = 0;
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < snapshot.length; ++i) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        // At least the first value, so the 0th percentile is the smallest recorded rather than zero.
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0, max = max();
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(lowest(i), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,511 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@summary Links this server to its peers, so that users on every node share one roster and one set of rooms.}
+ * Each node keeps its own clients and relays what they do, chat, connections, disconnections and room
+ * traffic, to every other node over a TCP link per pair of nodes, in the binary frames of
+ * {@link FrameCodec}. A relayed message is encoded once, as the same frame binary clients are sent,
+ * and every link queues a reference to it; each link's writer thread sends whatever has queued up in
+ * one gathering write, so a busy node costs its peers one write per batch rather than per message.
+ * Messages from one sender reach every node, and so every user, in the order they were sent.
+ * <p>
+ * Usernames are unique across the cluster. A node registers a new user locally as always, skipping names
+ * known to be in use elsewhere, then claims the name from every peer before acknowledging the user. A
+ * peer grants the claim unless the name is in use there, or it is claiming the same name itself and has
+ * the lower node id, and reserves the name for the claimant until it hears of the user. A refused name
+ * is reserved for whoever won it and the user is registered under the next free name instead.
+ * <p>
+ * Nodes are configured with the port they accept links on and the peers they dial; a link only needs
+ * dialing from one end, and a dropped link is redialed with backoff. */
+final class Cluster {
+    // Longest a username claim waits for peers that haven't answered, after which they are taken to agree.
+    static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    // Delay before redialing a peer, doubling on each failed attempt up to the maximum.
+    static final long REDIAL_MILLIS = 250, MAX_REDIAL_MILLIS = 8000;
+    // Most queued frames gathered into a single write to a link.
+    static final int BATCH_SIZE = 64;
+
+    private final GroupChatServer server;
+    private final int nodeId;
+    private final SharedLine.Pool linePool;
+    private final LogSink log;
+    private final int listenPort;
+    private final List<InetSocketAddress> peers;
+    private ServerSocketChannel listener;
+    private volatile boolean closed = false;
+
+    // Established links, by the id of the node at the other end.
+    private final ConcurrentHashMap<Integer, PeerLink> links = new ConcurrentHashMap<Integer, PeerLink>();
+    // Users connected to other nodes, and the link to the node each is on.
+    private final ConcurrentHashMap<String, PeerLink> remoteUsers = new ConcurrentHashMap<String, PeerLink>();
+    // Names granted to, or won by, other nodes' new users that haven't been heard of yet.
+    private final ConcurrentHashMap<String, PeerLink> reserved = new ConcurrentHashMap<String, PeerLink>();
+    // Claims this node is waiting on, by the name claimed.
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+    // Serializes starting a claim with answering one, so two nodes claiming a name always settle it.
+    private final Object claimLock = new Object();
+
+    // A claim for a name from the peers linked when it was made.
+    private static final class Claim {
+        final List<PeerLink> asked;
+        // Peers yet to answer, and whether any has refused, guarded by the claim.
+        private final HashSet<PeerLink> pending;
+        private boolean refused = false;
+
+        Claim(List<PeerLink> asked) {
+            this.asked = asked;
+            pending = new HashSet<PeerLink>(asked);
+        }
+
+        synchronized void answer(PeerLink link, boolean granted) {
+            if (!pending.remove(link))
+                return;
+            refused |= !granted;
+            notifyAll();
+        }
+
+        // Waits until every peer has answered, anyone refuses, or the time is up. Returns whether the
+        // claim stands.
+        synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left = timeoutMillis;
+            while (!refused && !pending.isEmpty() && left > 0) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            return !refused;
+        }
+    }
+
+    Cluster(GroupChatServer server, ServerOptions opts, SharedLine.Pool linePool, LogSink log) {
+        this.server = server;
+        this.nodeId = opts.nodeId;
+        this.linePool = linePool;
+        this.log = log;
+        this.listenPort = opts.clusterPort;
+        this.peers = opts.peers;
+    }
+
+    // Starts accepting links, if there is a port to accept them on, and dialing every configured peer.
+    void start() throws IOException {
+        if (listenPort > 0) {
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(listenPort));
+            daemon(this::accept, "cluster-listener").start();
+        }
+        for (InetSocketAddress peer : peers) {
+            daemon(() -> dial(peer), "cluster-dial-" + peer).start();
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            if (listener != null)
+                listener.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = listener.accept();
+                daemon(() -> new PeerLink(channel).run(), "cluster-link").start();
+            } catch (IOException e) {
+                if (!closed)
+                    log.log(LogSink.Kind.ERROR, null, "Cluster listener failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Keeps a link to peer up for as long as the server runs, redialing with backoff whenever it drops.
+    private void dial(InetSocketAddress peer) {
+        long backoff = REDIAL_MILLIS;
+        while (!closed) {
+            try {
+                // Resolved afresh on every attempt, in case the peer has moved.
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(peer.getHostString(), peer.getPort()));
+                backoff = REDIAL_MILLIS;
+                new PeerLink(channel).run();
+            } catch (IOException | UnresolvedAddressException e) {
+                backoff = Math.min(backoff * 2, MAX_REDIAL_MILLIS);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Whether name is in use, or about to be, on another node.
+    boolean isReserved(String name) {
+        return remoteUsers.containsKey(name) || reserved.containsKey(name);
+    }
+
+    /** {@summary Claim name, already registered locally, for a new user, from every linked node.}
+     * Blocks until every node has answered, or for at most {@link #CLAIM_TIMEOUT_MILLIS}.
+     * @return Whether the user may have the name. If not, it is reserved for whoever has it. */
+    boolean claim(String name) {
+        Claim claim;
+        synchronized (claimLock) {
+            if (isReserved(name))
+                return false;
+            if (links.isEmpty())
+                return true;
+            claim = new Claim(new ArrayList<PeerLink>(links.values()));
+            claims.put(name, claim);
+        }
+        sendAll(claim.asked, "[N_CLAIM]", name);
+        boolean granted;
+        try {
+            granted = claim.await(CLAIM_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            granted = false;
+        }
+        claims.remove(name);
+        if (!granted)
+            sendAll(claim.asked, "[N_RELEASE]", name);
+        return granted;
+    }
+
+    // Relays a frame, as encoded for binary clients, to every other node. Called before the message is
+    // handed to the dispatcher, in the order its sender sent it.
+    void forward(SharedLine frame) {
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    // Relays a direct message to the node the named user is on. Returns false if nobody of that name
+    // is connected to another node.
+    boolean sendDirect(String username, String sender, String message) {
+        PeerLink link = remoteUsers.get(username);
+        if (link == null)
+            return false;
+        SharedLine frame = linePool.encodeFrame(new String[] { "[DM]", username, sender, message });
+        link.send(frame);
+        frame.release();
+        return true;
+    }
+
+    // Appends the names of everyone on other nodes to the roster line roster, each preceded by delimiter.
+    String appendRemoteUsers(String roster, char delimiter) {
+        if (remoteUsers.isEmpty())
+            return roster;
+        StringBuilder sb = new StringBuilder(roster);
+        for (String name : remoteUsers.keySet()) {
+            sb.append(delimiter).append(name);
+        }
+        return sb.toString();
+    }
+
+    // Names of everyone on other nodes.
+    List<String> remoteUsers() {
+        return new ArrayList<String>(remoteUsers.keySet());
+    }
+
+    // Adds the names of the members of room on other nodes to names.
+    void addRoomMembers(String room, List<String> names) {
+        for (PeerLink link : links.values()) {
+            Set<String> members = link.rooms.get(room);
+            if (members != null)
+                names.addAll(members);
+        }
+    }
+
+    private void sendAll(List<PeerLink> targets, String... fields) {
+        SharedLine frame = linePool.encodeFrame(fields);
+        for (PeerLink link : targets) {
+            link.send(frame);
+        }
+        frame.release();
+    }
+
+    /**
+     * {@summary One end of the link to another node.}
+     * The thread that opened or accepted the link reads from it, applying what the other node relays to
+     * this node's clients, while a writer thread of its own drains the frames queued for it. Everything
+     * learnt about the other node's users is forgotten, and their disconnection announced, when the link
+     * drops. */
+    private final class PeerLink implements Runnable {
+        final SocketChannel channel;
+        // Id of the node at the other end, once it has said hello.
+        int peerId = -1;
+        // Frames waiting for the writer, each holding a reference for the link. Sent frames are queued
+        // holding the link's monitor, so a snapshot of the roster goes out in one piece.
+        final LinkedBlockingQueue<SharedLine> outbound = new LinkedBlockingQueue<SharedLine>();
+        Thread writer;
+        volatile boolean linked = false;
+        // The other node's users. Only touched by the reading thread.
+        final HashSet<String> users = new HashSet<String>();
+        // The other node's users in each room they are in. Written by the reading thread; read by
+        // users joining rooms here.
+        final ConcurrentHashMap<String, Set<String>> rooms = new ConcurrentHashMap<String, Set<String>>();
+
+        PeerLink(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void send(SharedLine frame) {
+            if (!linked)
+                return;
+            frame.retain();
+            outbound.add(frame);
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.socket().setTcpNoDelay(true);
+                FrameReader in = new FrameReader(channel.socket().getInputStream(), StandardCharsets.UTF_8);
+                ByteBuffer hello = FrameCodec.encode("[N_HELLO]", Integer.toString(nodeId));
+                while (hello.hasRemaining()) {
+                    channel.write(hello);
+                }
+                String[] reply = in.readFrame();
+                if (reply == null || reply.length != 2 || !reply[0].equals("[N_HELLO]"))
+                    throw new ProtocolException("Expected a hello from the other node");
+                peerId = Integer.parseInt(reply[1]);
+                if (peerId == nodeId)
+                    throw new ProtocolException("Linked to a node with this node's id, " + nodeId);
+                if (links.putIfAbsent(peerId, this) != null)
+                    throw new ProtocolException("Already linked to node " + peerId);
+                writer = daemon(this::drainOutbound, "cluster-writer-" + peerId);
+                writer.start();
+                // From here on everything local is relayed, so a user who connects or joins a room while
+                // the snapshot is taken is at worst announced twice, which the other end ignores, and
+                // one who leaves is either in the snapshot, ahead of their disconnection, or not at all.
+                synchronized (this) {
+                    linked = true;
+                    for (String name : server.localUsernames()) {
+                        sendFrame("[NC]", name);
+                    }
+                    for (String[] membership : server.roomMemberships()) {
+                        sendFrame("[JOIN]", membership[0], membership[1]);
+                    }
+                }
+                log.log(LogSink.Kind.INFO, null, String.format("Linked to node %d at %s.", peerId,
+                        channel.getRemoteAddress()));
+                String[] frame;
+                while (!closed && (frame = in.readFrame()) != null) {
+                    receive(frame);
+                }
+            } catch (IOException | NumberFormatException e) {
+                if (!closed)
+                    log.log(LogSink.Kind.WARN, null, String.format("Link to node %s failed: %s",
+                            (peerId < 0 ? "?" : Integer.toString(peerId)), e.getMessage()));
+            } finally {
+                close();
+                unlink();
+            }
+        }
+
+        // Queues a frame made from fields. Called holding the link's monitor.
+        private void sendFrame(String... fields) {
+            SharedLine frame = linePool.encodeFrame(fields);
+            send(frame);
+            frame.release();
+        }
+
+        private void receive(String[] f) throws ProtocolException {
+            switch (f[0]) {
+                case "[MSG]":
+                    expect(f, 3);
+                    log.log(LogSink.Kind.CHAT, f[1], f[2]);
+                    server.deliver(f);
+                    return;
+                case "[NC]":
+                    expect(f, 2);
+                    PeerLink holder = reserved.remove(f[1]);
+                    if (users.add(f[1])) {
+                        // A local user this node conceded the name to the other node for may not be
+                        // gone quite yet.
+                        if (remoteUsers.putIfAbsent(f[1], this) != null
+                                || (holder != this && server.isLocalUser(f[1])))
+                            log.log(LogSink.Kind.WARN, f[1], "is connected to more than one node.");
+                        log.log(LogSink.Kind.CONNECT, f[1], "node " + peerId);
+                        server.deliverPresence(f[1], true);
+                    }
+                    return;
+                case "[DC]":
+                    expect(f, 2);
+                    reserved.remove(f[1], this);
+                    if (users.remove(f[1]))
+                        forget(f[1]);
+                    return;
+                case "[JOIN]":
+                    expect(f, 3);
+                    if (rooms.computeIfAbsent(f[1], room -> ConcurrentHashMap.newKeySet()).add(f[2]))
+                        server.deliverToRoom(f[1], f);
+                    return;
+                case "[LEAVE]":
+                    expect(f, 3);
+                    Set<String> members = rooms.get(f[1]);
+                    if (members != null && members.remove(f[2])) {
+                        rooms.computeIfPresent(f[1], (room, left) -> (left.isEmpty() ? null : left));
+                        server.deliverToRoom(f[1], f);
+                    }
+                    return;
+                case "[RMSG]":
+                    expect(f, 4);
+                    log.log(LogSink.Kind.CHAT, String.format("%s (%s)", f[2], f[1]), f[3]);
+                    server.deliverToRoom(f[1], f);
+                    return;
+                case "[DM]":
+                    expect(f, 4);
+                    server.deliverTo(f[1], "[DM]", f[2], f[3]);
+                    return;
+                case "[N_CLAIM]":
+                    expect(f, 2);
+                    sendFrame("[N_CLAIMED]", f[1], (grant(f[1]) ? "ok" : "taken"));
+                    return;
+                case "[N_CLAIMED]": {
+                    expect(f, 3);
+                    boolean granted = f[2].equals("ok");
+                    Claim claim = claims.get(f[1]);
+                    if (claim == null)
+                        return;
+                    if (!granted)
+                        reserved.putIfAbsent(f[1], this);
+                    claim.answer(this, granted);
+                    return;
+                }
+                case "[N_RELEASE]":
+                    expect(f, 2);
+                    reserved.remove(f[1], this);
+                    return;
+                default:
+                    throw new ProtocolException("Unexpected frame " + f[0]);
+            }
+        }
+
+        // Decides the other node's claim to name. When both nodes are claiming it, the lower node id wins,
+        // and once this node has conceded the name, the local user it was claimed for is on its way out.
+        private boolean grant(String name) {
+            synchronized (claimLock) {
+                PeerLink holder = reserved.get(name), owner = remoteUsers.get(name);
+                boolean local = (holder != this && server.isLocalUser(name));
+                boolean taken = (claims.containsKey(name) ? nodeId < peerId : local)
+                        || (holder != null && holder != this) || (owner != null && owner != this);
+                if (!taken)
+                    reserved.put(name, this);
+                return !taken;
+            }
+        }
+
+        private void expect(String[] f, int length) throws ProtocolException {
+            if (f.length != length)
+                throw new ProtocolException("Malformed " + f[0] + " frame");
+        }
+
+        // Drops one of the other node's users, who left its rooms along with it, and announces it.
+        private void forget(String name) {
+            remoteUsers.remove(name, this);
+            for (Set<String> members : rooms.values()) {
+                members.remove(name);
+            }
+            rooms.values().removeIf(Set::isEmpty);
+            log.log(LogSink.Kind.DISCONNECT, name, null);
+            server.deliverPresence(name, false);
+        }
+
+        // Forgets everything learnt over the link, once it is closed.
+        private void unlink() {
+            if (peerId < 0 || !links.remove(peerId, this))
+                return;
+            for (String name : users) {
+                forget(name);
+            }
+            users.clear();
+            rooms.clear();
+            reserved.values().removeIf(holder -> holder == this);
+            for (Claim claim : claims.values()) {
+                claim.answer(this, true);
+            }
+            if (!closed)
+                log.log(LogSink.Kind.WARN, null, "Link to node " + peerId + " dropped.");
+        }
+
+        // Writes queued frames in batches of up to BATCH_SIZE, each in a single gathering write.
+        private void drainOutbound() {
+            SharedLine[] lines = new SharedLine[BATCH_SIZE];
+            ByteBuffer[] views = new ByteBuffer[BATCH_SIZE];
+            try {
+                while (!closed) {
+                    int count = 0;
+                    lines[count++] = outbound.take();
+                    SharedLine line;
+                    while (count < BATCH_SIZE && (line = outbound.poll()) != null) {
+                        lines[count++] = line;
+                    }
+                    for (int i = 0; i < count; ++i) {
+                        views[i] = lines[i].view();
+                    }
+                    try {
+                        for (int start = 0; start < count; ) {
+                            channel.write(views, start, count - start);
+                            while (start < count && !views[start].hasRemaining()) {
+                                ++start;
+                            }
+                        }
+                    } finally {
+                        for (int i = 0; i < count; ++i) {
+                            lines[i].release();
+                            lines[i] = null;
+                            views[i] = null;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        synchronized void close() {
+            linked = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (writer != null)
+                writer.interrupt();
+            SharedLine line;
+            while ((line = outbound.poll()) != null) {
+                line.release();
+            }
+        }
+    }
+}
@@ -1,138 +1,831 @@
 /** 
  * @author Burton O Sumner 
  * */
-import javax.swing.*;
-import javax.swing.text.SimpleAttributeSet;
-import javax.swing.text.StyleConstants;
-
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.awt.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.awt.GraphicsEnvironment;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-public class GroupChatServer extends JFrame {
-    // Map of clients connected to server. Maps the client's respective handler thread according to their username.
-    private HashMap<String, ClientHandle> clients = new HashMap<String, ClientHandle>();
+public class GroupChatServer {
+    // Clients connected to the server, each handler keyed by its username: a Roster, whose members live in a
+    // ConcurrentHashMap, so registering or removing one client never holds up any other, and whose
+    // snapshots are shared by every reader until the next join or leave.
+    private final Roster<ClientHandle> clients = new Roster<ClientHandle>(ClientHandle[]::new);
+    // Audience of a room message for a room with nobody in it here.
+    private static final ClientHandle[] NOBODY = new ClientHandle[0];
+    // Rooms that clients have joined, each with its own roster of members, which is all a message to
+    // the room is sent to. A room exists while it has at least one member.
+    private final ConcurrentHashMap<String, Roster<ClientHandle>> rooms = 
+            new ConcurrentHashMap<String, Roster<ClientHandle>>();
     // Queue of messages to dispatch to all clients. ClientHandle instances add messages, read in from
-    // client socket, to the queue and the main thread spends while loop duration sending the messages
-    // to all clients via their respective socket printwriter.
-    private Queue<ServerMessage> outbox = new LinkedList<ServerMessage>();
+    // client socket, to the queue, and the Dispatcher drains it in batches, sending the messages to
+    // all clients. Lock-free, since any number of client threads and event loops produce into it.
+    // Once the bytes in it are over options.outboxMaxBytes, clients' readers pause rather than add to
+    // it, until the dispatcher has drained it back under. Under sustained load it hovers around the cap,
+    // so the outbox filling up is logged at most once per OUTBOX_WARN_NANOS, when last logged being kept
+    // in outboxWarnedAt. Made along with the metrics, which count its depth.
+    private Outbox<ServerMessage> outbox;
+    private final AtomicLong outboxWarnedAt = new AtomicLong(System.nanoTime() - OUTBOX_WARN_NANOS);
+    static final long OUTBOX_WARN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // How long a reader paused by a full outbox waits before checking it again.
+    static final long OUTBOX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Fans messages out of the outbox to every connected client, across options.shards threads.
+    private Dispatcher dispatcher;
     
-    // Text panel window to display status of the server (connections, disconnections, and messages)
-    private JTextPane logs;
-    // Navigable list of users.
-    private JList<String> userList;
+    // Asynchronous pipeline that every connection, disconnection and message is logged through, so
+    // that no thread relaying messages ever waits on a console, a file or the GUI.
+    private LogSink log;
+    // Window showing the connected users and the log. Null when the server runs headless.
+    private ServerWindow window;
 
-    // Nested class instance, ListeningThread, which runs as its own thread and handles incoming
+    // Nested class instance, Listener, which runs on its own thread and handles incoming
     // client connection requests, dispatching new connections to their own ClientHandle thread.
-    private ListeningThread listener;
+    // Null when the server runs in non-blocking (NIO) mode.
+    private Listener listener;
+    // Creates the threads that run the Listener and every SocketClientHandle: platform threads by
+    // default, or virtual threads when the server is started with --virtual.
+    private ThreadFactory threadFactory = Thread::new;
+    // Pool of selector event loops used instead of the listener and per-client threads when the
+    // server runs in non-blocking (NIO) mode. Null in the default thread-per-connection mode.
+    private NioServer nioServer;
+
+    // Links to the other nodes of the cluster, or null when the server runs on its own.
+    private Cluster cluster;
+    // Every chat message relayed, kept on disk for clients to catch up from on connecting, or null
+    // when the server keeps no history.
+    private MessageLog history;
+
+    // Sessions clients can resume after their connection drops, by resume token. A session stays here
+    // from registration until the client is removed for good, whether or not it is connected meanwhile.
+    private final ConcurrentHashMap<String, ClientHandle> sessions = new ConcurrentHashMap<String, ClientHandle>();
+    // Runs the server's timed jobs: ticking timeouts, and working out and writing out the metrics.
+    private ScheduledExecutorService timer;
+    // Every timeout kept per client, ticked by the timer: handshakes taking too long, clients going quiet,
+    // and sessions whose client hasn't reconnected within options.resumeGraceMillis. Its slots span longer
+    // than the default idle timeout, so each tick only ever looks at the timeouts due then.
+    private TimingWheel timeouts;
+    static final long TIMEOUT_TICK_MILLIS = 100;
+    static final int TIMEOUT_SLOTS = 1024;
+    private final SecureRandom tokenSource = new SecureRandom();
+
+    // Command line options the server was started with.
+    private ServerOptions options;
+    // Buffers that each broadcast is encoded into, once, and shared by every recipient's write path.
+    private SharedLine.Pool linePool;
+    // Counters and latency histograms, recorded as the server goes and read over JMX, in the log and by
+    // clients' [STATS] requests, and the name the JMX view of them is registered under.
+    private Metrics metrics;
+    private ObjectName metricsName;
+    // Gathers users connecting and disconnecting into a batch announced once per
+    // options.presenceWindowMillis, or null if each is announced as it happens.
+    private PresenceBatcher<ServerMessage> presence;
 
     // Used by loops as a signal for whether or not to break from loop.
-    private boolean disposeCalled = false;
+    private volatile boolean disposeCalled = false;
     
     // Simple struct-type class that essentially tuples together the sending client via their
     // respective client handle thread, of type ClientHandle, and the actual contents of the
-    // message contents itself, already nicely formatted as <[header field]>\t<arg>\t<arg>\t...
-    // when parameterized in constructor calls
+    // message itself. The fields are kept as given, header first, for the binary protocol, and
+    // contents holds them already nicely formatted as <[header field]>\t<arg>\t<arg>\t... for the
+    // text protocol, with any tab or line break inside an arg replaced by a space.
     private class ServerMessage {
         ClientHandle sender;
+        String[] fields;
         String contents;
-        public ServerMessage(ClientHandle sender, String contents) {
+        // When set, the message is sent to this client alone rather than to everyone but the sender.
+        ClientHandle recipient;
+        // When set, the message is sent to these members of a room but the sender, rather than to everyone.
+        // Taken when the message is sent, so it reaches exactly who was in the room at the time.
+        ClientHandle[] room;
+        // Whether the recipient switches to binary frames for everything sent after this message.
+        boolean upgradesRecipient = false;
+        // The message encoded in each protocol, made by whichever shard first has a recipient speaking
+        // that protocol, and shared by all such recipients.
+        volatile SharedLine text, frame;
+        // The frame deflated, made by whichever shard first has a recipient that agreed to compression
+        // and shared by all such recipients, or the frame itself if deflating doesn't shrink it.
+        volatile SharedLine deflated;
+        // For a chat message relayed straight from the bytes its sender sent, which leaves fields and
+        // contents null: where the body sits inside whichever of text or frame it was read into.
+        int bodyOffset, bodyLength;
+        // Whether the dispatcher wrote the message to the history, so it can be left out for clients
+        // about to be sent it from there.
+        boolean logged = false;
+        // Whether the recipient is sent the history it asked for along with this message: every chat
+        // message up to replayThrough, the last one the dispatcher logged before this message.
+        boolean replaysHistory = false;
+        long replayThrough;
+        // When the message was put in the outbox, in System.nanoTime(), passed on to its encodings.
+        long queuedAt;
+        // Roughly how many bytes the message takes up while in the outbox.
+        int size;
+        // For a [PRESENCE] batch, the [NC] or [DC] for each change in it, which clients that don't take
+        // batches are sent instead, one by one.
+        ServerMessage[] changes;
+
+        public ServerMessage(ClientHandle sender, String... fields) {
+            this.sender = sender;
+            this.fields = fields;
+            // Built in one pass, since rosters and presence batches run to thousands of fields.
+            StringBuilder contents = new StringBuilder(fields[0]);
+            for (int i = 1; i < fields.length; ++i) {
+                contents.append('\t').append(sanitize(fields[i]));
+            }
+            this.contents = contents.toString();
+        }
+
+        // A [MSG] from sender, already built from the bytes it sent, as a binary frame if isFrame and
+        // otherwise as a text line. Takes over the caller's reference to it.
+        public ServerMessage(ClientHandle sender, SharedLine encoded, boolean isFrame, int bodyOffset, int bodyLength) {
             this.sender = sender;
-            this.contents = contents;
+            if (isFrame)
+                frame = encoded;
+            else
+                text = encoded;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+        }
+
+        // Marks the point among everything queued for recipient at which it is sent the history it asked
+        // for, without sending anything itself.
+        public ServerMessage(ClientHandle recipient) {
+            this.sender = recipient;
+            this.recipient = recipient;
+            replaysHistory = true;
+        }
+
+        // Whether this is a chat message meant for everyone, which is what the history holds.
+        boolean isChat() {
+            return recipient == null && room == null && (fields == null || fields[0].equals("[MSG]"));
+        }
+
+        SharedLine encodedFrame() {
+            SharedLine encoded = frame;
+            return (encoded != null ? encoded : encode(true));
+        }
+
+        SharedLine encodedFor(ClientHandle handle) {
+            if (handle.binaryOut && handle.deflates)
+                return encodedDeflated();
+            SharedLine encoded = (handle.binaryOut ? frame : text);
+            return (encoded != null ? encoded : encode(handle.binaryOut));
+        }
+
+        // The frame, deflated unless it is too small to be worth it.
+        SharedLine encodedDeflated() {
+            SharedLine encoded = encodedFrame();
+            if (encoded.length() < options.compressThreshold)
+                return encoded;
+            SharedLine compressed = deflated;
+            return (compressed != null ? compressed : deflate());
+        }
+
+        // Deflates the frame, unless another shard beat us to it.
+        private synchronized SharedLine deflate() {
+            if (deflated == null) {
+                SharedLine compressed = linePool.deflate(frame);
+                if (compressed != null) {
+                    compressed.queuedAt = queuedAt;
+                } else {
+                    // Sent as it is, under a reference of the deflated encoding's own.
+                    compressed = frame;
+                    compressed.retain();
+                }
+                deflated = compressed;
+            }
+            return deflated;
+        }
+
+        // Makes the encoding for one protocol, unless another shard beat us to it.
+        private synchronized SharedLine encode(boolean binary) {
+            if (binary) {
+                if (frame == null) {
+                    frame = (fields != null ? linePool.encodeFrame(fields) 
+                            : linePool.encodeChatFrame(sender.usernameBytes, text, bodyOffset, bodyLength));
+                    frame.queuedAt = queuedAt;
+                }
+                return frame;
+            }
+            if (text == null) {
+                text = (fields != null ? linePool.encode(contents) 
+                        : linePool.encodeChatLine(sender.usernameBytes, frame, bodyOffset, bodyLength));
+                text.queuedAt = queuedAt;
+            }
+            return text;
+        }
+
+
+        // Drops the dispatcher's own references to the encodings; the recipients' queues hold the rest.
+        // Called once every shard is done with the message.
+        void releaseEncodings() {
+            if (text != null)
+                text.release();
+            if (frame != null)
+                frame.release();
+            if (deflated != null)
+                deflated.release();
+            text = frame = deflated = null;
+            if (changes != null) {
+                for (ServerMessage change : changes) {
+                    change.releaseEncodings();
+                }
+            }
+        }
+    }
+
+    // Queues [PRESENCE]\t<number joined>\t<joined username>...\t<left username>... for a batch of presence
+    // changes, which clients that didn't ask for batches are sent as the [NC]s and [DC]s of instead. Chat is
+    // never held up behind it.
+    private void announcePresence(List<ServerMessage> joins, List<ServerMessage> leaves) {
+        String[] fields = new String[2 + joins.size() + leaves.size()];
+        ServerMessage[] changes = new ServerMessage[joins.size() + leaves.size()];
+        fields[0] = "[PRESENCE]";
+        fields[1] = Integer.toString(joins.size());
+        int i = 0;
+        for (ServerMessage change : joins) {
+            changes[i] = change;
+            fields[2 + i++] = change.fields[1];
+        }
+        for (ServerMessage change : leaves) {
+            changes[i] = change;
+            fields[2 + i++] = change.fields[1];
+        }
+        ServerMessage batch = new ServerMessage(null, fields);
+        batch.changes = changes;
+        long now = System.nanoTime();
+        for (ServerMessage change : changes) {
+            change.queuedAt = now;
+        }
+        enqueueMessage(batch, false);
+    }
+
+    // Holds msg, an [NC] or [DC], for the next presence batch, which is announced a window after the first
+    // change since the last one. The timer only ever runs one flush at a time.
+    private void presenceChanged(ServerMessage msg) {
+        if (presence.changed(msg))
+            timer.schedule(() -> presence.flush(this::announcePresence), options.presenceWindowMillis,
+                    TimeUnit.MILLISECONDS);
+    }
+
+    // A client's acceptance of the binary protocol offered in the handshake, as sent on the wire.
+    private static final byte[] PROTOCOL_REPLY = 
+            (FrameCodec.PROTO_OFFER + "\t" + FrameCodec.VERSION).getBytes(StandardCharsets.US_ASCII);
+    // The header a text client escapes a chat line with when it would otherwise start like a request, as
+    // sent on the wire; the text form of a [CHAT] frame.
+    private static final byte[] CHAT_ESCAPE =
+            (FrameCodec.HEADERS[FrameCodec.CHAT] + "\t").getBytes(StandardCharsets.US_ASCII);
+    // Most characters of roster carried by [ACK_CONN], or by any one line following it with the rest, so
+    // that even at three bytes a character, no line of the reply nears the longest line a client reads.
+    static final int MAX_ACK_CHARS = 16 << 10;
+
+    /** {@summary Splits an [ACK_CONN] line into lines of at most about MAX_ACK_CHARS each.}
+     * The acknowledgement keeps its fields before the roster, given as the first prefixLength characters,
+     * and as many users as fit, always at least one. The other users follow as [PRESENCE] batches of joins
+     * for clients that take them, or otherwise one [NC] each, all of them ahead of anything else the client
+     * is sent, so it has the whole roster before the first change to it.
+     * @return The acknowledgement, followed by any lines with the rest of the roster. */
+    static List<String> splitAcknowledgement(String ack, int prefixLength, boolean batchesPresence) {
+        if (ack.length() <= MAX_ACK_CHARS)
+            return List.of(ack);
+        int cut = ack.lastIndexOf('\t', MAX_ACK_CHARS);
+        if (cut <= prefixLength)
+            cut = ack.indexOf('\t', prefixLength + 1);
+        List<String> lines = new ArrayList<String>();
+        lines.add(cut < 0 ? ack : ack.substring(0, cut));
+        if (cut < 0)
+            return lines;
+        String[] rest = ack.substring(cut + 1).split("\t");
+        if (!batchesPresence) {
+            for (String user : rest) {
+                lines.add("[NC]\t".concat(user));
+            }
+            return lines;
+        }
+        for (int from = 0; from < rest.length;) {
+            int to = from, chars = 0;
+            while (to < rest.length && (to == from || chars + rest[to].length() + 1 <= MAX_ACK_CHARS)) {
+                chars += rest[to++].length() + 1;
+            }
+            StringBuilder line = new StringBuilder(chars + 24).append("[PRESENCE]\t").append(to - from);
+            for (int i = from; i < to; ++i) {
+                line.append('\t').append(rest[i]);
+            }
+            lines.add(line.toString());
+            from = to;
         }
+        return lines;
     }
+
+    // Replaces the characters that delimit the text protocol with spaces.
+    static String sanitize(String field) {
+        return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
     // Add client to the list of connected clients and then dispatch a message to the queue alerting
     // all clients of the newly-connected user.
     public void addClient(ClientHandle client) {
-        synchronized (clients) {
-            if (clients.containsKey(client.username)) {
-                int num = 1;
-                String newUname = client.username.concat(Integer.toString(num));
-                // Resolve username collision by appending number to the client-supplied username,
-                // increments number appended until a username that is available is found.
-                while (clients.containsKey(newUname)) {
-                    num++;
-                    newUname = client.username.concat(Integer.toString(num));
-                }
-                // Set client handle's instance variable, userName to the new username after its change.
-                client.username = newUname;
-            }
-            clients.put(client.username, client);
-        }
-        // Reset userList JList GUI component's list data to include the new user.
-        userList.setListData(clients.keySet().toArray(new String[clients.keySet().size()]));
+        // Resolve username collision by appending the next free number for the client-supplied username,
+        // then set client handle's instance variable, username, to the new username after its change.
+        // When clustered, names in use on other nodes are skipped, and the name is then claimed from them
+        // in case another node is registering it at the same moment. Should that node win, the name is
+        // reserved for its user and registering again moves on to the next free one.
+        client.requestedName = client.username;
+        while (true) {
+            client.suffix = clients.register(client.requestedName, client,
+                    (cluster != null ? cluster::isReserved : null));
+            client.username = (client.suffix > 0 ? client.requestedName + client.suffix : client.requestedName);
+            if (cluster == null || cluster.claim(client.username))
+                break;
+            clients.remove(client.username, client, client.requestedName, client.suffix);
+        }
+        client.usernameBytes = client.username.getBytes(StandardCharsets.UTF_8);
+        // A client that can resume is given a token to do so with, and keeps the lines last written to it.
+        if (client.wantsResume && options.resumeGraceMillis > 0) {
+            client.sent = new SharedLine[options.resumeBufferSize];
+            client.resumeToken = newResumeToken();
+            sessions.put(client.resumeToken, client);
+        }
+        // Chat is held back from the moment the client can be sent anything until its history is sent,
+        // which covers everything held back.
+        client.awaitingHistory = client.wantsHistory();
+        client.shard = dispatcher.assign();
+        client.shard.clients.add(client.username, client);
         // Queue in a message to be sent to all clients alerting them of a new connection in order to
         // add their username to their lists of connected users.
-        enqueueMessage(new ServerMessage(client, 
-                "[NC]\t".concat(client.username)), false);
-        logAppend(client.username, Color.BLUE, true);
-        logAppend(" has connected from ", null, false);
-        logAppend(String.format("%s:%d\n", 
+        announce(client, "[NC]");
+        log.log(LogSink.Kind.CONNECT, client.username, String.format("%s:%d", 
                 client.sockAddr.getAddress().toString(), 
-                client.sockAddr.getPort()), Color.CYAN, true);
-    }
-    
-
-    // Essentially a way to add text to the JTextPane in such a way that we can
-    // set the text to be formatted a different color and/or bold/regular.
-    public void logAppend(String text, Color color, boolean bold) {
-        SimpleAttributeSet attr = new SimpleAttributeSet();
-        StyleConstants.setBold(attr, bold);
-        StyleConstants.setForeground(attr, (color==null ? Color.BLACK : color));
-        
-
-
-        logs.setEditable(true);
-        logs.setCaretPosition(logs.getDocument().getLength());
-        logs.setCharacterAttributes(attr, false);
-        logs.replaceSelection(text);
-        logs.setEditable(false);
+                client.sockAddr.getPort()));
+        if (client.wantsHeartbeat && options.heartbeatMillis > 0)
+            timeouts.schedule(client::checkLiveness, options.heartbeatMillis);
     }
     
 
     
-    // Remove client from clients hashmap and then alert all still-connected clients of
+    // Remove client from the clients roster and then alert all still-connected clients of
     // the disconnection.
     public void removeClient(ClientHandle client) {
-        synchronized (clients) {
-            clients.remove(client.username, client);
+        clients.remove(client.username, client, client.requestedName, client.suffix);
+        client.shard.clients.remove(client.username, client);
+        // Leave every room quietly; the [DC] tells its members, along with everyone else.
+        for (String room : client.rooms) {
+            leaveRoom(client, room);
         }
-        enqueueMessage(new ServerMessage(client, 
-                "[DC]\t".concat(client.username)), false);
-        userList.setListData(clients.keySet().toArray(new String[clients.keySet().size()]));
+        client.rooms.clear();
+        announce(client, "[DC]");
+        metrics.disconnects.increment();
         if (disposeCalled)
             return;
-        logAppend(client.username, Color.BLUE, true);
-        logAppend(" has disconnected.\n", null, false);
+        log.log(LogSink.Kind.DISCONNECT, client.username, null);
+    }
+
+    // Tells everyone that client connected, or disconnected, with header [NC] or [DC], either at once or
+    // in the next presence batch. The rest of the cluster is told at once either way, as enqueueMessage
+    // would, so every node always knows exactly who holds which name.
+    private void announce(ClientHandle client, String header) {
+        ServerMessage msg = new ServerMessage(client, header, client.username);
+        if (presence == null) {
+            enqueueMessage(msg, false);
+            return;
+        }
+        if (cluster != null)
+            cluster.forward(msg.encodedFrame());
+        presenceChanged(msg);
+    }
+
+    // 128 random bits, as hex, which only the client they are issued to ever sees.
+    private String newResumeToken() {
+        byte[] bytes = new byte[16];
+        tokenSource.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    // Adds client to the named room, creating it if need be. Returns the room's members, client
+    // included, as of the join, so that joins to the same room see each other in a consistent order.
+    private ClientHandle[] joinRoom(ClientHandle client, String room) {
+        ClientHandle[][] members = new ClientHandle[1][];
+        rooms.compute(room, (name, roster) -> {
+            if (roster == null)
+                roster = new Roster<ClientHandle>(ClientHandle[]::new);
+            roster.add(client.username, client);
+            members[0] = roster.members();
+            return roster;
+        });
+        return members[0];
+    }
+
+    // Removes client from the named room, discarding the room once nobody is left in it. Returns
+    // whoever is left as of the leave, or null if nobody is.
+    private ClientHandle[] leaveRoom(ClientHandle client, String room) {
+        ClientHandle[][] members = new ClientHandle[1][];
+        rooms.computeIfPresent(room, (name, roster) -> {
+            roster.remove(client.username, client);
+            if (roster.size() == 0)
+                return null;
+            members[0] = roster.members();
+            return roster;
+        });
+        return members[0];
+    }
+
+    // Usernames of everyone connected, on other nodes of the cluster too.
+    String[] usernames() {
+        if (cluster == null)
+            return clients.names();
+        List<String> names = cluster.remoteUsers();
+        names.addAll(Arrays.asList(clients.names()));
+        return names.toArray(new String[names.size()]);
+    }
+
+    // Usernames of the clients connected to this node. Shared; don't modify.
+    String[] localUsernames() {
+        return clients.names();
+    }
+
+    boolean isLocalUser(String username) {
+        return clients.get(username) != null;
+    }
+
+    // Every room member on this node, as pairs of room and username.
+    List<String[]> roomMemberships() {
+        List<String[]> memberships = new ArrayList<String[]>();
+        for (Map.Entry<String, Roster<ClientHandle>> room : rooms.entrySet()) {
+            for (String name : room.getValue().names()) {
+                memberships.add(new String[] { room.getKey(), name });
+            }
+        }
+        return memberships;
+    }
+
+    // Sends fields, something that happened on another node of the cluster, to every client.
+    void deliver(String... fields) {
+        enqueueMessage(new ServerMessage(null, fields), false);
+    }
+
+    // Tells every client that a user on another node connected, or disconnected, as deliver would an [NC]
+    // or [DC], unless it is batched along with everyone else's.
+    void deliverPresence(String username, boolean joined) {
+        ServerMessage msg = new ServerMessage(null, (joined ? "[NC]" : "[DC]"), username);
+        if (presence != null)
+            presenceChanged(msg);
+        else
+            enqueueMessage(msg, false);
+    }
+
+    // As above, to the members of room on this node.
+    void deliverToRoom(String room, String... fields) {
+        Roster<ClientHandle> members = rooms.get(room);
+        if (members == null)
+            return;
+        ServerMessage msg = new ServerMessage(null, fields);
+        msg.room = members.members();
+        enqueueMessage(msg, false);
+    }
+
+    // As above, to the client with the given username, if it is connected to this node.
+    void deliverTo(String username, String... fields) {
+        ClientHandle recipient = clients.get(username);
+        if (recipient == null)
+            return;
+        ServerMessage msg = new ServerMessage(null, fields);
+        msg.recipient = recipient;
+        enqueueMessage(msg, false);
+    }
+
+    // Number of lines queued for the named client, or zero if nobody by that name is connected.
+    int queueDepth(String username) {
+        ClientHandle handle = clients.get(username);
+        return (handle == null ? 0 : handle.queueDepth());
+    }
+
+    // Number of lines queued for each connected client.
+    private int[] queueDepths() {
+        ClientHandle[] handles = snapshotClients();
+        int[] depths = new int[handles.length];
+        for (int i = 0; i < handles.length; ++i) {
+            depths[i] = handles[i].queueDepth();
+        }
+        return depths;
+    }
+
+    // Takes a snapshot of the currently connected clients, which callers can go on to do socket I/O
+    // with while the roster changes under them. The array is shared by every caller until the roster
+    // next changes; don't modify it.
+    private ClientHandle[] snapshotClients() {
+        return clients.members();
     }
 
     public void enqueueMessage(ServerMessage msg, boolean echoToLog) {
+        // A message relayed as bytes is already encoded, so its encoding is stamped here too.
+        msg.queuedAt = System.nanoTime();
+        if (msg.text != null)
+            msg.text.queuedAt = msg.queuedAt;
+        if (msg.frame != null)
+            msg.frame.queuedAt = msg.queuedAt;
+        // Only client chat messages are echoed. They are logged before being handed over, since the
+        // dispatcher releases their encodings once sent; a message relayed as bytes is logged by reference.
+        if (echoToLog) {
+            // The message is the last field; room messages name the room the sender said it in.
+            if (msg.fields != null)
+                log.log(LogSink.Kind.CHAT, (msg.room == null ? msg.sender.username
+                        : String.format("%s (%s)", msg.sender.username, msg.fields[1])),
+                        msg.fields[msg.fields.length - 1]);
+            else
+                log.chat(msg.sender.username, (msg.text != null ? msg.text : msg.frame),
+                        msg.bodyOffset, msg.bodyLength);
+        }
+        // Anything a local client does that isn't meant for one client alone is relayed to the rest of
+        // the cluster, as the frame binary clients here are sent too.
+        if (cluster != null && msg.sender != null && msg.recipient == null)
+            cluster.forward(msg.encodedFrame());
+        msg.size = (msg.contents != null ? msg.contents.length()
+                : msg.text != null ? msg.text.length() : msg.frame != null ? msg.frame.length() : 0);
         outbox.add(msg);
-        if (!echoToLog)
-            return;
-        // else: must be a client chat message.
-        logAppend(msg.sender.username + ": ", Color.BLUE, true);
-        logAppend(msg.contents.split("\t")[2] + "\n", null, false);
     }
 
     /** 
-     * {@summary Listening socket handler thread.}
-     * A Thread subclass that handles incoming connection requests via a listening 
-     * socket ({@link ServerSocket}) */
-    private class ListeningThread extends Thread {
+     * {@summary Broadcast stage that relays every message in the {@link #outbox} to its recipients.}
+     * The dispatcher thread parks while the outbox is empty and is unparked as soon as a producer adds a
+     * message, then drains up to {@link Outbox#BATCH_SIZE} messages per pass and hands the batch to every
+     * {@link Shard}. Connected clients are partitioned across the shards, each of which
+     * fans the batch out to its own clients on a thread of its own, so a broadcast is queued for all
+     * clients by every core at once. The dispatcher itself does the work of the first shard, so with a
+     * single shard nothing is handed between threads at all.
+     * <p>
+     * Batches reach every shard in the order they were drained, and a client only ever has lines queued
+     * by its own shard, so each client receives every message in outbox order, and in particular each
+     * sender's messages in the order they were sent. Each message is encoded at most once per protocol
+     * into a {@link SharedLine} that every recipient's queue shares a reference to, whichever shard
+     * needs it first, and the encodings are released by whichever shard finishes with the batch last. */
+    private class Dispatcher implements Runnable {
+        Thread thread = new Thread(this, "dispatcher");
+        // The first is run by the dispatcher thread itself; the rest by threads of their own.
+        final Shard[] shards;
+        // Spreads newly registered clients evenly across the shards.
+        final AtomicInteger nextShard = new AtomicInteger();
+
+        Dispatcher(int shardCount) {
+            shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; ++i) {
+                shards[i] = new Shard(i);
+            }
+        }
+
+        public void start() {
+            thread.start();
+            for (int i = 1; i < shards.length; ++i) {
+                shards[i].thread.start();
+            }
+        }
+
+        public void exit() {
+            LockSupport.unpark(thread);
+            for (int i = 1; i < shards.length; ++i) {
+                shards[i].wake();
+            }
+        }
+
+        // Hands every chat message drained to the history, in the order they are relayed, and notes for
+        // each client due its history how far the history then went.
+        private void logHistory(ServerMessage[] drained) {
+            for (ServerMessage msg : drained) {
+                if (msg.replaysHistory)
+                    msg.replayThrough = history.lastSequence();
+                else if (msg.isChat())
+                    msg.logged = (history.append(msg.encodedFrame()) >= 0);
+            }
+        }
+
+        // Picks the shard a newly registered client is served by for as long as it stays connected.
+        Shard assign() {
+            return shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)];
+        }
+
+        @Override
+        public void run() {
+            while (!disposeCalled) {
+                ServerMessage[] drained = outbox.poll();
+                if (drained == null) {
+                    outbox.await(() -> disposeCalled);
+                    continue;
+                }
+                if (history != null)
+                    logHistory(drained);
+                Batch batch = new Batch(drained, shards.length);
+                for (int i = 1; i < shards.length; ++i) {
+                    shards[i].hand(batch);
+                }
+                shards[0].fanOut(batch);
+            }
+        }
+    }
+
+    // One pass's worth of messages, as handed to every shard.
+    private static final class Batch {
+        final ServerMessage[] messages;
+        // Shards yet to finish with the batch.
+        final AtomicInteger remaining;
+
+        Batch(ServerMessage[] messages, int shards) {
+            this.messages = messages;
+            remaining = new AtomicInteger(shards);
+        }
+    }
+
+    /** 
+     * {@summary One partition of the connected clients, and the thread that queues messages for them.}
+     * Every registered client belongs to exactly one shard, which is the only thread that ever queues
+     * lines for it. That makes the shard the place a client's outbound protocol is switched, so that the
+     * switch lands at an exact point in its queue, and lets it flush only the clients a batch actually
+     * queued lines for, so room and direct messages cost in proportion to their audience rather than
+     * to the number of connected clients. */
+    private class Shard implements Runnable {
+        // Longest a shard waits for the history to catch up with a client's replay point.
+        static final long REPLAY_WAIT_MILLIS = 1000;
+
+        final int index;
+        // Null for the first shard, which the dispatcher thread runs itself.
+        Thread thread;
+        // The clients this shard serves.
+        final Roster<ClientHandle> clients = new Roster<ClientHandle>(ClientHandle[]::new);
+        // Batches handed over by the dispatcher, in the order it drained them.
+        final ConcurrentLinkedQueue<Batch> inbox = new ConcurrentLinkedQueue<Batch>();
+        // Set by the shard just before it parks, as for the dispatcher.
+        final AtomicBoolean parked = new AtomicBoolean(false);
+        // Clients queued lines for in the current batch, each marked with flushPending.
+        final ArrayList<ClientHandle> touched = new ArrayList<ClientHandle>();
+
+        Shard(int index) {
+            this.index = index;
+            if (index > 0)
+                thread = new Thread(this, "dispatcher-" + index);
+        }
+
+        void hand(Batch batch) {
+            inbox.add(batch);
+            wake();
+        }
+
+        void wake() {
+            if (parked.get() && parked.compareAndSet(true, false))
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (!disposeCalled) {
+                Batch batch = inbox.poll();
+                if (batch != null) {
+                    fanOut(batch);
+                    continue;
+                }
+                parked.set(true);
+                if (inbox.isEmpty() && !disposeCalled)
+                    LockSupport.park(this);
+                parked.set(false);
+            }
+        }
+
+        // Send every message in the batch to its recipients among this shard's clients, except the
+        // actual initial sender client that is specified in the ServerMessage. The snapshot is taken
+        // after the batch is drained, so a client is always present for its own [NC] broadcast, and only
+        // if the batch holds a broadcast at all.
+        void fanOut(Batch batch) {
+            ClientHandle[] everyone = null;
+            for (int i = 0; i < batch.messages.length; ++i) {
+                ServerMessage msg = batch.messages[i];
+                if (msg.recipient != null) {
+                    ClientHandle recipient = msg.recipient;
+                    if (recipient.shard != this)
+                        continue;
+                    // A history marker carries no message of its own.
+                    if (msg.fields != null)
+                        recipient.sendLine(msg.encodedFor(recipient));
+                    if (msg.upgradesRecipient)
+                        recipient.binaryOut = true;
+                    if (msg.replaysHistory)
+                        replayHistory(recipient, msg.replayThrough);
+                    touch(recipient);
+                } else if (msg.room != null) {
+                    // Room members aren't partitioned by shard, so each shard picks out its own.
+                    for (ClientHandle handle : msg.room) {
+                        if (handle.shard == this) {
+                            handle.sendMessage(msg);
+                            touch(handle);
+                        }
+                    }
+                } else {
+                    if (everyone == null)
+                        everyone = clients.members();
+                    for (ClientHandle handle : everyone) {
+                        handle.sendMessage(msg);
+                        touch(handle);
+                    }
+                }
+            }
+            // Everything from this batch is queued, so let each client write it out in one go.
+            for (ClientHandle handle : touched) {
+                handle.flushPending = false;
+                handle.flushQueued();
+            }
+            touched.clear();
+            if (batch.remaining.decrementAndGet() == 0) {
+                for (int i = 0; i < batch.messages.length; ++i) {
+                    batch.messages[i].releaseEncodings();
+                }
+            }
+        }
+
+        // Queues the client the history it asked for, up to through, in whichever protocol it now speaks,
+        // then stops holding its chat back. Frames are queued as the very bytes in the history's mapped
+        // files; text lines are built from them.
+        private void replayHistory(ClientHandle client, long through) {
+            if (!history.awaitWritten(through, REPLAY_WAIT_MILLIS))
+                log.log(LogSink.Kind.WARN, client.username, "was sent a partial history; the history writer fell behind.");
+            history.replay(through, Math.min(client.historyCount, options.queueCapacity), record -> {
+                SharedLine frame = SharedLine.wrap(record);
+                SharedLine line = frame;
+                if (!client.binaryOut) {
+                    line = linePool.relaysBytes() ? linePool.encodeChatLine(frame) : decodeChatLine(record);
+                    frame.release();
+                }
+                if (line != null) {
+                    client.sendLine(line);
+                    line.release();
+                }
+            });
+            client.awaitingHistory = false;
+        }
+
+        // Builds the text line for a [MSG] frame when the text protocol's charset isn't UTF-8.
+        private SharedLine decodeChatLine(ByteBuffer record) {
+            try {
+                String[] fields = FrameCodec.decode(record.duplicate());
+                return linePool.encode(String.format("[MSG]\t%s\t%s", fields[1], sanitize(fields[2])));
+            } catch (ProtocolException e) {
+                return null;
+            }
+        }
+
+        private void touch(ClientHandle handle) {
+            if (!handle.flushPending) {
+                handle.flushPending = true;
+                touched.add(handle);
+            }
+        }
+    }
+
+    /** 
+     * {@summary Listening socket handler.}
+     * A Runnable, run on a thread from {@link #threadFactory}, that handles incoming connection
+     * requests via a listening socket ({@link ServerSocket}) */
+    private class Listener implements Runnable {
         ServerSocket listenerSocket;
-        boolean shouldExit;
+        volatile boolean shouldExit;
+        Thread thread;
 
         
-        public ListeningThread(int portNumber) throws IOException {
-            super();
+        public Listener(int portNumber) throws IOException {
             listenerSocket = new ServerSocket(portNumber);
             shouldExit = false;
         }
 
+        public void start() {
+            thread = threadFactory.newThread(this);
+            thread.start();
+        }
+
         public void exit() {
             shouldExit = true;
             try { 
@@ -140,7 +833,7 @@ public class GroupChatServer extends JFrame {
             } catch (IOException e) { 
                 e.printStackTrace(); 
             }
-            interrupt();
+            thread.interrupt();
         }
         
         @Override
@@ -150,10 +843,14 @@ public class GroupChatServer extends JFrame {
                     Socket sock = listenerSocket.accept();
                     if (sock == null || !sock.isConnected() || sock.isClosed())
                         continue;
-                    ClientHandle client = new ClientHandle(sock);
-                    client.start();
+                    metrics.accepts.increment();
+                    SocketClientHandle client = new SocketClientHandle(sock);
+                    client.thread = threadFactory.newThread(client);
+                    client.thread.start();
+                    client.watchHandshake();
                 } catch (IOException e) {
-                    logAppend(e.getMessage(), null, true);
+                    if (!shouldExit)
+                        log.log(LogSink.Kind.ERROR, null, e.getMessage());
                     continue;
                 }
             }
@@ -167,181 +864,1576 @@ public class GroupChatServer extends JFrame {
 
 
     /** 
-     * {@summary Thread subtype that essentially establishes the connection by exchanging first-pass details 
-     * and then acts as a socket input reader using {@link BufferedReader} that reads from client socket.}*/
-    private class ClientHandle extends Thread {
+     * {@summary Base type for a connected client, independent of how its socket is serviced.}
+     * Holds the registered username and remote address used by {@link #addClient} and
+     * {@link #removeClient}, and the outbound half of the protocol; subclasses supply the actual
+     * transport, either a dedicated blocking reader thread ({@link SocketClientHandle}) or a
+     * selector event loop ({@link NioClientHandle}). */
+    private abstract class ClientHandle {
         String username;
         InetSocketAddress sockAddr;
-        BufferedReader sockIn;
-        PrintWriter sockOut;
-        Socket socket;
-        boolean shouldExit = false;
-
-        public ClientHandle(Socket socket) {
-            this.socket = socket;
-        }
+        volatile boolean shouldExit = false;
+        // Lines waiting to be written to this client, up to options.queueCapacity of them before its
+        // overflow policy kicks in.
+        final OutboundQueue outbound = new OutboundQueue(options.queueCapacity, options.overflowPolicy);
+        // Whether the client has been offered the binary protocol and its reply is the next line due.
+        boolean awaitingProtocolReply = false;
+        // Whether the client sends binary frames. Only touched by the thread reading from the client.
+        boolean binaryIn = false;
+        // Whether lines queued for the client are binary frames. Only touched by its shard.
+        boolean binaryOut = false;
+        // The registered username as UTF-8, for building the [MSG]s relayed from this client.
+        byte[] usernameBytes;
+        // The username as the client asked for it, and the suffix appended to make it unique, or zero.
+        String requestedName;
+        int suffix = 0;
+        // Rooms the client has joined. Only touched by the thread reading from the client.
+        HashSet<String> rooms = new HashSet<String>();
+        // The dispatcher shard that queues every line for the client, from registration on.
+        Shard shard;
+        // Whether the shard has queued lines for the client in its current batch. Only touched by
+        // the shard.
+        boolean flushPending = false;
+        // Number of the most recent chat messages the client asked, in its handshake, to be sent.
+        int historyCount = 0;
+        // Whether chat logged to the history is held back from the client until the history it asked
+        // for, which covers it, is sent. Only touched by its shard once the client is registered.
+        boolean awaitingHistory = false;
+        // Whether the client asked, in its handshake, for a token to resume its session with.
+        boolean wantsResume = false;
+        // Whether the client asked, in its handshake, for compression, and whether it was agreed to, in
+        // which case large frames are sent to it deflated.
+        boolean wantsDeflate = false;
+        boolean deflates = false;
+        // The token the client resumes its session with should its connection drop, or null if it can't.
+        String resumeToken;
+        // Whether the connection has dropped and the session is waiting, still registered, to be resumed.
+        // Whoever sets it back to false, by resuming or ending the session, owns the session from then on.
+        final AtomicBoolean detached = new AtomicBoolean(false);
+        // Number of times the connection has dropped, so a grace period only ever ends the detachment it
+        // was started for.
+        volatile int detachments = 0;
+        // The last lines taken off the outbound queue to be written, by the number they were written as,
+        // modulo its length, each holding a reference of the ring's own; sentCount lines have been written
+        // in all. Every line the client is sent is numbered by its position in the stream, so a client
+        // resuming says how many it received, and is sent the rest again from here. Null unless the client
+        // can resume, and only touched by whichever thread writes to the client.
+        SharedLine[] sent;
+        long sentCount = 0;
+        // Number of the first line in sent still to be written again after the client resumed.
+        long resendFrom = Long.MAX_VALUE;
+        // When the connection was accepted, in System.nanoTime(), for timing the handshake.
+        final long acceptedAt = System.nanoTime();
+        // The client's rate limits, on messages and on bytes, or null where there is none.
+        final TokenBucket messageBucket = (options.messageRate > 0
+                ? new TokenBucket(options.messageRate, options.messageRate * options.rateBurstSeconds) : null);
+        final TokenBucket byteBucket = (options.byteRate > 0
+                ? new TokenBucket(options.byteRate, options.byteRate * options.rateBurstSeconds) : null);
+        // When reading from the client may carry on, having gone over a rate limit, in System.nanoTime().
+        // Whether the client was over a limit when last charged, or was held up by a full outbox when last
+        // checked, so each episode is logged and counted once. Only touched by the thread reading from
+        // the client.
+        long readableAt = acceptedAt;
+        boolean throttled = false, stalled = false;
+        // Whether the client asked, in its handshake, to be pinged when it goes quiet, and so to be
+        // dropped when it stops answering.
+        boolean wantsHeartbeat = false;
+        // Whether the client asked, in its handshake, to be sent presence changes as [PRESENCE] batches
+        // rather than as [NC]s and [DC]s.
+        boolean batchesPresence = false;
+        // Whether the first line has been read from the connection, whatever it was.
+        volatile boolean handshaken = false;
+        // When the server last heard from the client, or until when it isn't reading from it, in
+        // System.nanoTime().
+        volatile long lastHeard = acceptedAt;
+        // Whether the client has been removed for good.
+        volatile boolean ended = false;
 
         public void sendMessage(ServerMessage msg) {
-            if (msg.sender.equals(this))
+            if (equals(msg.sender) || (awaitingHistory && msg.logged))
+                return;
+            if (msg.changes != null && !batchesPresence) {
+                for (ServerMessage change : msg.changes) {
+                    sendMessage(change);
+                }
                 return;
-            sockOut.println(msg.contents);
+            }
+            sendLine(msg.encodedFor(this));
         }
-        
+
+        boolean wantsHistory() {
+            return history != null && historyCount > 0;
+        }
+
         public boolean equals(ClientHandle other) {
-            return other.username.equals(username) && other.socket.equals(socket);
+            return other == this;
         }
 
-        public void exit() {
-            shouldExit = true;
-            try {
-                socket.close();
-                sockIn.close();
-                sockOut.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-            interrupt();
+        // Number of lines queued for this client but not yet written to its socket.
+        public int queueDepth() {
+            return outbound.size();
         }
-        @Override
-        public void run() {
-            try {
-                sockOut = new PrintWriter(socket.getOutputStream(), true);
-                sockIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                String s = sockIn.readLine();
-                if (s == null) {
-                    return;
-                }
-                String[] split = s.split("\t");
-                if (split==null || split.length!=2 || !split[0].equals("[UNAME]")) {
-                    System.err.println("\033[1;31m[Client Connection Error]:\033[0m " + 
-                            "Malformed data from client during connection handshake.");
-                    return;
-                }
-                username = split[1];
-                sockAddr = ((InetSocketAddress) (socket.getRemoteSocketAddress()));
-            } catch (IOException e) {
-                e.printStackTrace();
+
+        // Queue an encoded protocol line to be written to the client, applying the configured overflow
+        // policy if the client has fallen too far behind. Takes a reference to the line of its own.
+        void sendLine(SharedLine line) {
+            OutboundQueue.Offer result = outbound.offer(line);
+            if (result == OutboundQueue.Offer.LAGGING || result == OutboundQueue.Offer.DISCONNECT)
+                log.log(LogSink.Kind.WARN, username, String.format("is lagging behind (%d lines queued, policy: %s).",
+                        outbound.capacity(), options.overflowPolicy));
+            if (result == OutboundQueue.Offer.DISCONNECT)
+                exit();
+        }
+
+        // Empties the outbound queue, releasing the lines it held.
+        void clearOutbound() {
+            outbound.clear();
+        }
+
+        // Keeps a line just taken off the outbound queue for writing, in case the client resumes without
+        // having received it.
+        void recordSent(SharedLine line) {
+            if (sent == null)
                 return;
-            }
-            addClient(this);
-            // Acknowledgement message signals to client that the client has been officially added to the server
-            // and also signals their new username if it had to be modified to satisfy uniqueness requirement,
-            // and also contains the name of all users connected to the server as tab-delimited args in the ACK_CONN
-            // message to be sent to the client.
-            // Fmt: [ACK_CONN]\t<their registered username>\t<connected client username>\t<connected client username>\t<...>
-            String acknowledgementMsg = "[ACK_CONN]\t".concat(username);
-            synchronized (clients) {
-                java.util.Collection<ClientHandle> clientHandles = clients.values();
-                for (ClientHandle handle : clientHandles) {
-                    acknowledgementMsg = String.format("%s\t%s", acknowledgementMsg, handle.username);
-                }
-            }
-            sockOut.println(acknowledgementMsg);
-            try {
-                while (!shouldExit) {
-                    String msg = sockIn.readLine();
-                    if (msg == null) {
-                        break;
-                    }
-                    msg = msg.replaceAll("\t", " "); 
-                    enqueueMessage(new ServerMessage(this, 
-                            String.format("[MSG]\t%s\t%s", username, msg)), true);
-                    continue;       
-                }
-                socket.close();
-                sockOut.close();
-                sockIn.close();
-            } catch (IOException e) {
-                System.out.println("[Client: " + username + "]: " + e.getMessage());
-            }
-            removeClient(this);
+            line.retain();
+            int slot = (int) (sentCount % sent.length);
+            if (sent[slot] != null)
+                sent[slot].release();
+            sent[slot] = line;
+            ++sentCount;
         }
-    }
 
-    // Establishes the GUI and the listening socket, as well as pretty much all primary object instances.
-    public GroupChatServer(int portNo) {
-        super(String.format("Group Chat Server Hosted On Port %d", portNo));
-        setSize(1280, 720);
-        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        Container root = getContentPane();
-        root.setLayout(new BoxLayout(root, BoxLayout.PAGE_AXIS));
-        userList = new JList<String>();
-        logs = new JTextPane();
-        logs.setEditable(false);
-        JScrollPane uListWrapper = new JScrollPane(userList),
-                    logsWrapper = new JScrollPane(logs);
-        logsWrapper.setHorizontalScrollBarPolicy(
-            JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-
-        logsWrapper.setVerticalScrollBarPolicy(
-            JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
-
-        uListWrapper.setHorizontalScrollBarPolicy(
-            JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-
-        uListWrapper.setVerticalScrollBarPolicy(
-            JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
-
-        JSplitPane splitView = new JSplitPane(JSplitPane.VERTICAL_SPLIT, uListWrapper, logsWrapper);
-        root.add(splitView);
-        try {
-            listener = new ListeningThread(portNo);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+        // The line written as number seq, which must still be kept in sent.
+        SharedLine sentLine(long seq) {
+            return sent[(int) (seq % sent.length)];
         }
-        listener.start();
-        setVisible(true);
-    }
 
-    // Override dispose method from superclass, JFrame, in order to make it close all connections cleanly
-    // and then interrupt the listening thread and all client handle threads before exiting. That way all
-    // sockets are closed cleanly, all before finally calling the superclass's dispose method implementation
-    // in order to close and clean up all of the GUI stuff.
-    @Override
-    public void dispose() {
-        disposeCalled = true;
-        listener.exit();
-        synchronized (clients) {
-            for (ClientHandle handle : clients.values()) {
-                handle.exit();
+        // Releases every line kept for resuming.
+        void clearSent() {
+            if (sent == null)
+                return;
+            for (int i = 0; i < sent.length; ++i) {
+                if (sent[i] != null)
+                    sent[i].release();
+                sent[i] = null;
             }
         }
-        super.dispose();
-    }
 
-    public static void main(String[] args) {
-        int port = 0;
-        if (args.length != 1) {
-            System.err.println("\033[1;31m[Error]:\033[0m Invalid arg count." + 
-                    "\033[1;34m[Usage]:\033[0m java GroupChatServer <port number>");
+        /** {@summary Holds the session open, rather than removing the client, once its connection drops.}
+         * Called by the thread that was reading from the client, once nothing is writing to it any more.
+         * The client stays registered, and lines keep being queued for it, until it resumes or
+         * {@link ServerOptions#resumeGraceMillis} passes, whereupon it is removed as usual.
+         * @return False if the session can't be resumed, in which case the caller removes the client. */
+        boolean detach() {
+            if (resumeToken == null || shouldExit || disposeCalled)
+                return false;
+            int detachment = ++detachments;
+            detached.set(true);
+            log.log(LogSink.Kind.INFO, null, String.format("%s lost its connection; holding its session for %d s.",
+                    username, options.resumeGraceMillis / 1000));
+            timeouts.schedule(() -> {
+                if (detachments == detachment && detached.compareAndSet(true, false))
+                    endSession();
+            }, options.resumeGraceMillis);
+            return true;
         }
-        try {
-            port = Integer.parseInt(args[0]);
-        } catch (NumberFormatException e) {
-            System.err.println("Invalid port number arg: " + e.getMessage());
-            System.exit(1);
+
+        // Removes the client for good, once it is known not to be coming back.
+        void endSession() {
+            ended = true;
+            if (resumeToken != null)
+                sessions.remove(resumeToken, this);
+            removeClient(this);
+            clearOutbound();
+            clearSent();
         }
-        GroupChatServer server = new GroupChatServer(port);
-        
-        while (!server.disposeCalled) {
-            if (server.outbox.peek()==null) try {
-                Thread.sleep(16);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+
+        /** {@summary Takes the detached session over for a connection resuming it.}
+         * @return False if the session is no longer waiting to be resumed, or if the new connection can't
+         *         pick up exactly where the old one left off, in which case the session is ended. */
+        boolean claim(ResumeRequest request) {
+            if (!detached.compareAndSet(true, false))
+                return false;
+            // Lines the client missed must all still be kept, and it must be speaking the protocol the
+            // server reads, or have accepted the binary one since the server last heard from it.
+            boolean accepted = request.binary && !binaryIn && awaitingProtocolReply;
+            if (request.received > sentCount || request.received < sentCount - sent.length
+                    || (request.binary != binaryIn && !accepted)) {
+                log.log(LogSink.Kind.WARN, username, "was unable to resume its session.");
+                endSession();
+                return false;
             }
-            // else: Messages to send to all connected clients are in queue. So,
-            // dequeue them and then send them to all clients except the actual
-            // initial sender client that is specified in the ServerMessage
-            // dequeued.
-            ServerMessage msg = server.outbox.poll();
-            if (msg==null) continue;
-            synchronized (server.clients) {
-                for (ClientHandle handle : server.clients.values()) {
-                    handle.sendMessage(msg);
-                }
+            resendFrom = request.received;
+            lastHeard = System.nanoTime();
+            if (accepted) {
+                awaitingProtocolReply = false;
+                acceptBinaryProtocol();
             }
+            log.log(LogSink.Kind.INFO, null, String.format("%s resumed its session; %d lines sent again.",
+                    username, sentCount - request.received));
+            return true;
+        }
+
+        // Logs a problem with the client's connection, described by what as it would follow its username,
+        // or as it would follow "A client" before the handshake has given it one. Never blocks, whichever
+        // thread it is called from.
+        void warn(String what) {
+            log.log(LogSink.Kind.WARN, username, (username == null ? "A client " + what : what));
         }
-    }
-}
 
+        // Drops the connection the session is attached to, so that a new one can resume it, should the
+        // client have reconnected before the server noticed the old connection was gone.
+        abstract void dropConnection();
+
+        // Drops the connection from any thread, whereupon the transport removes the client, or holds its
+        // session open, as it does for any connection that drops.
+        abstract void disconnect();
+
+        // Closes the connection should it not have sent its handshake in time. Called at accept.
+        void watchHandshake() {
+            if (options.handshakeTimeoutMillis <= 0)
+                return;
+            timeouts.schedule(() -> {
+                if (handshaken)
+                    return;
+                metrics.handshakeTimeouts.increment();
+                log.log(LogSink.Kind.INFO, null, String.format("A connection sent no handshake within %d s; closing it.",
+                        options.handshakeTimeoutMillis / 1000));
+                disconnect();
+            }, options.handshakeTimeoutMillis);
+        }
+
+        // Pings the client once it has been quiet for options.heartbeatMillis, and drops it once it has been
+        // quiet for options.idleTimeoutMillis, rescheduling itself for whichever is next until the client is
+        // removed. Run on the timeouts wheel.
+        void checkLiveness() {
+            if (ended || shouldExit)
+                return;
+            long now = System.nanoTime();
+            long quietMillis = TimeUnit.NANOSECONDS.toMillis(now - lastHeard);
+            if (detached.get()) {
+                // Nothing is listening for a ping; the grace period decides the session's fate instead.
+                timeouts.schedule(this::checkLiveness, options.heartbeatMillis);
+            } else if (quietMillis >= options.idleTimeoutMillis) {
+                metrics.idleTimeouts.increment();
+                log.log(LogSink.Kind.INFO, null, String.format("%s hasn't been heard from in %d s; dropping it.",
+                        username, quietMillis / 1000));
+                disconnect();
+            } else if (quietMillis >= options.heartbeatMillis) {
+                sendTo(this, "[PING]", Long.toString(now));
+                timeouts.schedule(this::checkLiveness,
+                        Math.min(options.heartbeatMillis, options.idleTimeoutMillis - quietMillis));
+            } else {
+                timeouts.schedule(this::checkLiveness, options.heartbeatMillis - Math.max(quietMillis, 0));
+            }
+        }
+
+        // Called by the dispatcher at the end of each pass, once everything the pass sent to this client
+        // has been queued, so the transport can coalesce all of it into as few writes as possible.
+        abstract void flushQueued();
+
+        public abstract void exit();
+
+        // Builds the handshake reply sent once the client has been registered via addClient: the
+        // acknowledgement, and any lines with the rest of a roster too long for it, followed by the offer
+        // of the binary protocol unless it is disabled. Any history the client asked for follows its reply
+        // to the offer, so it is sent in the protocol the client settles on, or follows the acknowledgement
+        // straight away if there is no offer.
+        String handshakeReply() {
+            List<String> lines = splitAcknowledgement(acknowledgementMessage(), acknowledgementPrefix().length(),
+                    batchesPresence);
+            StringBuilder reply = new StringBuilder(lines.get(0));
+            // Every line after the acknowledgement is counted by the client, so each is numbered like any other.
+            for (int i = 1; i < lines.size(); ++i) {
+                reply.append('\n').append(lines.get(i));
+                countSent(lines.get(i));
+            }
+            if (!options.textOnly) {
+                awaitingProtocolReply = true;
+                String offer = String.format("%s\t%d", FrameCodec.PROTO_OFFER, FrameCodec.VERSION);
+                reply.append('\n').append(offer);
+                countSent(offer);
+            } else if (wantsHistory()) {
+                enqueueMessage(new ServerMessage(this), false);
+            }
+            return reply.toString();
+        }
+
+        // Records a line of the handshake reply as sent, for resuming from.
+        private void countSent(String text) {
+            if (sent == null)
+                return;
+            SharedLine line = linePool.encode(text);
+            recordSent(line);
+            line.release();
+        }
+
+        // The fields of the acknowledgement before its roster.
+        private String acknowledgementPrefix() {
+            String prefix = "[ACK_CONN]\t".concat(username);
+            if (wantsResume)
+                prefix = prefix + "\t" + (resumeToken != null ? resumeToken : "-");
+            if (wantsDeflate)
+                prefix = prefix + "\t" + (deflates ? FrameCodec.DEFLATE : FrameCodec.NO_CODEC);
+            return prefix;
+        }
+
+        // Fmt: [ACK_CONN]\t<their registered username>\t<connected client username>\t<...>, or for a client
+        // that asked to be able to resume, [ACK_CONN]\t<username>\t<resume token, or - if it can't>\t<...>.
+        // A client that asked for compression is told, after any token, the codec agreed: deflate or none.
+        // Encoded in one pass into a buffer sized for the whole roster up front, and split by handshakeReply
+        // if that is too long for one line.
+        String acknowledgementMessage() {
+            String prefix = acknowledgementPrefix();
+            // With presence batched, the roster is the one the next batch applies to, which includes
+            // everyone on other nodes too.
+            if (presence != null)
+                return presence.encode(prefix, username);
+            String roster = clients.encode(prefix, '\t');
+            return (cluster != null ? cluster.appendRemoteUsers(roster, '\t') : roster);
+        }
+
+        // Parses the client's opening [UNAME]\t<username>[\t<history>[\t<option>...]] line, returning the
+        // requested username, or null if the line is malformed. history is how many recent messages to send
+        // it, and the options, in any order, are resume, asking for a token to resume the session with should
+        // the connection drop, deflate, asking for large frames to be sent deflated, ping, asking to be
+        // pinged when quiet, which the client promises to answer, and presence, asking for users
+        // connecting and disconnecting to be sent as [PRESENCE] batches.
+        String parseHandshake(String s) {
+            String[] split = s.split("\t");
+            boolean valid = (split.length >= 2 && split[0].equals("[UNAME]")
+                    && (split.length < 3 || split[2].matches("[0-9]{1,9}")));
+            for (int i = 3; valid && i < split.length; ++i) {
+                if (split[i].equals("resume") && !wantsResume)
+                    wantsResume = true;
+                else if (split[i].equals(FrameCodec.DEFLATE) && !wantsDeflate)
+                    wantsDeflate = true;
+                else if (split[i].equals(FrameCodec.HEARTBEAT) && !wantsHeartbeat)
+                    wantsHeartbeat = true;
+                else if (split[i].equals(FrameCodec.PRESENCE_BATCHES) && !batchesPresence)
+                    batchesPresence = true;
+                else
+                    valid = false;
+            }
+            if (!valid) {
+                warn("sent a malformed handshake.");
+                return null;
+            }
+            if (split.length >= 3)
+                historyCount = Integer.parseInt(split[2]);
+            // Only binary frames are ever deflated, so there is nothing to agree to without them.
+            deflates = wantsDeflate && options.compression && !options.textOnly;
+            return split[1];
+        }
+
+        // Wraps a chat line read from the client, given as a slice of the buffer it was read into, into a
+        // [MSG] broadcast, unless it is the client's acceptance of the binary protocol offered in the handshake.
+        void receiveLine(byte[] data, int off, int len) {
+            metrics.messagesIn.increment();
+            metrics.bytesIn.add(len + 1);
+            lastHeard = System.nanoTime();
+            charge(len + 1);
+            if (awaitingProtocolReply) {
+                awaitingProtocolReply = false;
+                if (Arrays.equals(data, off, off + len, PROTOCOL_REPLY, 0, PROTOCOL_REPLY.length)) {
+                    acceptBinaryProtocol();
+                    return;
+                }
+                if (wantsHistory())
+                    enqueueMessage(new ServerMessage(this), false);
+            }
+            // Requests start with a header followed by a tab. Clients replace the tabs in what their users
+            // type, and send any chat line starting with [ escaped as [CHAT]\t<text>, whatever follows which
+            // is chat, so typing a request never makes one.
+            if (len >= CHAT_ESCAPE.length
+                    && Arrays.equals(data, off, off + CHAT_ESCAPE.length, CHAT_ESCAPE, 0, CHAT_ESCAPE.length)) {
+                off += CHAT_ESCAPE.length;
+                len -= CHAT_ESCAPE.length;
+            } else if (len > 0 && data[off] == '[') {
+                String[] request = new String(data, off, len, Charset.defaultCharset()).split("\t", 3);
+                if (request.length > 1 && receiveRequest(request))
+                    return;
+            }
+            // Text clients' tabs are replaced for everyone, binary recipients included, as they always were.
+            if (linePool.relaysBytes()) {
+                SharedLine line = linePool.encodeChatLine(usernameBytes, data, off, len);
+                enqueueMessage(new ServerMessage(this, line, false, 
+                        SharedLine.Pool.chatLineBodyOffset(usernameBytes.length), len), true);
+                return;
+            }
+            String msg = new String(data, off, len, Charset.defaultCharset());
+            enqueueMessage(new ServerMessage(this, "[MSG]", username, sanitize(msg)), true);
+        }
+
+        // The client sends frames from here on. Everything already queued for it is text, so the
+        // confirmation goes through the dispatcher to mark where frames begin.
+        void acceptBinaryProtocol() {
+            binaryIn = true;
+            ServerMessage ack = new ServerMessage(this, FrameCodec.PROTO_ACK, Integer.toString(FrameCodec.VERSION));
+            ack.recipient = this;
+            ack.upgradesRecipient = true;
+            ack.replaysHistory = wantsHistory();
+            enqueueMessage(ack, false);
+        }
+
+        // Handles a binary frame read from the client, given as its type and a slice holding its payload.
+        void receiveFrame(byte type, byte[] data, int off, int len) {
+            metrics.messagesIn.increment();
+            metrics.bytesIn.add(FrameCodec.HEADER_LENGTH + len);
+            lastHeard = System.nanoTime();
+            charge(FrameCodec.HEADER_LENGTH + len);
+            if (type != FrameCodec.CHAT) {
+                try {
+                    if (receiveRequest(FrameCodec.decode(type, data, off, len)))
+                        return;
+                } catch (ProtocolException e) {
+                    // Reported below, along with any other unexpected frame.
+                }
+                warn("sent an unexpected or malformed frame of type " + type + ".");
+                return;
+            }
+            // A [CHAT] frame holds exactly one field, the message, which must leave room in the
+            // relayed [MSG] frame for the sender's username.
+            int bodyLen = len - 4;
+            if (len < 4 || FrameCodec.getInt(data, off) != bodyLen) {
+                warn("sent an unexpected or malformed frame of type " + type + ".");
+                return;
+            }
+            if (bodyLen > FrameCodec.MAX_PAYLOAD - 8 - usernameBytes.length) {
+                warn("sent a message too large to relay.");
+                return;
+            }
+            if (linePool.relaysBytes()) {
+                SharedLine frame = linePool.encodeChatFrame(usernameBytes, data, off + 4, bodyLen);
+                enqueueMessage(new ServerMessage(this, frame, true, 
+                        SharedLine.Pool.chatFrameBodyOffset(usernameBytes.length), bodyLen), true);
+                return;
+            }
+            String msg = new String(data, off + 4, bodyLen, StandardCharsets.UTF_8);
+            enqueueMessage(new ServerMessage(this, "[MSG]", username, msg), true);
+        }
+
+        // Charges a line or frame of length bytes, just read from the client, to its rate limits, noting
+        // when reading from it may carry on if that takes it over either.
+        private void charge(int length) {
+            if (messageBucket == null && byteBucket == null)
+                return;
+            long now = System.nanoTime();
+            long debt = Long.MIN_VALUE;
+            if (messageBucket != null)
+                debt = messageBucket.take(1, now);
+            if (byteBucket != null)
+                debt = Math.max(debt, byteBucket.take(length, now));
+            if (debt <= 0) {
+                throttled = false;
+                return;
+            }
+            readableAt = now + debt;
+            metrics.rateLimited.increment();
+            if (!throttled) {
+                throttled = true;
+                log.log(LogSink.Kind.WARN, username, "is over its rate limit; reading from it is paused.");
+            }
+        }
+
+        /** {@summary How long to wait before reading anything more from the client.}
+         * Readers check before each line or frame, and stop reading for that long if it is positive, so
+         * the client's own TCP connection pushes back on it, rather than its messages being buffered.
+         * @return Nanoseconds until the client is back under its rate limits, or if the outbox is full, a
+         *         short while before checking again; zero or less if reading may carry on now. */
+        long readPause() {
+            long now = System.nanoTime();
+            long pause = readableAt - now;
+            if (pause <= 0) {
+                if (outbox.bytes() <= options.outboxMaxBytes) {
+                    stalled = false;
+                    return 0;
+                }
+                pause = OUTBOX_WAIT_NANOS;
+                if (!stalled) {
+                    stalled = true;
+                    metrics.outboxStalls.increment();
+                    long warnedAt = outboxWarnedAt.get();
+                    if (now - warnedAt >= OUTBOX_WARN_NANOS && outboxWarnedAt.compareAndSet(warnedAt, now))
+                        log.log(LogSink.Kind.WARN, null, String.format(
+                                "The outbox is over %d bytes; reading from clients is paused until it drains.",
+                                options.outboxMaxBytes));
+                }
+            }
+            // The client isn't held to account for going quiet while the server isn't reading from it.
+            lastHeard = now + pause;
+            return pause;
+        }
+
+        // Carries out a room or direct message request, given as its header followed by its fields.
+        // Returns false if it isn't one, or is malformed.
+        boolean receiveRequest(String[] request) {
+            switch (request[0]) {
+                case "[JOIN]":
+                    if (request.length != 2 || !validRoomName(request[1]))
+                        return false;
+                    if (rooms.add(request[1])) {
+                        ClientHandle[] members = joinRoom(this, request[1]);
+                        List<String> list = new ArrayList<String>(members.length + 2);
+                        list.add("[ROOM]");
+                        list.add(request[1]);
+                        for (ClientHandle member : members) {
+                            list.add(member.username);
+                        }
+                        if (cluster != null)
+                            cluster.addRoomMembers(request[1], list);
+                        sendTo(this, list.toArray(new String[list.size()]));
+                        sendToRoom(members, "[JOIN]", request[1], username);
+                    }
+                    return true;
+                case "[LEAVE]":
+                    if (request.length != 2)
+                        return false;
+                    if (rooms.remove(request[1])) {
+                        ClientHandle[] members = leaveRoom(this, request[1]);
+                        sendTo(this, "[LEAVE]", request[1], username);
+                        // Sent even when nobody here is left, for the room's members on other nodes.
+                        sendToRoom((members != null ? members : NOBODY), "[LEAVE]", request[1], username);
+                    }
+                    return true;
+                case "[RMSG]": {
+                    if (request.length != 3)
+                        return false;
+                    Roster<ClientHandle> members =
+                            (rooms.contains(request[1]) ? GroupChatServer.this.rooms.get(request[1]) : null);
+                    if (members == null) {
+                        sendTo(this, "[ERR]", "You aren't in room " + request[1] + ".");
+                        return true;
+                    }
+                    ServerMessage msg = new ServerMessage(this, "[RMSG]", request[1], username, request[2]);
+                    msg.room = members.members();
+                    enqueueMessage(msg, true);
+                    return true;
+                }
+                case "[DM]": {
+                    if (request.length != 3)
+                        return false;
+                    // Routed straight to the recipient by name, on whichever node it is connected to.
+                    ClientHandle recipient = clients.get(request[1]);
+                    if (recipient == null && cluster != null && cluster.sendDirect(request[1], username, request[2]))
+                        return true;
+                    if (recipient == null) {
+                        sendTo(this, "[ERR]", "No user named " + request[1] + " is connected.");
+                        return true;
+                    }
+                    sendTo(recipient, "[DM]", username, request[2]);
+                    return true;
+                }
+                case "[STATS]": {
+                    if (request.length != 2)
+                        return false;
+                    List<String> reply = metrics.values(request[1]);
+                    reply.add(0, "[STATS]");
+                    sendTo(this, reply.toArray(new String[reply.size()]));
+                    return true;
+                }
+                case "[PONG]": {
+                    if (request.length != 2)
+                        return false;
+                    // Echoes the time the ping was queued at, which is only ever one of ours if it's parsable.
+                    try {
+                        long rtt = System.nanoTime() - Long.parseLong(request[1]);
+                        if (rtt >= 0)
+                            metrics.heartbeatRtt.record(rtt);
+                    } catch (NumberFormatException e) {
+                        // Answered all the same; the client was heard from.
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        // Queues a message from this client for recipient alone.
+        void sendTo(ClientHandle recipient, String... fields) {
+            ServerMessage msg = new ServerMessage(this, fields);
+            msg.recipient = recipient;
+            enqueueMessage(msg, false);
+        }
+
+        // Queues a message from this client for the other members of a room.
+        void sendToRoom(ClientHandle[] members, String... fields) {
+            ServerMessage msg = new ServerMessage(this, fields);
+            msg.room = members;
+            enqueueMessage(msg, false);
+        }
+    }
+
+    /**
+     * {@summary A client's request, in place of its [UNAME] handshake, to resume the session it was given a
+     * token for.}
+     * Sent as [RESUME]\t<token>\t<lines received>\t<protocol version the client sends in>, where the lines
+     * received are every line and frame the client read after its [ACK_CONN]. */
+    private static final class ResumeRequest {
+        static final String HEADER = "[RESUME]";
+
+        final String token;
+        final long received;
+        final boolean binary;
+
+        private ResumeRequest(String token, long received, boolean binary) {
+            this.token = token;
+            this.received = received;
+            this.binary = binary;
+        }
+
+        // Parses a [RESUME] line, returning null if it is malformed.
+        static ResumeRequest parse(String line) {
+            String[] split = line.split("\t");
+            if (split.length != 4 || !split[0].equals(HEADER) || !split[2].matches("[0-9]{1,18}")
+                    || !(split[3].equals(Integer.toString(FrameCodec.TEXT_VERSION))
+                            || split[3].equals(Integer.toString(FrameCodec.VERSION))))
+                return null;
+            return new ResumeRequest(split[1], Long.parseLong(split[2]),
+                    split[3].equals(Integer.toString(FrameCodec.VERSION)));
+        }
+    }
+
+    // The reply to a [RESUME] that can't be honoured, after which the server closes the connection and the
+    // client starts a new session.
+    private static final String RESUME_FAILED = "[ERR]\tUnable to resume session.";
+    // Longest a connection resuming a session waits for the session's old connection to drop.
+    private static final long RESUME_WAIT_MILLIS = 2000;
+
+    // Room names go in tab-delimited lines, so they can't hold tabs or line breaks, and are kept short.
+    static boolean validRoomName(String room) {
+        return !room.isEmpty() && room.length() <= 64 && sanitize(room).equals(room);
+    }
+
+    /** 
+     * {@summary Runnable that essentially establishes the connection by exchanging first-pass details 
+     * and then acts as a socket input reader using {@link FrameReader} that reads from client socket.}
+     * Each instance is serviced by its own thread for the lifetime of the connection. */
+    private class SocketClientHandle extends ClientHandle implements Runnable {
+        FrameReader sockIn;
+        OutputStream sockOut;
+        Socket socket;
+        Thread thread;
+        // Drains the outbound queue to the socket, so a client that stops reading only ever blocks
+        // its own writer.
+        Thread writer;
+
+        public SocketClientHandle(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        void flushQueued() {
+            // The writer thread paces itself: it is blocked in take() whenever the queue is empty.
+        }
+
+        // Writes queued lines through a buffer, flushing once per batch of up to options.batchSize
+        // lines. A batch is whatever is queued when the writer wakes up, plus whatever arrives within
+        // options.lingerMillis of its first line, so a busy room costs one write per batch, not per line.
+        // A client that has just resumed is first sent again whatever it missed.
+        void drainOutbound() {
+            OutputStream out = new BufferedOutputStream(sockOut,
+                    (options.sendBufferSize > 0 ? options.sendBufferSize : 8192));
+            long lingerNanos = TimeUnit.MILLISECONDS.toNanos(options.lingerMillis);
+            // When each line of the batch was queued, and its length, counted once the batch is flushed.
+            long[] queuedAt = new long[options.batchSize];
+            int[] lengths = new int[options.batchSize];
+            try {
+                for (; resendFrom < sentCount; ++resendFrom) {
+                    SharedLine line = sentLine(resendFrom);
+                    line.writeTo(out);
+                    metrics.sent(line.queuedAt, line.length(), System.nanoTime());
+                }
+                resendFrom = Long.MAX_VALUE;
+                out.flush();
+                while (!shouldExit) {
+                    SharedLine line = outbound.take();
+                    long deadline = System.nanoTime() + lingerNanos;
+                    int count = 0;
+                    while (line != null) {
+                        recordSent(line);
+                        queuedAt[count] = line.queuedAt;
+                        lengths[count] = line.length();
+                        try {
+                            line.writeTo(out);
+                        } finally {
+                            line.release();
+                        }
+                        if (++count >= options.batchSize)
+                            break;
+                        line = outbound.poll();
+                        if (line == null && lingerNanos > 0) {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining > 0)
+                                line = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    out.flush();
+                    long now = System.nanoTime();
+                    for (int i = 0; i < count; ++i) {
+                        metrics.sent(queuedAt[i], lengths[i], now);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+            }
+            // The write failed, so close the socket; the reader thread then fails out of readLine
+            // and removes the client as usual.
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void exit() {
+            shouldExit = true;
+            // Nothing is reading from a detached session's client, so end the session here.
+            if (detached.compareAndSet(true, false)) {
+                endSession();
+                return;
+            }
+            try {
+                socket.close();
+                sockIn.close();
+                sockOut.close();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+            thread.interrupt();
+            if (writer != null)
+                writer.interrupt();
+        }
+
+        @Override
+        void dropConnection() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Closing the socket is safe from any thread, and fails the reader out of its read.
+        @Override
+        void disconnect() {
+            dropConnection();
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setTcpNoDelay(options.tcpNoDelay);
+                if (options.sendBufferSize > 0)
+                    socket.setSendBufferSize(options.sendBufferSize);
+                sockOut = socket.getOutputStream();
+                sockIn = new FrameReader(socket.getInputStream(), Charset.defaultCharset());
+                String s = sockIn.readLine();
+                if (s == null) {
+                    return;
+                }
+                handshaken = true;
+                if (s.startsWith(ResumeRequest.HEADER + "\t")) {
+                    resume(ResumeRequest.parse(s));
+                    return;
+                }
+                username = parseHandshake(s);
+                if (username == null) {
+                    return;
+                }
+                sockAddr = ((InetSocketAddress) (socket.getRemoteSocketAddress()));
+            } catch (IOException e) {
+                // A connection closed for not sending its handshake in time has already been logged.
+                if (!socket.isClosed())
+                    warn("had a connection error during its handshake: " + e.getMessage());
+                return;
+            }
+            addClient(this);
+            // Acknowledgement message signals to client that the client has been officially added to the server
+            // and also signals their new username if it had to be modified to satisfy uniqueness requirement,
+            // and also contains the name of all users connected to the server as tab-delimited args in the ACK_CONN
+            // message to be sent to the client.
+            SharedLine ack = linePool.encode(handshakeReply());
+            try {
+                ack.writeTo(sockOut);
+                metrics.handshakeTime.record(System.nanoTime() - acceptedAt);
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+            } finally {
+                ack.release();
+            }
+            serve();
+        }
+
+        // Hands this connection over to the session request resumes, dropping the session's old connection
+        // first if the server hasn't noticed yet that it is gone, then serves the client on this thread.
+        private void resume(ResumeRequest request) throws IOException {
+            ClientHandle found = (request != null ? sessions.get(request.token) : null);
+            SocketClientHandle session = (found instanceof SocketClientHandle ? (SocketClientHandle) found : null);
+            if (session != null && !session.detached.get()) {
+                session.dropConnection();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESUME_WAIT_MILLIS);
+                while (!session.detached.get() && deadline - System.nanoTime() > 0) {
+                    LockSupport.parkNanos(this, 1_000_000);
+                }
+            }
+            if (session == null || !session.claim(request)) {
+                SharedLine reply = linePool.encode(RESUME_FAILED);
+                try {
+                    reply.writeTo(sockOut);
+                } finally {
+                    reply.release();
+                    socket.close();
+                }
+                return;
+            }
+            session.socket = socket;
+            session.sockIn = sockIn;
+            session.sockOut = sockOut;
+            session.thread = thread;
+            session.sockAddr = ((InetSocketAddress) (socket.getRemoteSocketAddress()));
+            SharedLine ack = linePool.encode("[RESUMED]\t" + session.username);
+            try {
+                ack.writeTo(sockOut);
+            } catch (IOException e) {
+                session.warn("had a connection error: " + e.getMessage());
+            } finally {
+                ack.release();
+            }
+            session.serve();
+        }
+
+        // Reads from the client until the connection drops, while a writer thread of its own drains the
+        // outbound queue, then removes the client, or holds its session open for it to resume.
+        void serve() {
+            // Anything broadcast since addClient is already waiting in the queue behind the
+            // acknowledgement, so the writer can start draining it now.
+            writer = threadFactory.newThread(this::drainOutbound);
+            writer.start();
+            try {
+                while (!shouldExit) {
+                    for (long pause; (pause = readPause()) > 0 && !shouldExit;) {
+                        LockSupport.parkNanos(this, pause);
+                    }
+                    if (binaryIn) {
+                        if (!sockIn.nextFrame())
+                            break;
+                        receiveFrame(sockIn.frameType(), sockIn.array(), sockIn.sliceStart(), sockIn.sliceLength());
+                        continue;
+                    }
+                    if (!sockIn.nextLine()) {
+                        break;
+                    }
+                    receiveLine(sockIn.array(), sockIn.sliceStart(), sockIn.sliceLength());
+                    continue;       
+                }
+                socket.close();
+                sockOut.close();
+                sockIn.close();
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+                dropConnection();
+            }
+            // The writer must be done with the socket before the session can be handed to another.
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                // Interrupted by exit, which is removing the client anyway.
+            }
+            if (!detach())
+                endSession();
+        }
+    }
+
+    /** 
+     * {@summary Client connection serviced by a {@link NioEventLoop} rather than a thread of its own.}
+     * Reads are framed into lines in place from a per-connection {@link ByteBuffer}, and the outbound
+     * queue is drained by the owning event loop with gathering writes straight from the shared, encoded
+     * broadcast buffers, so the wire protocol is identical to the one spoken by {@link SocketClientHandle}. */
+    private class NioClientHandle extends ClientHandle {
+        SocketChannel channel;
+        SelectionKey key;
+        NioEventLoop loop;
+        ByteBuffer readBuf = ByteBuffer.allocate(4096);
+        // Bytes of the current line already scanned without finding its end, so each read only scans
+        // what's new.
+        int lineScanned = 0;
+        // Lines taken off the outbound queue for the current gathering write, and this connection's
+        // views of them. Entries [gatherStart, gatherEnd) are still (partially) unwritten. Only ever
+        // touched by the owning loop.
+        SharedLine[] gathered = new SharedLine[options.batchSize];
+        ByteBuffer[] gather = new ByteBuffer[options.batchSize];
+        int gatherStart = 0, gatherEnd = 0;
+        // Set while a flush of this handle is pending in the loop's task queue, so that a burst of
+        // queued lines results in a single wakeup of the loop.
+        AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        // The handshake's acknowledgement until it has been written in full, which with a large roster
+        // can take more than one write, whereupon flush records the handshake time. Only ever touched
+        // by the owning loop.
+        SharedLine unsentAck;
+        // Whether addClient has been called for this handle, and so removeClient must be on close.
+        boolean registered = false;
+        // Whether reading is paused by readPause, with interest in readability dropped until
+        // resumeReading is run. Only ever touched by the owning loop.
+        boolean readPaused = false;
+
+        public NioClientHandle(SocketChannel channel, NioEventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        @Override
+        void flushQueued() {
+            if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+                return;
+            // Hold a partial batch back for up to the linger time in case more lines follow it.
+            if (options.lingerMillis > 0 && outbound.size() < options.batchSize)
+                loop.schedule(this::flush, TimeUnit.MILLISECONDS.toNanos(options.lingerMillis));
+            else
+                loop.execute(this::flush);
+        }
+
+        @Override
+        public void exit() {
+            shouldExit = true;
+            // Nothing is reading from a detached session's client, so end the session here.
+            if (detached.compareAndSet(true, false)) {
+                endSession();
+                return;
+            }
+            loop.execute(this::close);
+        }
+
+        // Must be called on the loop thread.
+        @Override
+        void dropConnection() {
+            close();
+        }
+
+        @Override
+        void disconnect() {
+            loop.execute(this::close);
+        }
+
+        // Called on the loop thread once the channel has been registered with the loop's selector.
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuf);
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            frameInput();
+        }
+
+        // Handles everything read into readBuf so far.
+        void frameInput() {
+            // Frame every complete line, or once the client has switched protocols, every complete
+            // binary frame, currently buffered.
+            readBuf.flip();
+            try {
+                while (key.isValid() && readBuf.hasRemaining()) {
+                    long pause = (registered ? readPause() : 0);
+                    if (pause > 0) {
+                        pauseReading(pause);
+                        break;
+                    }
+                    byte[] data = readBuf.array();
+                    int start = readBuf.position();
+                    if (binaryIn) {
+                        int len = FrameCodec.payloadLength(readBuf);
+                        if (len < 0)
+                            break;
+                        readBuf.position(start + FrameCodec.HEADER_LENGTH + len);
+                        receiveFrame(data[start], data, start + FrameCodec.HEADER_LENGTH, len);
+                        continue;
+                    }
+                    int nl = -1;
+                    for (int i = start + lineScanned; i < readBuf.limit(); ++i) {
+                        if (data[i] == '\n') {
+                            nl = i;
+                            break;
+                        }
+                    }
+                    if (nl < 0) {
+                        lineScanned = readBuf.remaining();
+                        // Leaving room for a carriage return before the newline.
+                        if (lineScanned > FrameReader.MAX_LINE_LENGTH + 1)
+                            throw new ProtocolException("Line exceeds " + FrameReader.MAX_LINE_LENGTH + " bytes");
+                        break;
+                    }
+                    lineScanned = 0;
+                    int len = nl - start;
+                    if (len > 0 && data[nl - 1] == '\r')
+                        --len;
+                    // However much of it arrived in one read.
+                    if (len > FrameReader.MAX_LINE_LENGTH)
+                        throw new ProtocolException("Line exceeds " + FrameReader.MAX_LINE_LENGTH + " bytes");
+                    readBuf.position(nl + 1);
+                    onLine(data, start, len);
+                }
+            } catch (ProtocolException e) {
+                warn("broke the protocol: " + e.getMessage());
+                close();
+                return;
+            }
+            if (!key.isValid())
+                return;
+            readBuf.compact();
+            if (readBuf.hasRemaining() || readPaused)
+                return;
+            // Buffer is full without a complete line or frame, so grow it. The length checks above
+            // bound how far it can grow.
+            ByteBuffer grown = ByteBuffer.allocate(readBuf.capacity() * 2);
+            readBuf.flip();
+            grown.put(readBuf);
+            readBuf = grown;
+        }
+
+        // Stops reading from the client for pause nanoseconds, leaving whatever is already buffered until
+        // then.
+        void pauseReading(long pause) {
+            if (!readPaused) {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            loop.schedule(this::resumeReading, pause);
+        }
+
+        void resumeReading() {
+            if (!readPaused || !key.isValid())
+                return;
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            frameInput();
+        }
+
+        void onLine(byte[] data, int off, int len) {
+            if (registered) {
+                receiveLine(data, off, len);
+                return;
+            }
+            handshaken = true;
+            String handshake = new String(data, off, len, Charset.defaultCharset());
+            if (handshake.startsWith(ResumeRequest.HEADER + "\t")) {
+                resume(ResumeRequest.parse(handshake));
+                return;
+            }
+            username = parseHandshake(handshake);
+            if (username == null) {
+                close();
+                return;
+            }
+            try {
+                sockAddr = (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                warn("had a connection error during its handshake: " + e.getMessage());
+                close();
+                return;
+            }
+            registered = true;
+            addClient(this);
+            // Only this loop ever writes to the channel, and it is busy right here, so writing the
+            // acknowledgement ahead of the queue guarantees it precedes any broadcast that was
+            // queued for this client after addClient made it visible.
+            SharedLine ack = linePool.encode(handshakeReply());
+            gathered[0] = ack;
+            gather[0] = ack.view();
+            gatherEnd = 1;
+            unsentAck = ack;
+            flush();
+        }
+
+        // Hands this connection over to the session request resumes, on the loop that serves the session.
+        // Called on this loop's thread, with the request the first line the client sent.
+        void resume(ResumeRequest request) {
+            ClientHandle found = (request != null ? sessions.get(request.token) : null);
+            NioClientHandle session = (found instanceof NioClientHandle ? (NioClientHandle) found : null);
+            // Whatever the client sent after its request is carried over to the session.
+            ByteBuffer pending = ByteBuffer.allocate(Math.max(4096, readBuf.remaining()));
+            pending.put(readBuf);
+            key.cancel();
+            if (session == null) {
+                reject(channel);
+                return;
+            }
+            SocketChannel resumed = channel;
+            session.loop.execute(() -> {
+                // The old connection may not have been noticed to have dropped yet; all of the session's
+                // I/O happens on this thread, so dropping it here detaches the session at once.
+                if (!session.detached.get())
+                    session.dropConnection();
+                if (session.claim(request))
+                    session.attach(resumed, pending);
+                else
+                    reject(resumed);
+            });
+        }
+
+        // Takes over a channel resuming this session, on the session's loop thread, sending the client
+        // whatever it missed and then carrying on from wherever the old connection left off.
+        void attach(SocketChannel resumed, ByteBuffer pending) {
+            channel = resumed;
+            readBuf = pending;
+            lineScanned = 0;
+            try {
+                sockAddr = (InetSocketAddress) channel.getRemoteAddress();
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+                // Nothing was sent, so the session can still be resumed.
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+                if (!detach())
+                    endSession();
+                return;
+            }
+            SharedLine ack = linePool.encode("[RESUMED]\t" + username);
+            gathered[0] = ack;
+            gather[0] = ack.view();
+            gatherStart = 0;
+            gatherEnd = 1;
+            flush();
+            readBuf.flip();
+            frameInput();
+        }
+
+        // Tells a client its session can't be resumed and closes its connection. Called on a loop thread
+        // once the channel's key has been cancelled.
+        void reject(SocketChannel rejected) {
+            try {
+                // The reply easily fits in the socket's send buffer, so a single write sends all of it.
+                rejected.write(ByteBuffer.wrap((RESUME_FAILED + "\n").getBytes(StandardCharsets.US_ASCII)));
+            } catch (IOException e) {
+                // Closed below either way.
+            }
+            try {
+                rejected.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Writes as much of the outbound queue as the socket will take, registering interest in
+        // writability for the remainder. A client that has just resumed is first sent again whatever it
+        // missed. Must only be called on the loop thread.
+        void flush() {
+            flushScheduled.set(false);
+            if (!key.isValid())
+                return;
+            try {
+                while (true) {
+                    if (gatherStart == gatherEnd) {
+                        gatherStart = gatherEnd = 0;
+                        SharedLine line;
+                        for (; gatherEnd < gathered.length && resendFrom < sentCount; ++resendFrom) {
+                            line = sentLine(resendFrom);
+                            line.retain();
+                            gathered[gatherEnd] = line;
+                            gather[gatherEnd++] = line.view();
+                        }
+                        if (resendFrom >= sentCount)
+                            resendFrom = Long.MAX_VALUE;
+                        while (gatherEnd < gathered.length && (line = outbound.poll()) != null) {
+                            recordSent(line);
+                            gathered[gatherEnd] = line;
+                            gather[gatherEnd++] = line.view();
+                        }
+                        if (gatherEnd == 0)
+                            break;
+                    }
+                    channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                    long now = System.nanoTime();
+                    while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                        if (gathered[gatherStart] == unsentAck) {
+                            metrics.handshakeTime.record(now - acceptedAt);
+                            unsentAck = null;
+                        }
+                        metrics.sent(gathered[gatherStart].queuedAt, gathered[gatherStart].length(), now);
+                        releaseGathered(gatherStart++);
+                    }
+                    if (gatherStart < gatherEnd)
+                        break;
+                }
+            } catch (IOException e) {
+                warn("had a connection error: " + e.getMessage());
+                close();
+                return;
+            }
+            if (gatherStart == gatherEnd)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        void releaseGathered(int i) {
+            gathered[i].release();
+            gathered[i] = null;
+            gather[i] = null;
+        }
+
+        void close() {
+            if (!channel.isOpen())
+                return;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Lines partway through being written are kept in sent, should the client resume.
+            while (gatherStart < gatherEnd) {
+                releaseGathered(gatherStart++);
+            }
+            gatherStart = gatherEnd = 0;
+            if (!registered) {
+                clearOutbound();
+                return;
+            }
+            if (!detach())
+                endSession();
+        }
+    }
+
+    /** 
+     * {@summary Selector event loop that services many {@link NioClientHandle} connections on one thread.}
+     * Other threads hand work to a loop through {@link #execute}, which queues the task and wakes the
+     * selector, so that all registration and channel I/O happens on the loop's own thread. */
+    private class NioEventLoop extends Thread {
+        Selector selector;
+        Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // Tasks to run once their deadline passes, soonest first: lingering flushes, and clients' reads
+        // resuming after a pause.
+        Queue<DelayedTask> delayed = new PriorityBlockingQueue<DelayedTask>();
+        volatile boolean shouldExit = false;
+
+        public NioEventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            selector = Selector.open();
+        }
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void schedule(Runnable task, long delayNanos) {
+            delayed.add(new DelayedTask(System.nanoTime() + delayNanos, task));
+            // Wake the loop so it can shorten its select timeout to the new deadline.
+            selector.wakeup();
+        }
+
+        public void exit() {
+            shouldExit = true;
+            selector.wakeup();
+        }
+
+        // Registers a freshly accepted channel with this loop. Called on the loop thread.
+        void register(SocketChannel channel) {
+            NioClientHandle client = new NioClientHandle(channel, this);
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, options.tcpNoDelay);
+                if (options.sendBufferSize > 0)
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, options.sendBufferSize);
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                client.watchHandshake();
+            } catch (IOException e) {
+                log.log(LogSink.Kind.ERROR, null, e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!shouldExit) {
+                DelayedTask next = delayed.peek();
+                try {
+                    if (next == null)
+                        selector.select();
+                    else
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime())));
+                } catch (IOException e) {
+                    log.log(LogSink.Kind.ERROR, null, getName() + " stopped: " + e.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while ((next = delayed.peek()) != null && next.deadline - now <= 0) {
+                    delayed.poll();
+                    next.task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        nioServer.accept();
+                        continue;
+                    }
+                    NioClientHandle client = (NioClientHandle) key.attachment();
+                    if (key.isReadable())
+                        client.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        client.flush();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioClientHandle)
+                    ((NioClientHandle) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A task for an NioEventLoop to run once System.nanoTime() reaches its deadline.
+    private static class DelayedTask implements Comparable<DelayedTask> {
+        long deadline;
+        Runnable task;
+        public DelayedTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(DelayedTask other) {
+            return Long.signum(deadline - other.deadline);
+        }
+    }
+
+    /** 
+     * {@summary Non-blocking replacement for {@link Listener}.}
+     * Owns the listening {@link ServerSocketChannel} and a small fixed pool of {@link NioEventLoop}s. The
+     * first loop accepts incoming connections and deals them out round-robin across the pool. */
+    private class NioServer {
+        ServerSocketChannel listenerChannel;
+        NioEventLoop[] loops;
+        int nextLoop = 0;
+
+        public NioServer(int portNumber, int loopCount) throws IOException {
+            listenerChannel = ServerSocketChannel.open();
+            listenerChannel.bind(new InetSocketAddress(portNumber));
+            listenerChannel.configureBlocking(false);
+            loops = new NioEventLoop[loopCount];
+            for (int i = 0; i < loopCount; ++i) {
+                loops[i] = new NioEventLoop(i);
+            }
+            listenerChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        }
+
+        public void start() {
+            for (NioEventLoop loop : loops) {
+                loop.start();
+            }
+        }
+
+        // Called on the first loop's thread whenever the listening channel is acceptable.
+        void accept() {
+            SocketChannel channel;
+            try {
+                while ((channel = listenerChannel.accept()) != null) {
+                    metrics.accepts.increment();
+                    NioEventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    final SocketChannel accepted = channel;
+                    if (loop == Thread.currentThread())
+                        loop.register(accepted);
+                    else
+                        loop.execute(() -> loop.register(accepted));
+                }
+            } catch (IOException e) {
+                log.log(LogSink.Kind.ERROR, null, e.getMessage());
+            }
+        }
+
+        public void exit() {
+            try { 
+                listenerChannel.close(); 
+            } catch (IOException e) { 
+                e.printStackTrace(); 
+            }
+            for (NioEventLoop loop : loops) {
+                loop.exit();
+            }
+        }
+    }
+
+    // Establishes the GUI and the listening socket, as well as pretty much all primary object instances.
+    public GroupChatServer(int portNo) {
+        this(ServerOptions.parse(new String[] { Integer.toString(portNo) }));
+    }
+
+    // As above, but with the client servicing mode (threads, virtual threads or NIO event loops), the
+    // log destinations and whether to show a window taken from the parsed command line options.
+    public GroupChatServer(ServerOptions opts) {
+        options = opts;
+        // Event loops write from direct buffers; blocking socket streams want heap arrays.
+        linePool = new SharedLine.Pool(opts.nioLoops > 0, Charset.defaultCharset());
+        metrics = new Metrics(clients::size, this::queueDepths, () -> outbox.bytes());
+        outbox = new Outbox<ServerMessage>(ServerMessage[]::new, msg -> msg.size, metrics.outboxDepth);
+        int portNo = opts.port, nioLoops = opts.nioLoops;
+        if (opts.virtualThreads) {
+            try {
+                threadFactory = virtualThreadFactory();
+            } catch (ReflectiveOperationException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Virtual threads require Java 21 or newer.");
+                System.exit(1);
+            }
+        }
+        // Without a display there is no window to show, whether or not --headless was given.
+        boolean headless = opts.headless || GraphicsEnvironment.isHeadless();
+        log = new LogSink(opts.logBufferSize);
+        if (opts.logFile != null) {
+            try {
+                log.addOutput(new LogSink.RollingFileOutput(opts.logFile, opts.logFileSize, opts.logFileCount));
+            } catch (IOException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Unable to open log file: " + e.getMessage());
+                System.exit(1);
+            }
+        } else if (headless) {
+            log.addOutput(new LogSink.StreamOutput(System.out));
+        }
+        if (!headless) {
+            window = new ServerWindow(this, portNo);
+            log.addOutput(window);
+        }
+        log.start();
+        if (opts.historyDir != null) {
+            try {
+                history = new MessageLog(opts.historyDir, opts.historySegmentSize, opts.historyMaxBytes,
+                        opts.historyMaxAgeMillis, log);
+            } catch (IOException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Unable to open message history: " + e.getMessage());
+                System.exit(1);
+            }
+            history.start();
+        }
+        dispatcher = new Dispatcher(opts.shards);
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        timeouts = new TimingWheel(TIMEOUT_TICK_MILLIS, TIMEOUT_SLOTS);
+        if (opts.presenceWindowMillis > 0)
+            presence = new PresenceBatcher<ServerMessage>(msg -> msg.fields[1], msg -> msg.fields[0].equals("[NC]"),
+                    ServerMessage::releaseEncodings, metrics.presenceCancelled);
+        timer.scheduleAtFixedRate(timeouts::tick, TIMEOUT_TICK_MILLIS, TIMEOUT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (opts.statsIntervalMillis > 0) {
+            timer.scheduleAtFixedRate(() -> log.log(LogSink.Kind.STATS, null, (opts.statsJson ? metrics.json() : metrics.text())),
+                    opts.statsIntervalMillis, opts.statsIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        registerMetrics(portNo);
+        if (opts.clusterPort > 0 || !opts.peers.isEmpty())
+            cluster = new Cluster(this, opts, linePool, log);
+        try {
+            if (nioLoops > 0)
+                nioServer = new NioServer(portNo, nioLoops);
+            else
+                listener = new Listener(portNo);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        dispatcher.start();
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("\033[1;31m[Error]:\033[0m Unable to accept cluster links: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (nioServer != null)
+            nioServer.start();
+        else
+            listener.start();
+        if (window != null) {
+            window.setVisible(true);
+        } else {
+            // There's no window to close, so shut down cleanly, flushing the log, on SIGINT/SIGTERM.
+            Runtime.getRuntime().addShutdownHook(new Thread(this::dispose, "shutdown"));
+        }
+    }
+
+    // Closes all connections cleanly and then interrupts the listening thread and all client handle
+    // threads, so that all sockets are closed cleanly, and finally flushes and closes the log. Called
+    // when the window is closed, or on shutdown when running headless.
+    public void dispose() {
+        if (disposeCalled)
+            return;
+        disposeCalled = true;
+        dispatcher.exit();
+        if (cluster != null)
+            cluster.close();
+        if (nioServer != null)
+            nioServer.exit();
+        else
+            listener.exit();
+        for (ClientHandle handle : snapshotClients()) {
+            handle.exit();
+        }
+        timer.shutdownNow();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                // Only ever registered once, by this server.
+            }
+        }
+        if (history != null)
+            history.close();
+        log.close();
+    }
+
+    // Makes the metrics readable over JMX, by jconsole or any other client of the platform MBean server,
+    // under GroupChatServer:type=Metrics,port=<port>.
+    private void registerMetrics(int portNo) {
+        try {
+            metricsName = new ObjectName("GroupChatServer:type=Metrics,port=" + portNo);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            metricsName = null;
+            log.log(LogSink.Kind.WARN, null, "Unable to register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    // Looks up Thread.ofVirtual().factory() reflectively, so the server still builds and runs on
+    // releases that predate virtual threads when they aren't asked for.
+    private static ThreadFactory virtualThreadFactory() throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    }
+
+    public static void main(String[] args) {
+        new GroupChatServer(ServerOptions.parse(args));
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@summary Asynchronous log pipeline that keeps logging off the threads relaying messages.}
+ * Producers publish events into a fixed-size ring buffer and return at once; a single writer thread
+ * drains the ring in batches and hands each batch to every {@link Output}, such as standard output, a
+ * {@link RollingFileOutput} or the server window. Publishing never blocks and never allocates: when the
+ * writer falls so far behind that the ring is full, events are dropped and counted, and the writer
+ * reports how many once it catches up.
+ * <p>
+ * The ring is a bounded multi-producer, single-consumer queue of preallocated slots, each stamped with
+ * a sequence number that says whether it is free for the producer that claimed it or published for the
+ * writer, so producers only contend on a single compare-and-set to claim a slot. */
+final class LogSink implements Runnable {
+    static final int BATCH_SIZE = 512;
+
+    // What happened, which decides how an event is rendered.
+    enum Kind {
+        // subject connected from the address in text.
+        CONNECT,
+        // subject disconnected.
+        DISCONNECT,
+        // subject sent the chat message in text.
+        CHAT,
+        // Something about the server, described by text.
+        INFO,
+        // Something about subject, if any, worth attention, described by text.
+        WARN,
+        // An error, described by text.
+        ERROR,
+        // The server's metrics, as text.
+        STATS
+    }
+
+    /** {@summary Destination for batches of log entries, called only from the writer thread.} */
+    interface Output {
+        void write(List<Entry> batch) throws IOException;
+
+        default void close() throws IOException {
+        }
+    }
+
+    /** {@summary An event as handed to outputs, once the writer has taken it out of the ring.} */
+    static final class Entry {
+        private static final DateTimeFormatter TIME_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+        final long timeMillis;
+        final Kind kind;
+        // The user the event is about, or null.
+        final String subject;
+        final String text;
+
+        Entry(long timeMillis, Kind kind, String subject, String text) {
+            this.timeMillis = timeMillis;
+            this.kind = kind;
+            this.subject = subject;
+            this.text = text;
+        }
+
+        // The event as a line of plain text, without its timestamp or a line terminator.
+        String message() {
+            switch (kind) {
+                case CONNECT:
+                    return subject + " has connected from " + text;
+                case DISCONNECT:
+                    return subject + " has disconnected.";
+                case CHAT:
+                    return subject + ": " + text;
+                default:
+                    return (subject == null ? text : subject + " " + text);
+            }
+        }
+
+        // The event as a timestamped line for a text log, without a line terminator. Line breaks, which
+        // binary clients may send, are flattened so that every event stays on a line of its own.
+        String formatted() {
+            return TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis)) + " " + kind + " "
+                    + message().replace('\n', ' ').replace('\r', ' ');
+        }
+    }
+
+    // One preallocated element of the ring.
+    private static final class Slot {
+        // Equal to the claiming position while free, one past it once published.
+        volatile long sequence;
+        long timeMillis;
+        Kind kind;
+        String subject, text;
+        // A chat message still in the line it was relayed in, decoded by the writer instead of the sender.
+        SharedLine line;
+        int offset, length;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    // Next position to be claimed by a producer.
+    private final AtomicLong tail = new AtomicLong();
+    // Next position the writer reads. Only touched by the writer thread.
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    private final List<Output> outputs = new ArrayList<Output>();
+
+    private final Thread thread = new Thread(this, "log-writer");
+    // Set by the writer just before it parks, so producers only pay for an unpark when it is idle.
+    private final AtomicBoolean parked = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    // A ring of at least capacity slots, rounded up to a power of two.
+    LogSink(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        mask = size - 1;
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        thread.setDaemon(true);
+    }
+
+    // Adds a destination for entries. Must be called before start.
+    void addOutput(Output output) {
+        outputs.add(output);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Publishes an event, or drops it if the ring is full.
+    void log(Kind kind, String subject, String text) {
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        slot.kind = kind;
+        slot.subject = subject;
+        slot.text = text;
+        publish(slot);
+    }
+
+    // Publishes a chat message by reference to the length bytes of UTF-8 at offset in line, which the
+    // sink holds a reference to until the writer has decoded it, so the sender never decodes it itself.
+    void chat(String subject, SharedLine line, int offset, int length) {
+        Slot slot = claim();
+        if (slot == null)
+            return;
+        line.retain();
+        slot.kind = Kind.CHAT;
+        slot.subject = subject;
+        slot.line = line;
+        slot.offset = offset;
+        slot.length = length;
+        publish(slot);
+    }
+
+    private Slot claim() {
+        while (true) {
+            long pos = tail.get();
+            Slot slot = slots[(int) pos & mask];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slot.timeMillis = System.currentTimeMillis();
+                    return slot;
+                }
+            } else if (diff < 0) {
+                // The writer hasn't freed this slot from the previous lap yet, i.e. the ring is full.
+                dropped.incrementAndGet();
+                return null;
+            }
+            // Otherwise another producer claimed pos first; try the next position.
+        }
+    }
+
+    private void publish(Slot slot) {
+        slot.sequence = slot.sequence + 1;
+        if (parked.get() && parked.compareAndSet(true, false))
+            LockSupport.unpark(thread);
+    }
+
+    // Writes out whatever has been published so far, then stops the writer and closes every output.
+    void close() {
+        closed = true;
+        parked.set(false);
+        LockSupport.unpark(thread);
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+        while (true) {
+            drain(batch);
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+                continue;
+            }
+            if (closed)
+                break;
+            // Publish that we are about to park before re-checking the ring. A producer either sees
+            // the flag and unparks us, or we see its event here.
+            parked.set(true);
+            if (!published() && !closed)
+                LockSupport.park(this);
+            parked.set(false);
+        }
+        for (Output output : outputs) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean published() {
+        return slots[(int) head & mask].sequence == head + 1;
+    }
+
+    // Moves up to BATCH_SIZE published events out of the ring into batch, freeing their slots.
+    private void drain(ArrayList<Entry> batch) {
+        long lost = dropped.get();
+        if (lost != droppedReported) {
+            batch.add(new Entry(System.currentTimeMillis(), Kind.WARN, null,
+                    (lost - droppedReported) + " log events dropped; the log writer fell behind."));
+            droppedReported = lost;
+        }
+        while (batch.size() < BATCH_SIZE && published()) {
+            Slot slot = slots[(int) head & mask];
+            String text = slot.text;
+            if (slot.line != null) {
+                text = slot.line.decode(slot.offset, slot.length, StandardCharsets.UTF_8);
+                slot.line.release();
+                slot.line = null;
+            }
+            batch.add(new Entry(slot.timeMillis, slot.kind, slot.subject, text));
+            slot.subject = null;
+            slot.text = null;
+            slot.sequence = head + slots.length;
+            ++head;
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        for (Output output : outputs) {
+            try {
+                output.write(batch);
+            } catch (IOException e) {
+                System.err.println("\033[1;31m[Log Error]:\033[0m " + e.getMessage());
+            }
+        }
+    }
+
+    /** {@summary Writes each batch to a stream, such as standard output, flushing once per batch.} */
+    static final class StreamOutput implements Output {
+        private final PrintStream out;
+
+        StreamOutput(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(List<Entry> batch) {
+            StringBuilder sb = new StringBuilder(batch.size() * 64);
+            for (Entry entry : batch) {
+                sb.append(entry.formatted()).append(System.lineSeparator());
+            }
+            out.print(sb);
+            out.flush();
+        }
+    }
+
+    /**
+     * {@summary Writes each batch to a log file, rolling it over once it reaches a size limit.}
+     * When the file would grow past maxBytes it is renamed to <code>name.1</code>, any earlier
+     * <code>name.1</code> to <code>name.2</code> and so on, keeping at most maxFiles old files. */
+    static final class RollingFileOutput implements Output {
+        private final Path path;
+        private final long maxBytes;
+        private final int maxFiles;
+        private Writer writer;
+        private long size;
+
+        RollingFileOutput(Path path, long maxBytes, int maxFiles) throws IOException {
+            this.path = path;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        private void open() throws IOException {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(path);
+        }
+
+        @Override
+        public void write(List<Entry> batch) throws IOException {
+            for (Entry entry : batch) {
+                String line = entry.formatted() + System.lineSeparator();
+                // Close enough for ASCII-heavy logs, and cheaper than encoding twice.
+                long bytes = line.length();
+                if (size > 0 && size + bytes > maxBytes)
+                    roll();
+                writer.write(line);
+                size += bytes;
+            }
+            writer.flush();
+        }
+
+        private void roll() throws IOException {
+            writer.close();
+            for (int i = maxFiles - 1; i >= 1; --i) {
+                Path older = sibling(i);
+                if (Files.exists(older))
+                    Files.move(older, sibling(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (maxFiles > 0)
+                Files.move(path, sibling(1), StandardCopyOption.REPLACE_EXISTING);
+            else
+                Files.delete(path);
+            open();
+        }
+
+        private Path sibling(int index) {
+            return Paths.get(path.toString() + "." + index);
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * {@summary Append-only log of every relayed chat message, in memory-mapped segment files on disk.}
+ * Each [MSG] is stored as the binary frame binary clients are sent, under a sequence number that only
+ * ever increases, restarts included. The dispatcher hands frames over by reference through a bounded
+ * queue and returns at once; a single writer thread copies them into the current segment's mapping, so
+ * logging never holds up relaying. Should the writer fall so far behind that the queue is full, frames
+ * are dropped and counted rather than waited for, and the writer reports how many once it catches up.
+ * <p>
+ * Segments are named after the sequence number of their first record and are preallocated at
+ * {@link #segmentSize} bytes, then truncated to what they hold when the next one is started. Each has a
+ * sparse index of where a record starts at least every {@link #INDEX_INTERVAL} bytes, saved next to it
+ * once it is full, so a message is found by a binary search and a short scan. Whole segments are deleted,
+ * oldest first, once the log outgrows maxBytes or they are older than maxAgeMillis.
+ * <p>
+ * {@link #replay} reads the most recent messages back for clients joining, as views of the mapped
+ * segments themselves, which can be written to a client without ever being copied. */
+final class MessageLog implements Runnable {
+    // Each record is a u32 frame length, then the u64 sequence number, then the frame. The length is
+    // written last, so a record that was never finished reads as the end of the segment.
+    static final int RECORD_HEADER = 12;
+    // Greatest number of bytes between two records of a segment's sparse index.
+    static final int INDEX_INTERVAL = 4096;
+    // Longest the writer goes without checking whether any segment has aged out.
+    static final long RETENTION_CHECK_NANOS = TimeUnit.SECONDS.toNanos(60);
+    static final String SEGMENT_SUFFIX = ".log", INDEX_SUFFIX = ".idx";
+    // Most frames waiting for the writer before any more are dropped.
+    static final int QUEUE_CAPACITY = 1 << 16;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final LogSink log;
+
+    // Frames handed over by the dispatcher, numbered in the order they were queued.
+    private final ArrayBlockingQueue<SharedLine> pending;
+    // Sequence number of the next frame queued. Only touched by the dispatcher thread.
+    private long nextSequence;
+    // Sequence number of the last frame queued, and of the last one written to a segment.
+    private volatile long lastQueued, lastWritten;
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    // Every segment, oldest first. The last is the one being written; the rest are full. Replaced,
+    // never modified, so readers can take the array as it stands.
+    private volatile Segment[] segments;
+    private long lastRetentionCheck = System.nanoTime();
+
+    private final Thread thread = new Thread(this, "history-writer");
+    // Set by the writer just before it parks, so the dispatcher only pays for an unpark when it is idle.
+    private final AtomicBoolean parked = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    // Set once the writer couldn't start a new segment, after which nothing more is appended, rather than
+    // number what follows out of step with the sequence numbers append already handed out.
+    private volatile boolean failed = false;
+
+    /**
+     * {@summary One file of the log, and its sparse index.}
+     * Only the writer thread appends, publishing each record by advancing {@link #end} once it is
+     * complete, so any thread may read the records before end at any time. */
+    private static final class Segment {
+        final Path path;
+        // Sequence number of the first record.
+        final long baseSequence;
+        final MappedByteBuffer buffer;
+        // Length of the records written so far, and the sequence number of the last of them.
+        volatile int end;
+        volatile long lastSequence;
+        // Sequence number and position of index entries [0, indexCount), preallocated so readers
+        // never see the arrays replaced.
+        final long[] indexSequences;
+        final int[] indexPositions;
+        volatile int indexCount;
+        // When the last record was written, in milliseconds since the epoch.
+        long lastWriteMillis;
+
+        Segment(Path path, long baseSequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseSequence = baseSequence;
+            this.buffer = buffer;
+            lastSequence = baseSequence - 1;
+            indexSequences = new long[buffer.capacity() / INDEX_INTERVAL + 1];
+            indexPositions = new int[indexSequences.length];
+        }
+
+        // Notes where a record starts, if it's far enough past the last record indexed.
+        void index(long sequence, int position) {
+            int count = indexCount;
+            if (count > 0 && position - indexPositions[count - 1] < INDEX_INTERVAL)
+                return;
+            indexSequences[count] = sequence;
+            indexPositions[count] = position;
+            indexCount = count + 1;
+        }
+
+        // Position of the last indexed record at or before sequence, which must be in the segment.
+        int seek(long sequence) {
+            int lo = 0, hi = indexCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (indexSequences[mid] <= sequence)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return indexPositions[lo];
+        }
+
+        Path indexPath() {
+            return path.resolveSibling(path.getFileName().toString().replace(SEGMENT_SUFFIX, INDEX_SUFFIX));
+        }
+    }
+
+    // Opens the log in dir, creating it if need be, and picks up numbering after whatever it already
+    // holds.
+    MessageLog(Path dir, int segmentSize, long maxBytes, long maxAgeMillis, LogSink log)
+            throws IOException {
+        this.dir = dir;
+        // Every record must fit in an empty segment.
+        this.segmentSize = Math.max(segmentSize, RECORD_HEADER + FrameCodec.HEADER_LENGTH + FrameCodec.MAX_PAYLOAD);
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.log = log;
+        pending = new ArrayBlockingQueue<SharedLine>(QUEUE_CAPACITY);
+        Files.createDirectories(dir);
+        segments = recover();
+        Segment active = segments[segments.length - 1];
+        nextSequence = active.lastSequence + 1;
+        lastQueued = lastWritten = active.lastSequence;
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+        log.log(LogSink.Kind.INFO, null, String.format("Message history in %s holds messages up to #%d.",
+                dir, lastWritten));
+    }
+
+    /** {@summary Queues a [MSG] frame to be written, holding a reference to it until it has been.}
+     * Only ever called by the dispatcher thread, which numbers frames in the order it relays them.
+     * @return The sequence number the frame is written under, or -1 if it was dropped or the log has
+     *         failed. */
+    long append(SharedLine frame) {
+        if (failed)
+            return -1;
+        frame.retain();
+        if (!pending.offer(frame)) {
+            frame.release();
+            dropped.incrementAndGet();
+            return -1;
+        }
+        long sequence = nextSequence++;
+        lastQueued = sequence;
+        if (parked.get() && parked.compareAndSet(true, false))
+            LockSupport.unpark(thread);
+        return sequence;
+    }
+
+    // Sequence number of the last frame queued by append, whether or not it's been written yet.
+    long lastSequence() {
+        return lastQueued;
+    }
+
+    // Waits up to timeoutMillis for everything up to sequence to be written, returning whether it was.
+    boolean awaitWritten(long sequence, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (lastWritten < sequence) {
+            if (closed || failed || deadline - System.nanoTime() <= 0)
+                return false;
+            LockSupport.parkNanos(this, 50_000);
+        }
+        return true;
+    }
+
+    /** {@summary Passes up to count of the most recent messages, up to sequence last, to sink, oldest first.}
+     * Each is a read-only view of its frame in the mapped segment it was written to, positioned at zero.
+     * Safe to call from any thread, concurrently with the writer.
+     * @return The number of messages passed to sink. */
+    int replay(long last, int count, Consumer<ByteBuffer> sink) {
+        Segment[] current = segments;
+        last = Math.min(last, lastWritten);
+        long first = Math.max(last - count + 1, current[0].baseSequence);
+        int passed = 0;
+        for (Segment segment : current) {
+            if (segment.lastSequence < first || segment.indexCount == 0)
+                continue;
+            if (segment.baseSequence > last)
+                break;
+            int end = segment.end;
+            int pos = segment.seek(Math.max(first, segment.baseSequence));
+            ByteBuffer buffer = segment.buffer;
+            while (pos < end) {
+                int length = buffer.getInt(pos);
+                long sequence = buffer.getLong(pos + 4);
+                if (sequence > last)
+                    return passed;
+                if (sequence >= first) {
+                    sink.accept(buffer.slice(pos + RECORD_HEADER, length).asReadOnlyBuffer());
+                    ++passed;
+                }
+                pos += RECORD_HEADER + length;
+            }
+        }
+        return passed;
+    }
+
+    // Writes out whatever has been queued so far, then stops the writer and flushes the current segment.
+    void close() {
+        closed = true;
+        parked.set(false);
+        LockSupport.unpark(thread);
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            SharedLine frame = pending.poll();
+            if (frame != null) {
+                try {
+                    if (!failed)
+                        write(frame);
+                } catch (IOException e) {
+                    failed = true;
+                    log.log(LogSink.Kind.ERROR, null, "Unable to write message history, so it is stopped at #"
+                            + lastWritten + ": " + e.getMessage());
+                } finally {
+                    frame.release();
+                }
+                continue;
+            }
+            reportDropped();
+            if (System.nanoTime() - lastRetentionCheck >= RETENTION_CHECK_NANOS)
+                enforceRetention();
+            if (closed)
+                break;
+            // Publish that we are about to park before re-checking the queue, as for the log sink. The
+            // timeout lets segments age out while nothing is being written.
+            parked.set(true);
+            if (pending.isEmpty() && !closed)
+                LockSupport.parkNanos(this, RETENTION_CHECK_NANOS);
+            parked.set(false);
+        }
+        segments[segments.length - 1].buffer.force();
+    }
+
+    private void reportDropped() {
+        long lost = dropped.get();
+        if (lost != droppedReported) {
+            log.log(LogSink.Kind.WARN, null, (lost - droppedReported)
+                    + " messages left out of the message history; its writer fell behind.");
+            droppedReported = lost;
+        }
+    }
+
+    // Appends a frame to the current segment, starting a new one first if it doesn't fit. Throws only if
+    // the new one couldn't be created, leaving the current one as it was.
+    private void write(SharedLine frame) throws IOException {
+        Segment segment = segments[segments.length - 1];
+        long sequence = segment.lastSequence + 1;
+        ByteBuffer src = frame.view();
+        int length = src.remaining();
+        int pos = segment.end;
+        if (pos + RECORD_HEADER + length > segment.buffer.capacity()) {
+            // Created before the full one is sealed, since sealing trims the file under its mapping, which
+            // must never be written past again.
+            Segment full = segment;
+            segment = create(sequence);
+            segments = append(segments, segment);
+            try {
+                seal(full);
+            } catch (IOException e) {
+                // It is never written to again either way, and is scanned in full on restart should its
+                // index be missing.
+                log.log(LogSink.Kind.ERROR, null, "Unable to seal message history segment: " + e.getMessage());
+            }
+            enforceRetention();
+            pos = 0;
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putLong(pos + 4, sequence);
+        buffer.put(pos + RECORD_HEADER, src, src.position(), length);
+        buffer.putInt(pos, length);
+        segment.index(sequence, pos);
+        segment.lastSequence = sequence;
+        segment.lastWriteMillis = System.currentTimeMillis();
+        segment.end = pos + RECORD_HEADER + length;
+        lastWritten = sequence;
+    }
+
+    // Finishes a full segment: flushes it, trims the file to what it holds and saves its index. Its
+    // mapping stays valid for the records before the trimmed end, so readers carry on using it.
+    private void seal(Segment segment) throws IOException {
+        segment.buffer.force();
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+            channel.truncate(segment.end);
+        }
+        ByteBuffer index = ByteBuffer.allocate(segment.indexCount * 12);
+        for (int i = 0; i < segment.indexCount; ++i) {
+            index.putLong(segment.indexSequences[i]).putInt(segment.indexPositions[i]);
+        }
+        Files.write(segment.indexPath(), index.array());
+        Files.setLastModifiedTime(segment.path, FileTime.fromMillis(segment.lastWriteMillis));
+    }
+
+    // Creates and maps an empty segment starting at baseSequence, leaving no file behind if it can't.
+    private Segment create(long baseSequence) throws IOException {
+        Path path = dir.resolve(String.format("%020d%s", baseSequence, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Only once the file is our own, which it isn't should it already have existed.
+        try (channel) {
+            Segment segment = new Segment(path, baseSequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segment.lastWriteMillis = System.currentTimeMillis();
+            return segment;
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    // Deletes the oldest full segments while the log is too big, or they hold nothing recent enough.
+    private void enforceRetention() {
+        lastRetentionCheck = System.nanoTime();
+        Segment[] current = segments;
+        long total = 0;
+        for (Segment segment : current) {
+            total += segment.end;
+        }
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        while (expired < current.length - 1) {
+            Segment oldest = current[expired];
+            boolean tooOld = maxAgeMillis > 0 && now - oldest.lastWriteMillis > maxAgeMillis;
+            if (total <= maxBytes && !tooOld)
+                break;
+            total -= oldest.end;
+            ++expired;
+        }
+        if (expired == 0)
+            return;
+        // Readers still holding a removed segment keep reading it through its mapping.
+        segments = Arrays.copyOfRange(current, expired, current.length);
+        for (int i = 0; i < expired; ++i) {
+            try {
+                Files.deleteIfExists(current[i].indexPath());
+                Files.deleteIfExists(current[i].path);
+            } catch (IOException e) {
+                log.log(LogSink.Kind.ERROR, null, "Unable to delete message history: " + e.getMessage());
+            }
+        }
+    }
+
+    // Maps every segment already in dir, oldest first, or creates the first one if there are none.
+    // The last is reopened for writing after the last complete record it holds.
+    private Segment[] recover() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        // Zero-padded names sort in sequence order.
+        paths.sort(null);
+        if (paths.isEmpty())
+            return new Segment[] { create(1) };
+        Segment[] recovered = new Segment[paths.size()];
+        for (int i = 0; i < recovered.length; ++i) {
+            Path path = paths.get(i);
+            long baseSequence = Long.parseLong(path.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+            boolean active = (i == recovered.length - 1);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = (active ? Math.max(channel.size(), segmentSize) : channel.size());
+                Segment segment = new Segment(path, baseSequence, channel.map(
+                        (active ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY), 0, size));
+                segment.lastWriteMillis = Files.getLastModifiedTime(path).toMillis();
+                if (active || !loadIndex(segment, (int) size))
+                    scan(segment, (int) size);
+                recovered[i] = segment;
+            }
+        }
+        return recovered;
+    }
+
+    // Reads a full segment's saved index, returning false if there isn't a usable one.
+    private boolean loadIndex(Segment segment, int size) throws IOException {
+        Path path = segment.indexPath();
+        if (!Files.exists(path))
+            return false;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (index.remaining() == 0 || index.remaining() % 12 != 0 || index.remaining() / 12 > segment.indexSequences.length)
+            return false;
+        int count = 0;
+        while (index.hasRemaining()) {
+            segment.indexSequences[count] = index.getLong();
+            segment.indexPositions[count++] = index.getInt();
+        }
+        segment.indexCount = count;
+        segment.end = size;
+        // The segment ends where the last indexed record's successors do; find the last one's number.
+        int pos = segment.indexPositions[count - 1];
+        long sequence = segment.indexSequences[count - 1];
+        while (pos + RECORD_HEADER <= size) {
+            sequence = segment.buffer.getLong(pos + 4);
+            pos += RECORD_HEADER + segment.buffer.getInt(pos);
+        }
+        segment.lastSequence = sequence;
+        return true;
+    }
+
+    // Rebuilds a segment's index by reading every record in it, stopping at the first that is
+    // unfinished or doesn't hold a well-formed frame, after which the segment is written from.
+    private void scan(Segment segment, int size) {
+        ByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        long expected = segment.baseSequence;
+        while (pos + RECORD_HEADER <= size) {
+            int length = buffer.getInt(pos);
+            if (length < FrameCodec.HEADER_LENGTH || length > size - pos - RECORD_HEADER
+                    || buffer.getLong(pos + 4) != expected
+                    || buffer.getInt(pos + RECORD_HEADER + 1) != length - FrameCodec.HEADER_LENGTH)
+                break;
+            segment.index(expected, pos);
+            segment.lastSequence = expected++;
+            pos += RECORD_HEADER + length;
+        }
+        segment.end = pos;
+    }
+
+    private static Segment[] append(Segment[] segments, Segment segment) {
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = segment;
+        return grown;
+    }
+}
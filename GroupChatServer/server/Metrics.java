@@ -0,0 +1,213 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * {@summary The server's counters, gauges and latency histograms, and the one place they are read from.}
+ * Everything recorded on the hot path is a {@link LongAdder}, striped across cells so that any number of
+ * threads counting at once never contend on a single word, or a {@link Histogram}. A histogram records a
+ * value as two striped increments, of its bucket and of its total, and a striped update of its maximum.
+ * Nothing is aggregated until someone reads it.
+ * <p>
+ * Every metric is registered under a name in {@link #metrics}, in the order it is reported in, and read
+ * from there by the JMX view ({@link DynamicMBean}), by the periodic dump ({@link #text}, {@link #json})
+ * and by clients' [STATS] requests alike. Rates per second are worked out once a second by {@link #tick}. */
+final class Metrics implements DynamicMBean {
+    // Connections accepted, and registered clients removed for good.
+    final LongAdder accepts = new LongAdder(), disconnects = new LongAdder();
+    // Messages and requests read from clients, and lines and frames written to them, and their bytes.
+    final LongAdder messagesIn = new LongAdder(), messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+    // Messages in the outbox, waiting for the dispatcher.
+    final LongAdder outboxDepth = new LongAdder();
+    // Lines and frames read from clients over their rate limits, each pausing reading from its sender,
+    // and times a client's reader was held up by a full outbox.
+    final LongAdder rateLimited = new LongAdder(), outboxStalls = new LongAdder();
+    // Connections closed for not finishing their handshake in time, and clients dropped for going quiet
+    // past the idle timeout.
+    final LongAdder handshakeTimeouts = new LongAdder(), idleTimeouts = new LongAdder();
+    // Users connecting or disconnecting that were never announced, having been undone within the same
+    // presence batch.
+    final LongAdder presenceCancelled = new LongAdder();
+    // From a message being queued to its line being written to a client, and from a connection being
+    // accepted to its acknowledgement being written, in nanoseconds.
+    final Histogram sendLatency = new Histogram(), handshakeTime = new Histogram();
+    // From a heartbeat ping being written to its pong being read, in nanoseconds.
+    final Histogram heartbeatRtt = new Histogram();
+
+    private final Map<String, Supplier<Object>> metrics = new LinkedHashMap<String, Supplier<Object>>();
+    // Totals as of the last tick, and the rates per second worked out then, in the order of RATES.
+    private static final String[] RATES = { "accepts", "disconnects", "messagesIn", "messagesOut", "bytesIn", "bytesOut" };
+    private final LongAdder[] rated = { accepts, disconnects, messagesIn, messagesOut, bytesIn, bytesOut };
+    private final long[] lastTotals = new long[RATES.length];
+    private final double[] rates = new double[RATES.length];
+    private long lastTickNanos = System.nanoTime();
+
+    // activeConnections, queueDepths and outboxBytes read the server's current state: the number of
+    // registered clients, the depth of every client's outbound queue, and the bytes in the outbox.
+    Metrics(Supplier<Integer> activeConnections, Supplier<int[]> queueDepths, Supplier<Long> outboxBytes) {
+        metrics.put("activeConnections", activeConnections::get);
+        for (int i = 0; i < RATES.length; ++i) {
+            LongAdder total = rated[i];
+            int rate = i;
+            metrics.put(RATES[i], total::sum);
+            metrics.put(RATES[i] + "PerSecond", () -> round(rate(rate)));
+        }
+        metrics.put("outboxDepth", outboxDepth::sum);
+        metrics.put("outboxBytes", outboxBytes::get);
+        metrics.put("rateLimited", rateLimited::sum);
+        metrics.put("outboxStalls", outboxStalls::sum);
+        metrics.put("handshakeTimeouts", handshakeTimeouts::sum);
+        metrics.put("idleTimeouts", idleTimeouts::sum);
+        metrics.put("presenceCancelled", presenceCancelled::sum);
+        metrics.put("sendQueueDepthMax", () -> {
+            int max = 0;
+            for (int depth : queueDepths.get()) {
+                max = Math.max(max, depth);
+            }
+            return max;
+        });
+        metrics.put("sendQueueDepthTotal", () -> {
+            long total = 0;
+            for (int depth : queueDepths.get()) {
+                total += depth;
+            }
+            return total;
+        });
+        addHistogram("sendLatency", sendLatency);
+        addHistogram("handshakeTime", handshakeTime);
+        addHistogram("heartbeatRtt", heartbeatRtt);
+    }
+
+    // Reports a histogram as its count, and its percentiles and maximum in microseconds.
+    private void addHistogram(String name, Histogram histogram) {
+        metrics.put(name + "Count", histogram::count);
+        metrics.put(name + "P50Micros", () -> micros(histogram.percentile(50)));
+        metrics.put(name + "P90Micros", () -> micros(histogram.percentile(90)));
+        metrics.put(name + "P99Micros", () -> micros(histogram.percentile(99)));
+        metrics.put(name + "P999Micros", () -> micros(histogram.percentile(99.9)));
+        metrics.put(name + "MaxMicros", () -> micros(histogram.max()));
+    }
+
+    private static double micros(long nanos) {
+        return round(nanos / 1000.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private synchronized double rate(int i) {
+        return rates[i];
+    }
+
+    // Works out the rates per second since the last tick. Called once a second.
+    synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNanos) / 1e9;
+        if (seconds <= 0)
+            return;
+        for (int i = 0; i < rated.length; ++i) {
+            long total = rated[i].sum();
+            rates[i] = (total - lastTotals[i]) / seconds;
+            lastTotals[i] = total;
+        }
+        lastTickNanos = now;
+    }
+
+    // Counts a line or frame of length bytes written to a client at now, which was queued at queuedAt,
+    // both in System.nanoTime(), or zero if it wasn't queued.
+    void sent(long queuedAt, int length, long now) {
+        messagesOut.increment();
+        bytesOut.add(length);
+        if (queuedAt != 0)
+            sendLatency.record(now - queuedAt);
+    }
+
+    // The value of every metric whose name starts with prefix, as name=value pairs.
+    List<String> values(String prefix) {
+        List<String> values = new ArrayList<String>();
+        for (Map.Entry<String, Supplier<Object>> metric : metrics.entrySet()) {
+            if (metric.getKey().startsWith(prefix))
+                values.add(metric.getKey() + "=" + metric.getValue().get());
+        }
+        return values;
+    }
+
+    // Every metric, as name=value pairs separated by spaces.
+    String text() {
+        return String.join(" ", values(""));
+    }
+
+    // Every metric, as a flat JSON object.
+    String json() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Supplier<Object>> metric : metrics.entrySet()) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append('"').append(metric.getKey()).append("\":").append(metric.getValue().get());
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Supplier<Object> metric = metrics.get(name);
+        if (metric == null)
+            throw new AttributeNotFoundException(name);
+        return metric.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Supplier<Object> metric = metrics.get(name);
+            if (metric != null)
+                list.add(new Attribute(name, metric.get()));
+        }
+        return list;
+    }
+
+    // Every metric is read-only.
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(action);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Supplier<Object>> metric : metrics.entrySet()) {
+            String type = metric.getValue().get().getClass().getName();
+            attributes.add(new MBeanAttributeInfo(metric.getKey(), type, metric.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Group chat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@summary A client's bounded queue of lines waiting to be written to it, and its overflow policy.}
+ * Bounded, so that a client which stops reading only ever lags behind by so many lines before the policy
+ * kicks in, and never holds up whoever queues lines for it, or any other client. Each line queued holds a
+ * reference to its {@link SharedLine} of its own, which whoever takes it off the queue releases once
+ * written. One thread queues lines, the client's dispatcher shard, and one takes them, its writer.
+ * <p>
+ * A shard fans every broadcast out into these, as does benchmarks.FanOutBenchmark. */
+final class OutboundQueue {
+    // What became of a line offered to the queue.
+    enum Offer {
+        // It was queued.
+        QUEUED,
+        // The queue was full, and the policy has dealt with it, dropping a line unless it disconnects the
+        // client. LAGGING is the first time of a run, for it to be reported once per run.
+        LAGGING,
+        OVERFLOWING,
+        // The queue was full, and the policy is to disconnect the client; the queue has been emptied.
+        DISCONNECT
+    }
+
+    private final ArrayBlockingQueue<SharedLine> lines;
+    private final int capacity;
+    private final ServerOptions.OverflowPolicy policy;
+    // Number of lines discarded by the policy over the lifetime of the queue.
+    private volatile long droppedCount = 0;
+    // Whether the queue overflowed on the last offer. Only touched by the thread queueing.
+    private boolean overflowing = false;
+
+    OutboundQueue(int capacity, ServerOptions.OverflowPolicy policy) {
+        lines = new ArrayBlockingQueue<SharedLine>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Queues line, taking a reference to it of its own, applying the policy if the queue is full.
+    Offer offer(SharedLine line) {
+        line.retain();
+        if (lines.offer(line)) {
+            overflowing = false;
+            return Offer.QUEUED;
+        }
+        Offer result = (overflowing ? Offer.OVERFLOWING : Offer.LAGGING);
+        overflowing = true;
+        switch (policy) {
+            case DROP_NEWEST:
+                line.release();
+                droppedCount++;
+                break;
+            case DROP_OLDEST:
+                // Only one thread queues, so this only ever loops if the writer concurrently drained the
+                // queue, in which case the offer simply succeeds.
+                while (!lines.offer(line)) {
+                    SharedLine oldest = lines.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        droppedCount++;
+                    }
+                }
+                break;
+            case DISCONNECT:
+                line.release();
+                clear();
+                return Offer.DISCONNECT;
+        }
+        return result;
+    }
+
+    // The next line to write, or null if there is none. The caller takes over its reference.
+    SharedLine poll() {
+        return lines.poll();
+    }
+
+    // As above, waiting up to timeout for one.
+    SharedLine poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return lines.poll(timeout, unit);
+    }
+
+    // As above, waiting however long it takes.
+    SharedLine take() throws InterruptedException {
+        return lines.take();
+    }
+
+    boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    int size() {
+        return lines.size();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long droppedCount() {
+        return droppedCount;
+    }
+
+    // Empties the queue, releasing the lines it held.
+    void clear() {
+        SharedLine line;
+        while ((line = lines.poll()) != null) {
+            line.release();
+        }
+    }
+}
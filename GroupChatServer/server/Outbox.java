@@ -0,0 +1,96 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * {@summary Queue of messages that any number of threads add to and a single consumer drains in batches.}
+ * Lock-free, so producers never wait on each other or on the consumer, which parks while the queue is
+ * empty and is unparked by the first producer to add to it after it parks, and only then. Keeps count
+ * of the messages and bytes queued, so producers can tell when the consumer is falling behind.
+ * <p>
+ * The server's dispatcher drains its outbox through this, as does benchmarks.OutboxBenchmark. */
+final class Outbox<T> {
+    // Most messages taken by one poll.
+    static final int BATCH_SIZE = 256;
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+    // Roughly how many bytes a message takes up while queued.
+    private final ToIntFunction<? super T> sizeOf;
+    // Messages queued, which may be shared with whoever reports it, and their bytes.
+    private final LongAdder depth;
+    private final AtomicLong bytes = new AtomicLong();
+    // Set by the consumer just before it parks, so producers only pay for an unpark when it is
+    // actually idle.
+    private final AtomicBoolean parked = new AtomicBoolean(false);
+    private volatile Thread consumer;
+    // Messages taken by the current poll. Only touched by the consumer.
+    private final T[] drained;
+
+    // An outbox counting messages into depth, and their bytes as sizeOf has it.
+    Outbox(IntFunction<T[]> newArray, ToIntFunction<? super T> sizeOf, LongAdder depth) {
+        this.sizeOf = sizeOf;
+        this.depth = depth;
+        drained = newArray.apply(BATCH_SIZE);
+    }
+
+    // Adds msg, waking the consumer if it is parked. Safe from any thread.
+    void add(T msg) {
+        bytes.addAndGet(sizeOf.applyAsInt(msg));
+        depth.increment();
+        queue.add(msg);
+        wake();
+    }
+
+    /** {@summary Takes up to BATCH_SIZE messages, in the order they were added.}
+     * Only called by the consumer.
+     * @return The messages, in an array of their own, or null if there were none. */
+    T[] poll() {
+        int count = 0;
+        long size = 0;
+        T msg;
+        while (count < BATCH_SIZE && (msg = queue.poll()) != null) {
+            size += sizeOf.applyAsInt(msg);
+            drained[count++] = msg;
+        }
+        if (count == 0)
+            return null;
+        depth.add(-count);
+        bytes.addAndGet(-size);
+        // The consumer may still be working through earlier batches, so each gets an array of its own.
+        T[] batch = Arrays.copyOf(drained, count);
+        Arrays.fill(drained, 0, count, null);
+        return batch;
+    }
+
+    // Parks the consumer, which is the calling thread, until a message is added, unless there already is
+    // one or stopping says to stop. May also return spuriously, or once the thread is unparked.
+    void await(BooleanSupplier stopping) {
+        consumer = Thread.currentThread();
+        // Publish that we are about to park before re-checking the queue. A producer either sees the
+        // flag and unparks us, or we see its message here.
+        parked.set(true);
+        if (queue.isEmpty() && !stopping.getAsBoolean())
+            LockSupport.park(this);
+        parked.set(false);
+    }
+
+    // Unparks the consumer if it is parked.
+    void wake() {
+        if (parked.get() && parked.compareAndSet(true, false))
+            LockSupport.unpark(consumer);
+    }
+
+    // Bytes of the messages queued.
+    long bytes() {
+        return bytes.get();
+    }
+}
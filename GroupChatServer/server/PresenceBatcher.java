@@ -0,0 +1,109 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * {@summary Coalesces users connecting and disconnecting into one roster delta per time window.}
+ * Every join and leave is held until the next {@link #flush}, and then announced along with everything
+ * else that changed meanwhile, as a single batch. Only each name's net change since the last batch is
+ * announced, so a user who leaves and comes straight back, or connects and drops again, isn't announced
+ * at all. A burst of reconnections then costs each client one line per window rather than one per user.
+ * <p>
+ * Also keeps the roster as of the last batch, which new clients are acknowledged with rather than the
+ * roster as it stands, so the next batch applies to it exactly. Changes are added from any thread, and
+ * flushed by one at a time.
+ * <p>
+ * The server batches every [NC] and [DC] through this, local or relayed from another node, flushing it
+ * once per {@link ServerOptions#presenceWindowMillis}. */
+final class PresenceBatcher<T> {
+    // Most characters of names carried in one batch; longer batches are split, to stay well within the
+    // longest line and frame a client reads.
+    static final int MAX_BATCH_CHARS = 16 << 10;
+
+    // The username a change is to, and whether it is a join rather than a leave.
+    private final Function<? super T, String> nameOf;
+    private final Predicate<? super T> isJoin;
+    // Given every change that is never announced, having been superseded or cancelled out.
+    private final Consumer<? super T> discard;
+    // Changes that cancelled out, which may be shared with whoever reports it.
+    private final LongAdder cancelled;
+    // Everyone as of the last batch.
+    private final Roster<Boolean> announced = new Roster<Boolean>(Boolean[]::new);
+    // The latest change to each name since the last batch, in order of first change.
+    private final LinkedHashMap<String, T> pending = new LinkedHashMap<String, T>();
+
+    PresenceBatcher(Function<? super T, String> nameOf, Predicate<? super T> isJoin, Consumer<? super T> discard,
+            LongAdder cancelled) {
+        this.nameOf = nameOf;
+        this.isJoin = isJoin;
+        this.discard = discard;
+        this.cancelled = cancelled;
+    }
+
+    /** {@summary Holds change for the next batch, in place of any earlier change to the same name.}
+     * Safe from any thread.
+     * @return Whether it is the first change since the last flush, which the caller is to schedule the
+     *         next flush on. */
+    synchronized boolean changed(T change) {
+        boolean first = pending.isEmpty();
+        T previous = pending.put(nameOf.apply(change), change);
+        if (previous != null)
+            discard.accept(previous);
+        return first;
+    }
+
+    /** {@summary Hands the net change since the last batch, if there is any, to announce.}
+     * The joins and leaves are given in order of each name's first change, split into as many calls as
+     * it takes to keep each to MAX_BATCH_CHARS of names and their delimiters, but at least one name. The
+     * lists are reused once announce returns. Only called by one thread at a time. */
+    void flush(BiConsumer<List<T>, List<T>> announce) {
+        ArrayList<T> changes;
+        synchronized (this) {
+            changes = new ArrayList<T>(pending.values());
+            pending.clear();
+        }
+        ArrayList<T> joins = new ArrayList<T>(), leaves = new ArrayList<T>();
+        int chars = 0;
+        for (T change : changes) {
+            String name = nameOf.apply(change);
+            boolean joined = isJoin.test(change);
+            if (joined == (announced.get(name) != null)) {
+                // Back where it was as of the last batch.
+                cancelled.increment();
+                discard.accept(change);
+                continue;
+            }
+            if (chars > 0 && chars + name.length() + 1 > MAX_BATCH_CHARS) {
+                announce.accept(joins, leaves);
+                joins.clear();
+                leaves.clear();
+                chars = 0;
+            }
+            // Updated before the batch is announced, so any client acknowledged with this roster from
+            // here on is registered in time to be sent the batch too, which changes nothing for it.
+            if (joined)
+                announced.add(name, Boolean.TRUE);
+            else
+                announced.remove(name, Boolean.TRUE);
+            (joined ? joins : leaves).add(change);
+            chars += name.length() + 1;
+        }
+        if (!joins.isEmpty() || !leaves.isEmpty())
+            announce.accept(joins, leaves);
+    }
+
+    // The roster as of the last batch, as encoded by Roster.encode, with the newly registered username
+    // added unless it is already there.
+    String encode(String prefix, String username) {
+        String roster = announced.encode(prefix, '\t');
+        return (announced.get(username) != null ? roster : roster + "\t" + username);
+    }
+}
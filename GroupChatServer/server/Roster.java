@@ -0,0 +1,186 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * {@summary Versioned, concurrent set of connected users, keyed by username, with O(1) joins and leaves.}
+ * Members live in a {@link ConcurrentHashMap}, so registering, looking up and removing a user never takes
+ * a lock shared with anyone else. Every change bumps {@link #version}, and the snapshots handed out by
+ * {@link #names} and {@link #members} are cached against it, so any number of readers share one copy
+ * per change rather than copying the roster on every read. A snapshot taken after a change completed
+ * always reflects it.
+ * <p>
+ * The roster also resolves username collisions: {@link #register} gives a taken name the next free
+ * numeric suffix for that base name in O(1), from a per-name {@link SuffixPool}, and {@link #remove}
+ * hands the suffix back for reuse. */
+final class Roster<T> {
+    private final ConcurrentHashMap<String, T> members = new ConcurrentHashMap<String, T>();
+    // Suffix pools for base names that have collided, while any of their suffixes is in use.
+    private final ConcurrentHashMap<String, SuffixPool> suffixes = new ConcurrentHashMap<String, SuffixPool>();
+    private final IntFunction<T[]> newArray;
+    private final AtomicLong version = new AtomicLong();
+    // Total length of all names, so an encoding of the whole roster can be sized up front.
+    private final AtomicInteger nameChars = new AtomicInteger();
+    private volatile Snapshot<T> snapshot;
+
+    // The roster as of one version.
+    private static final class Snapshot<T> {
+        final long version;
+        final String[] names;
+        final T[] members;
+
+        Snapshot(long version, String[] names, T[] members) {
+            this.version = version;
+            this.names = names;
+            this.members = members;
+        }
+    }
+
+    /**
+     * {@summary The numeric suffixes handed out for one base name.}
+     * Suffixes that have been given back are reused, most recent first, before any new one is minted,
+     * so taking and returning one are both O(1) however many users share the base name. Only touched
+     * inside {@link ConcurrentHashMap#compute} for its base name, which serializes access to it. */
+    private static final class SuffixPool {
+        private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+        // Smallest suffix never handed out.
+        private int next = 1;
+        // Number of suffixes currently in use. The pool is discarded once it drops to zero.
+        private int live = 0;
+
+        int take() {
+            ++live;
+            Integer reused = free.pollFirst();
+            return (reused != null ? reused : next++);
+        }
+
+        // Returns a suffix, reporting whether the pool is still in use.
+        boolean give(int suffix) {
+            free.addFirst(suffix);
+            return --live > 0;
+        }
+    }
+
+    // newArray creates member arrays for snapshots.
+    Roster(IntFunction<T[]> newArray) {
+        this.newArray = newArray;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // Incremented by every join and leave.
+    long version() {
+        return version.get();
+    }
+
+    T get(String name) {
+        return members.get(name);
+    }
+
+    /** {@summary Add member under name, or under name followed by the next free suffix if name is taken.}
+     * @return The suffix the member was registered with, or zero if it got name as is. */
+    int register(String name, T member) {
+        return register(name, member, null);
+    }
+
+    /** {@summary As above, also treating any name that reserved accepts as taken.}
+     * Used for names held outside the roster, such as by users on other nodes of a cluster. */
+    int register(String name, T member, Predicate<String> reserved) {
+        if ((reserved == null || !reserved.test(name)) && add(name, member))
+            return 0;
+        int[] suffix = new int[1];
+        while (true) {
+            suffixes.compute(name, (base, pool) -> {
+                if (pool == null)
+                    pool = new SuffixPool();
+                int s = pool.take();
+                // Skip past anyone who asked for one of these names outright. Those suffixes are retired
+                // rather than returned, so the pool never offers them again.
+                while (members.containsKey(base + s) || (reserved != null && reserved.test(base + s))) {
+                    s = pool.next++;
+                }
+                suffix[0] = s;
+                return pool;
+            });
+            if (add(name + suffix[0], member))
+                return suffix[0];
+            // Someone took the name between the check and the put; that suffix is retired too.
+            suffixes.computeIfPresent(name, (base, pool) -> (--pool.live > 0 ? pool : null));
+        }
+    }
+
+    // Adds member under name, unless name is already taken. Returns whether it was added.
+    boolean add(String name, T member) {
+        if (members.putIfAbsent(name, member) != null)
+            return false;
+        nameChars.addAndGet(name.length());
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Removes name, but only if it is still held by member. Returns whether it was removed.
+    boolean remove(String name, T member) {
+        return remove(name, member, null, 0);
+    }
+
+    // As above, also handing the suffix it was registered with, as returned by register for
+    // requestedName, back for reuse.
+    boolean remove(String name, T member, String requestedName, int suffix) {
+        if (!members.remove(name, member))
+            return false;
+        nameChars.addAndGet(-name.length());
+        version.incrementAndGet();
+        if (suffix > 0)
+            suffixes.computeIfPresent(requestedName, (base, pool) -> (pool.give(suffix) ? pool : null));
+        return true;
+    }
+
+    // The usernames in the roster, as of the current version.
+    String[] names() {
+        return current().names;
+    }
+
+    // The members of the roster, as of the current version.
+    T[] members() {
+        return current().members;
+    }
+
+    private Snapshot<T> current() {
+        // Read the version first: if anything changes while the copy is made, the copy is recorded
+        // as older than the change and is rebuilt by the next caller.
+        long v = version.get();
+        Snapshot<T> s = snapshot;
+        if (s != null && s.version == v)
+            return s;
+        ArrayList<String> names = new ArrayList<String>(members.size());
+        ArrayList<T> values = new ArrayList<T>(members.size());
+        for (Map.Entry<String, T> entry : members.entrySet()) {
+            names.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        s = new Snapshot<T>(v, names.toArray(new String[names.size()]), values.toArray(newArray.apply(values.size())));
+        snapshot = s;
+        return s;
+    }
+
+    /** {@summary Encode the whole roster as one protocol line, in a single pass over it.}
+     * @return prefix, followed by every username, each preceded by delimiter. */
+    String encode(String prefix, char delimiter) {
+        StringBuilder sb = new StringBuilder(prefix.length() + nameChars.get() + members.size());
+        sb.append(prefix);
+        for (String name : members.keySet()) {
+            sb.append(delimiter).append(name);
+        }
+        return sb.toString();
+    }
+}
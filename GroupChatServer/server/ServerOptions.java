@@ -0,0 +1,294 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.net.InetSocketAddress;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@summary Startup options for {@link GroupChatServer}, parsed from its command line arguments.}
+ * The port number is always the first argument; everything after it is an optional flag. */
+class ServerOptions {
+    static final String USAGE = "java GroupChatServer <port number> [--nio[=<event loops>] | --virtual]" +
+            " [--queue=<lines>] [--overflow=drop-oldest|drop-newest|disconnect]" +
+            " [--batch=<lines>] [--linger=<ms>] [--tcp-nodelay=true|false] [--send-buffer=<bytes>]" +
+            " [--text-only] [--headless] [--log-file=<path>] [--log-file-size=<bytes>]" +
+            " [--log-files=<count>] [--log-buffer=<events>] [--shards=<threads>]" +
+            " [--cluster-port=<port>] [--peers=<host>:<port>[,...]] [--node-id=<id>]" +
+            " [--history-dir=<path>] [--history-segment-size=<bytes>] [--history-max-bytes=<bytes>]" +
+            " [--history-max-age=<minutes>] [--resume-grace=<seconds>] [--resume-buffer=<lines>]" +
+            " [--stats-interval=<seconds>] [--stats-format=text|json] [--compression=deflate|none]" +
+            " [--compress-threshold=<bytes>] [--msg-rate=<messages per second>] [--byte-rate=<bytes per second>]" +
+            " [--rate-burst=<seconds>] [--outbox-max-bytes=<bytes>] [--heartbeat=<seconds>]" +
+            " [--idle-timeout=<seconds>] [--handshake-timeout=<seconds>] [--presence-window=<ms>]";
+
+    // What to do when a client's outbound queue is full because it isn't reading fast enough.
+    enum OverflowPolicy {
+        // Discard the oldest queued line to make room for the new one.
+        DROP_OLDEST,
+        // Discard the new line, keeping what is already queued.
+        DROP_NEWEST,
+        // Disconnect the client.
+        DISCONNECT
+    }
+
+    // Port the listening socket is bound to.
+    int port;
+    // Number of selector event loops servicing clients. Zero selects the default thread-per-connection mode.
+    int nioLoops = 0;
+    // Run the listener and every client handler on virtual threads instead of platform threads.
+    boolean virtualThreads = false;
+    // Maximum number of lines queued for a single client before overflowPolicy applies.
+    int queueCapacity = 1024;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    // Most queued lines coalesced into a single write to a client's socket.
+    int batchSize = 64;
+    // Longest a partial batch is held back waiting for more lines to coalesce with, in milliseconds.
+    // Zero writes whatever is queued as soon as the dispatcher finishes a pass.
+    int lingerMillis = 0;
+    // Disable Nagle's algorithm on client sockets; the server already coalesces its own writes.
+    boolean tcpNoDelay = true;
+    // SO_SNDBUF for client sockets, in bytes, or zero for the OS default. Also sizes the write
+    // buffer of blocking clients.
+    int sendBufferSize = 0;
+    // Don't offer clients the binary frame protocol; speak only the legacy text protocol.
+    boolean textOnly = false;
+    // Run without a window, logging to standard output unless logFile is set. Implied when there is
+    // no display.
+    boolean headless = false;
+    // File the log is written to, or null for none (or standard output, when headless).
+    Path logFile = null;
+    // Size in bytes at which the log file is rolled over, and how many rolled over files to keep.
+    long logFileSize = 16L << 20;
+    int logFileCount = 5;
+    // Number of events the log buffers for its writer thread before it starts dropping them.
+    int logBufferSize = 8192;
+    // Number of threads messages are fanned out to clients on, each serving its own share of them.
+    int shards = Runtime.getRuntime().availableProcessors();
+    // Port other nodes of the cluster link to this one on, or zero to accept no links.
+    int clusterPort = 0;
+    // Nodes of the cluster this one dials.
+    List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+    // Identifies the node within the cluster, so must differ from every other node's. Defaults to
+    // clusterPort, or the client port when not accepting links.
+    int nodeId = -1;
+    // Directory every relayed chat message is logged to, for clients to catch up from on connecting,
+    // or null to keep no history.
+    Path historyDir = null;
+    // Size in bytes of each file of the history, and how big the whole history, and how old in
+    // milliseconds its oldest file, may get before the oldest file is deleted. A zero age keeps files
+    // however old they are.
+    int historySegmentSize = 64 << 20;
+    long historyMaxBytes = 1L << 30;
+    long historyMaxAgeMillis = 0;
+    // How long, in milliseconds, a client whose connection drops keeps its session, and so its username,
+    // for it to reconnect and resume. Zero ends every session as soon as its connection drops.
+    long resumeGraceMillis = 30_000;
+    // Number of lines last written to each client that are kept to be sent again should it resume.
+    int resumeBufferSize = 1024;
+    // How often, in milliseconds, the server's metrics are written to the log, and in which format. Zero
+    // never writes them; they can still be read over JMX, or by a client with a [STATS] request.
+    long statsIntervalMillis = 0;
+    boolean statsJson = false;
+    // Whether binary clients that ask for it in their handshake are sent deflated frames, and the
+    // smallest frame, in bytes, that is deflated; anything smaller gains too little to be worth it.
+    boolean compression = true;
+    int compressThreshold = 512;
+    // Most messages, and bytes, each client may send per second, or zero for no limit; reading from a
+    // client over either is paused until it is back under. Bursts of up to rateBurstSeconds' worth are let
+    // through at once.
+    long messageRate = 0;
+    long byteRate = 0;
+    long rateBurstSeconds = 1;
+    // Roughly how many bytes of messages the outbox may hold before reading from every client is paused
+    // until the dispatcher catches up.
+    long outboxMaxBytes = 64L << 20;
+    // How long, in milliseconds, a client that asked for heartbeats may stay quiet before it is pinged,
+    // and before it is dropped. A zero heartbeat pings no one and drops no one for going quiet.
+    long heartbeatMillis = 30_000;
+    long idleTimeoutMillis = 90_000;
+    // How long, in milliseconds, a new connection has to send its handshake before it is closed, or zero
+    // to wait for however long it takes.
+    long handshakeTimeoutMillis = 10_000;
+    // How long, in milliseconds, users connecting and disconnecting are gathered for before everyone is
+    // told of them in one batch, or zero to tell everyone of each one as it happens.
+    long presenceWindowMillis = 100;
+
+    // Parses the command line, printing an error and exiting the program on invalid input.
+    static ServerOptions parse(String[] args) {
+        ServerOptions opts = new ServerOptions();
+        if (args.length < 1) {
+            System.err.println("\033[1;31m[Error]:\033[0m Invalid arg count." +
+                    "\033[1;34m[Usage]:\033[0m " + USAGE);
+            System.exit(1);
+        }
+        try {
+            opts.port = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port number arg: " + e.getMessage());
+            System.exit(1);
+        }
+        for (int i = 1; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--nio")) {
+                // Non-blocking mode defaults to one event loop per core.
+                opts.nioLoops = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--nio=")) {
+                opts.nioLoops = positiveInt(arg, "--nio=");
+            } else if (arg.equals("--virtual")) {
+                opts.virtualThreads = true;
+            } else if (arg.startsWith("--queue=")) {
+                opts.queueCapacity = positiveInt(arg, "--queue=");
+            } else if (arg.startsWith("--overflow=")) {
+                try {
+                    opts.overflowPolicy = OverflowPolicy.valueOf(
+                            arg.substring("--overflow=".length()).toUpperCase().replace('-', '_'));
+                } catch (IllegalArgumentException e) {
+                    fail("Invalid value for option: " + arg);
+                }
+            } else if (arg.startsWith("--batch=")) {
+                opts.batchSize = positiveInt(arg, "--batch=");
+            } else if (arg.startsWith("--linger=")) {
+                opts.lingerMillis = intOption(arg, "--linger=", 0);
+            } else if (arg.equals("--tcp-nodelay=true") || arg.equals("--tcp-nodelay=false")) {
+                opts.tcpNoDelay = arg.endsWith("true");
+            } else if (arg.startsWith("--send-buffer=")) {
+                opts.sendBufferSize = positiveInt(arg, "--send-buffer=");
+            } else if (arg.equals("--text-only")) {
+                opts.textOnly = true;
+            } else if (arg.equals("--headless")) {
+                opts.headless = true;
+            } else if (arg.startsWith("--log-file=")) {
+                try {
+                    opts.logFile = Paths.get(arg.substring("--log-file=".length()));
+                } catch (InvalidPathException e) {
+                    fail("Invalid value for option: " + arg);
+                }
+            } else if (arg.startsWith("--log-file-size=")) {
+                opts.logFileSize = positiveInt(arg, "--log-file-size=");
+            } else if (arg.startsWith("--log-files=")) {
+                opts.logFileCount = intOption(arg, "--log-files=", 0);
+            } else if (arg.startsWith("--log-buffer=")) {
+                opts.logBufferSize = positiveInt(arg, "--log-buffer=");
+            } else if (arg.startsWith("--shards=")) {
+                opts.shards = positiveInt(arg, "--shards=");
+            } else if (arg.startsWith("--cluster-port=")) {
+                opts.clusterPort = positiveInt(arg, "--cluster-port=");
+            } else if (arg.startsWith("--peers=")) {
+                for (String peer : arg.substring("--peers=".length()).split(",")) {
+                    int colon = peer.lastIndexOf(':');
+                    int port = -1;
+                    try {
+                        port = Integer.parseInt(peer.substring(colon + 1));
+                    } catch (NumberFormatException e) {
+                        port = -1;
+                    }
+                    if (colon <= 0 || port < 1 || port > 65535)
+                        fail("Invalid peer in option: " + arg);
+                    opts.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), port));
+                }
+            } else if (arg.startsWith("--node-id=")) {
+                opts.nodeId = intOption(arg, "--node-id=", 0);
+            } else if (arg.startsWith("--history-dir=")) {
+                try {
+                    opts.historyDir = Paths.get(arg.substring("--history-dir=".length()));
+                } catch (InvalidPathException e) {
+                    fail("Invalid value for option: " + arg);
+                }
+            } else if (arg.startsWith("--history-segment-size=")) {
+                opts.historySegmentSize = positiveInt(arg, "--history-segment-size=");
+            } else if (arg.startsWith("--history-max-bytes=")) {
+                opts.historyMaxBytes = longOption(arg, "--history-max-bytes=", 1);
+            } else if (arg.startsWith("--history-max-age=")) {
+                opts.historyMaxAgeMillis = longOption(arg, "--history-max-age=", 0) * 60_000;
+            } else if (arg.startsWith("--resume-grace=")) {
+                opts.resumeGraceMillis = longOption(arg, "--resume-grace=", 0) * 1000;
+            } else if (arg.startsWith("--resume-buffer=")) {
+                opts.resumeBufferSize = positiveInt(arg, "--resume-buffer=");
+            } else if (arg.startsWith("--stats-interval=")) {
+                opts.statsIntervalMillis = longOption(arg, "--stats-interval=", 0) * 1000;
+            } else if (arg.startsWith("--stats-format=")) {
+                String format = arg.substring("--stats-format=".length());
+                if (!format.equals("text") && !format.equals("json"))
+                    fail("Invalid value for option: " + arg);
+                opts.statsJson = format.equals("json");
+            } else if (arg.startsWith("--compression=")) {
+                String codec = arg.substring("--compression=".length());
+                if (!codec.equals(FrameCodec.DEFLATE) && !codec.equals(FrameCodec.NO_CODEC))
+                    fail("Invalid value for option: " + arg);
+                opts.compression = codec.equals(FrameCodec.DEFLATE);
+            } else if (arg.startsWith("--compress-threshold=")) {
+                opts.compressThreshold = positiveInt(arg, "--compress-threshold=");
+            } else if (arg.startsWith("--msg-rate=")) {
+                opts.messageRate = longOption(arg, "--msg-rate=", 0);
+            } else if (arg.startsWith("--byte-rate=")) {
+                opts.byteRate = longOption(arg, "--byte-rate=", 0);
+            } else if (arg.startsWith("--rate-burst=")) {
+                opts.rateBurstSeconds = longOption(arg, "--rate-burst=", 1);
+            } else if (arg.startsWith("--outbox-max-bytes=")) {
+                opts.outboxMaxBytes = longOption(arg, "--outbox-max-bytes=", 1);
+            } else if (arg.startsWith("--heartbeat=")) {
+                opts.heartbeatMillis = longOption(arg, "--heartbeat=", 0) * 1000;
+            } else if (arg.startsWith("--idle-timeout=")) {
+                opts.idleTimeoutMillis = longOption(arg, "--idle-timeout=", 1) * 1000;
+            } else if (arg.startsWith("--handshake-timeout=")) {
+                opts.handshakeTimeoutMillis = longOption(arg, "--handshake-timeout=", 0) * 1000;
+            } else if (arg.startsWith("--presence-window=")) {
+                opts.presenceWindowMillis = longOption(arg, "--presence-window=", 0);
+            } else {
+                fail("Unrecognized option: " + arg);
+            }
+        }
+        if (opts.nioLoops > 0 && opts.virtualThreads)
+            fail("--nio and --virtual are mutually exclusive.");
+        if (opts.messageRate > TokenBucket.MAX_RATE || opts.byteRate > TokenBucket.MAX_RATE)
+            fail("--msg-rate and --byte-rate may be at most " + TokenBucket.MAX_RATE + ".");
+        if (opts.rateBurstSeconds > TokenBucket.MAX_BURST_SECONDS)
+            fail("--rate-burst may be at most " + TokenBucket.MAX_BURST_SECONDS + " seconds.");
+        if (opts.heartbeatMillis > 0 && opts.idleTimeoutMillis <= opts.heartbeatMillis)
+            fail("--idle-timeout must be longer than --heartbeat.");
+        if (opts.nodeId < 0)
+            opts.nodeId = (opts.clusterPort > 0 ? opts.clusterPort : opts.port);
+        return opts;
+    }
+
+    // Parses the value of a --flag=<n> style option, which must be a positive integer.
+    static int positiveInt(String arg, String prefix) {
+        return intOption(arg, prefix, 1);
+    }
+
+    // Parses the value of a --flag=<n> style option, which must be an integer no less than min.
+    static int intOption(String arg, String prefix, int min) {
+        int value = min - 1;
+        try {
+            value = Integer.parseInt(arg.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            value = min - 1;
+        }
+        if (value < min)
+            fail("Invalid value for option: " + arg);
+        return value;
+    }
+
+    // As above, for options whose values may not fit in an int.
+    static long longOption(String arg, String prefix, long min) {
+        long value = min - 1;
+        try {
+            value = Long.parseLong(arg.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            value = min - 1;
+        }
+        if (value < min)
+            fail("Invalid value for option: " + arg);
+        return value;
+    }
+
+    static void fail(String message) {
+        System.err.println("\033[1;31m[Error]:\033[0m " + message +
+                "\n\t\033[1;34m[Usage]:\033[0m " + USAGE);
+        System.exit(1);
+    }
+}
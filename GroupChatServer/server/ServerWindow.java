@@ -0,0 +1,151 @@
+/**
+ * @author Burton O Sumner
+ * */
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@summary The server's status window: connected users and the server log.}
+ * The window is one more {@link LogSink.Output}, fed by the log writer thread rather than by the
+ * threads relaying messages. Batches are queued up and applied on the event dispatch thread in a single
+ * update, and a batch arriving while one is already waiting for the EDT simply joins it, so a busy
+ * server costs the EDT one document edit per repaint rather than one per message. The user list is
+ * refreshed from the server whenever an update contains a connection or disconnection. */
+class ServerWindow extends JFrame implements LogSink.Output {
+    private static final long serialVersionUID = 1L;
+    private final GroupChatServer server;
+    // Text panel window to display status of the server (connections, disconnections, and messages)
+    private JTextPane logs;
+    // Navigable list of users.
+    private JList<String> userList;
+
+    // Entries waiting for the EDT, guarded by itself. Non-empty exactly while an update is scheduled.
+    private final List<LogSink.Entry> pending = new ArrayList<LogSink.Entry>();
+
+    ServerWindow(GroupChatServer server, int portNo) {
+        super(String.format("Group Chat Server Hosted On Port %d", portNo));
+        this.server = server;
+        setSize(1280, 720);
+        setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        Container root = getContentPane();
+        root.setLayout(new BoxLayout(root, BoxLayout.PAGE_AXIS));
+        userList = new JList<String>();
+        // Annotate users whose outbound queue is backing up with its current depth, refreshed
+        // once a second, so it's easy to see who is lagging.
+        userList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                    boolean isSelected, boolean cellHasFocus) {
+                int depth = server.queueDepth((String) value);
+                if (depth > 0)
+                    value = String.format("%s (%d queued)", value, depth);
+                return super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            }
+        });
+        new javax.swing.Timer(1000, e -> userList.repaint()).start();
+        logs = new JTextPane();
+        logs.setEditable(false);
+        JScrollPane uListWrapper = new JScrollPane(userList),
+                    logsWrapper = new JScrollPane(logs);
+        logsWrapper.setHorizontalScrollBarPolicy(
+            JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+
+        logsWrapper.setVerticalScrollBarPolicy(
+            JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+
+        uListWrapper.setHorizontalScrollBarPolicy(
+            JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+
+        uListWrapper.setVerticalScrollBarPolicy(
+            JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+
+        JSplitPane splitView = new JSplitPane(JSplitPane.VERTICAL_SPLIT, uListWrapper, logsWrapper);
+        root.add(splitView);
+    }
+
+    // Called on the log writer thread. Queues the batch for the EDT, scheduling an update unless one
+    // is already waiting, in which case the batch is applied along with it.
+    @Override
+    public void write(List<LogSink.Entry> batch) {
+        synchronized (pending) {
+            boolean scheduled = !pending.isEmpty();
+            pending.addAll(batch);
+            if (scheduled)
+                return;
+        }
+        SwingUtilities.invokeLater(this::applyPending);
+    }
+
+    private void applyPending() {
+        LogSink.Entry[] entries;
+        synchronized (pending) {
+            entries = pending.toArray(new LogSink.Entry[pending.size()]);
+            pending.clear();
+        }
+        StyledDocument doc = logs.getStyledDocument();
+        boolean rosterChanged = false;
+        try {
+            for (LogSink.Entry entry : entries) {
+                switch (entry.kind) {
+                    case CONNECT:
+                        rosterChanged = true;
+                        logAppend(doc, entry.subject, Color.BLUE, true);
+                        logAppend(doc, " has connected from ", null, false);
+                        logAppend(doc, entry.text + "\n", Color.CYAN, true);
+                        break;
+                    case DISCONNECT:
+                        rosterChanged = true;
+                        logAppend(doc, entry.subject, Color.BLUE, true);
+                        logAppend(doc, " has disconnected.\n", null, false);
+                        break;
+                    case CHAT:
+                        logAppend(doc, entry.subject + ": ", Color.BLUE, true);
+                        logAppend(doc, entry.text + "\n", null, false);
+                        break;
+                    case INFO:
+                    case STATS:
+                        logAppend(doc, entry.text + "\n", Color.GRAY, false);
+                        break;
+                    case WARN:
+                        if (entry.subject != null)
+                            logAppend(doc, entry.subject + " ", Color.BLUE, true);
+                        logAppend(doc, entry.text + "\n", Color.RED, false);
+                        break;
+                    case ERROR:
+                        logAppend(doc, entry.text + "\n", null, true);
+                        break;
+                }
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        logs.setCaretPosition(doc.getLength());
+        if (rosterChanged)
+            userList.setListData(server.usernames());
+    }
+
+    // Essentially a way to add text to the log document in such a way that we can
+    // set the text to be formatted a different color and/or bold/regular.
+    private static void logAppend(StyledDocument doc, String text, Color color, boolean bold)
+            throws BadLocationException {
+        SimpleAttributeSet attr = new SimpleAttributeSet();
+        StyleConstants.setBold(attr, bold);
+        StyleConstants.setForeground(attr, (color==null ? Color.BLACK : color));
+        doc.insertString(doc.getLength(), text, attr);
+    }
+
+    // Closing the window shuts the server down, closing all connections cleanly, before the GUI itself
+    // is cleaned up.
+    @Override
+    public void dispose() {
+        server.dispose();
+        super.dispose();
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * {@summary A protocol line encoded once and shared, read-only, by every client it is sent to.}
+ * Lines come from a {@link Pool} and are reference counted: every outbound queue the line is put on
+ * holds a reference from {@link #retain} until the line has been written or dropped, and releasing the
+ * last reference hands the buffer back to the pool. Recipients never move the buffer's own position;
+ * each writes through its own {@link #view}, so any number of them can be partway through it at once. */
+final class SharedLine {
+    private final Pool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger();
+    // When the message the line encodes was queued for sending, in System.nanoTime(), or zero for a line
+    // that wasn't, such as a handshake reply or a line of history. Set before the line is shared.
+    long queuedAt;
+
+    private SharedLine(Pool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    // A line over bytes that belong to no pool, such as a record read back from the message history,
+    // from position zero to the buffer's limit. Holds a single reference, owned by the caller.
+    static SharedLine wrap(ByteBuffer buffer) {
+        SharedLine line = new SharedLine(null, buffer);
+        line.refCount.set(1);
+        return line;
+    }
+
+    // Adds a reference on behalf of one more recipient.
+    void retain() {
+        refCount.incrementAndGet();
+    }
+
+    // Drops a reference, returning the line to its pool once nobody holds one any more.
+    void release() {
+        int refs = refCount.decrementAndGet();
+        if (refs > 0)
+            return;
+        if (refs < 0)
+            throw new IllegalStateException("SharedLine released more times than it was retained.");
+        if (pool != null)
+            pool.recycle(this);
+    }
+
+    // Encoded length of the line, including its terminating newline, or of the frame.
+    int length() {
+        return buffer.limit();
+    }
+
+    // A read-only view of the encoded bytes with a position of its own, for gathering channel writes.
+    ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    // Decodes length bytes of the line, starting at offset, back into a string.
+    String decode(int offset, int length, Charset charset) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, charset);
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, charset);
+    }
+
+    // Writes the whole line to a blocking stream without copying it, when the line is heap-backed.
+    void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+            return;
+        }
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().get(bytes);
+        out.write(bytes);
+    }
+
+    /**
+     * {@summary Recycles the buffers of released {@link SharedLine}s.}
+     * Lines of up to {@link #BUFFER_CAPACITY} bytes are encoded straight into a pooled buffer; longer
+     * lines get a buffer of their own which is simply left to the garbage collector once released.
+     * <p>
+     * Besides encoding strings, the pool builds relayed chat messages, in either protocol, straight from
+     * the bytes their sender sent, so relaying a message never decodes it, formats it or allocates for
+     * it once the pool is warm. That requires the text protocol's charset to be UTF-8 like the binary
+     * protocol's, so the same bytes are valid in both; see {@link #relaysBytes}. It also deflates frames
+     * for clients that agreed to compression, straight from one pooled buffer into another. */
+    static final class Pool {
+        // "[MSG]\t", the start of every relayed chat line.
+        private static final byte[] MSG_PREFIX = "[MSG]\t".getBytes(StandardCharsets.US_ASCII);
+
+        static final int BUFFER_CAPACITY = 2048;
+        // Upper bound on idle lines kept around, so a burst doesn't pin its peak memory forever.
+        static final int MAX_POOLED = 1024;
+
+        private final boolean direct;
+        private final Charset charset;
+        // Bounded and array-backed, so recycling a line doesn't itself allocate a queue node.
+        private final ArrayBlockingQueue<SharedLine> free = new ArrayBlockingQueue<SharedLine>(MAX_POOLED);
+        private final ThreadLocal<CharsetEncoder> encoders;
+        // Raw deflate, as DEFLATED frames carry it, one per thread that encodes.
+        private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(
+                () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+        // Direct buffers suit channel writes; streams need heap buffers to write from without copying.
+        Pool(boolean direct, Charset charset) {
+            this.direct = direct;
+            this.charset = charset;
+            encoders = ThreadLocal.withInitial(() -> charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        }
+
+        // Encodes text followed by a newline into a line holding a single reference, owned by the caller.
+        SharedLine encode(String text) {
+            SharedLine line = take();
+            ByteBuffer buf = line.buffer;
+            CharsetEncoder encoder = encoders.get().reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text), buf, true);
+            if (!result.isOverflow())
+                result = encoder.flush(buf);
+            if (result.isOverflow() || !buf.hasRemaining()) {
+                // Too long for a pooled buffer; put the pooled one back and size one to fit.
+                recycle(line);
+                byte[] bytes = text.concat("\n").getBytes(charset);
+                line = new SharedLine(null, allocate(bytes.length).put(bytes));
+                line.buffer.flip();
+            } else {
+                buf.put((byte) '\n');
+                buf.flip();
+            }
+            line.refCount.set(1);
+            return line;
+        }
+
+        // Encodes fields, header first, as a binary frame (see FrameCodec) holding a single reference,
+        // owned by the caller.
+        SharedLine encodeFrame(String[] fields) {
+            SharedLine line = take();
+            if (FrameCodec.encode(fields, line.buffer)) {
+                line.buffer.flip();
+            } else {
+                recycle(line);
+                ByteBuffer exact = FrameCodec.encode(fields);
+                line = new SharedLine(null, (direct ? allocate(exact.remaining()).put(exact).flip() : exact));
+            }
+            line.refCount.set(1);
+            return line;
+        }
+
+        // Whether chat can be relayed as raw bytes by the encodeChat methods, i.e. the text protocol's
+        // charset is UTF-8.
+        boolean relaysBytes() {
+            return charset.equals(StandardCharsets.UTF_8);
+        }
+
+        // Offset of the message body in a line built by encodeChatLine for a sender whose encoded
+        // username is userLength bytes long.
+        static int chatLineBodyOffset(int userLength) {
+            return MSG_PREFIX.length + userLength + 1;
+        }
+
+        // Offset of the message body in a frame built by encodeChatFrame.
+        static int chatFrameBodyOffset(int userLength) {
+            return FrameCodec.HEADER_LENGTH + 4 + userLength + 4;
+        }
+
+        // Builds [MSG]\t<user>\t<body>\n from the body's bytes as read from the sender, replacing any tab
+        // or line break in it with a space on the way. Holds a single reference, owned by the caller.
+        SharedLine encodeChatLine(byte[] user, byte[] src, int off, int len) {
+            SharedLine line = takeFor(chatLineBodyOffset(user.length) + len + 1);
+            ByteBuffer buf = line.buffer;
+            int pos = putChatLinePrefix(buf, user);
+            for (int i = 0; i < len; ++i) {
+                buf.put(pos++, sanitized(src[off + i]));
+            }
+            buf.put(pos++, (byte) '\n');
+            return finish(line, pos);
+        }
+
+        // As above, with the body taken from another line, e.g. the frame it was originally sent in.
+        SharedLine encodeChatLine(byte[] user, SharedLine src, int off, int len) {
+            SharedLine line = takeFor(chatLineBodyOffset(user.length) + len + 1);
+            ByteBuffer buf = line.buffer;
+            int pos = putChatLinePrefix(buf, user);
+            for (int i = 0; i < len; ++i) {
+                buf.put(pos++, sanitized(src.buffer.get(off + i)));
+            }
+            buf.put(pos++, (byte) '\n');
+            return finish(line, pos);
+        }
+
+        // As above, for the [MSG] frame src, e.g. one read back from the message history.
+        SharedLine encodeChatLine(SharedLine src) {
+            ByteBuffer frame = src.buffer;
+            int userLength = frame.getInt(FrameCodec.HEADER_LENGTH);
+            int bodyOffset = chatFrameBodyOffset(userLength);
+            int len = frame.getInt(bodyOffset - 4);
+            SharedLine line = takeFor(chatLineBodyOffset(userLength) + len + 1);
+            ByteBuffer buf = line.buffer;
+            buf.put(0, MSG_PREFIX);
+            buf.put(MSG_PREFIX.length, frame, FrameCodec.HEADER_LENGTH + 4, userLength);
+            buf.put(MSG_PREFIX.length + userLength, (byte) '\t');
+            int pos = chatLineBodyOffset(userLength);
+            for (int i = 0; i < len; ++i) {
+                buf.put(pos++, sanitized(frame.get(bodyOffset + i)));
+            }
+            buf.put(pos++, (byte) '\n');
+            return finish(line, pos);
+        }
+
+        // Builds the [MSG] frame for user and the body's bytes as read from the sender, which are
+        // carried verbatim. Holds a single reference, owned by the caller.
+        SharedLine encodeChatFrame(byte[] user, byte[] src, int off, int len) {
+            SharedLine line = takeFor(chatFrameBodyOffset(user.length) + len);
+            int pos = putChatFramePrefix(line.buffer, user, len);
+            line.buffer.put(pos, src, off, len);
+            return finish(line, pos + len);
+        }
+
+        // As above, with the body taken from another line, e.g. the text line it was originally sent in.
+        SharedLine encodeChatFrame(byte[] user, SharedLine src, int off, int len) {
+            SharedLine line = takeFor(chatFrameBodyOffset(user.length) + len);
+            int pos = putChatFramePrefix(line.buffer, user, len);
+            line.buffer.put(pos, src.buffer, off, len);
+            return finish(line, pos + len);
+        }
+
+        // Wraps the frame src, deflated, in a DEFLATED frame (see FrameCodec) holding a single reference,
+        // owned by the caller. Returns null if deflating doesn't make the frame any smaller.
+        SharedLine deflate(SharedLine src) {
+            int length = src.length();
+            SharedLine line = takeFor(length);
+            ByteBuffer out = line.buffer;
+            // Deflated output that won't come in under the original's length is given up on.
+            out.clear().position(FrameCodec.HEADER_LENGTH + 4).limit(length - 1);
+            Deflater deflater = deflaters.get();
+            deflater.setInput(src.buffer.duplicate().clear().limit(length));
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            boolean fits = deflater.finished();
+            // Let go of src's buffer, and be ready for the next frame.
+            deflater.reset();
+            if (!fits) {
+                if (line.pool != null)
+                    recycle(line);
+                return null;
+            }
+            int pos = out.position();
+            out.put(0, FrameCodec.DEFLATED);
+            out.putInt(1, pos - FrameCodec.HEADER_LENGTH);
+            out.putInt(FrameCodec.HEADER_LENGTH, length);
+            return finish(line, pos);
+        }
+
+        private static byte sanitized(byte b) {
+            return (b == '\t' || b == '\n' || b == '\r') ? (byte) ' ' : b;
+        }
+
+        private static int putChatLinePrefix(ByteBuffer buf, byte[] user) {
+            buf.put(0, MSG_PREFIX);
+            buf.put(MSG_PREFIX.length, user);
+            buf.put(MSG_PREFIX.length + user.length, (byte) '\t');
+            return chatLineBodyOffset(user.length);
+        }
+
+        private static int putChatFramePrefix(ByteBuffer buf, byte[] user, int bodyLength) {
+            buf.put(0, FrameCodec.MSG);
+            buf.putInt(1, 4 + user.length + 4 + bodyLength);
+            buf.putInt(FrameCodec.HEADER_LENGTH, user.length);
+            buf.put(FrameCodec.HEADER_LENGTH + 4, user);
+            buf.putInt(FrameCodec.HEADER_LENGTH + 4 + user.length, bodyLength);
+            return chatFrameBodyOffset(user.length);
+        }
+
+        // Readies a line built with absolute puts, pos bytes long, for writing.
+        private static SharedLine finish(SharedLine line, int pos) {
+            line.buffer.position(0).limit(pos);
+            line.refCount.set(1);
+            return line;
+        }
+
+        // Takes a pooled line if length bytes fit in one, and otherwise allocates one of its own.
+        private SharedLine takeFor(int length) {
+            if (length <= BUFFER_CAPACITY)
+                return take();
+            return new SharedLine(null, allocate(length));
+        }
+
+        // Takes a cleared line from the pool, or allocates one if the pool is empty.
+        private SharedLine take() {
+            SharedLine line = free.poll();
+            if (line == null)
+                line = new SharedLine(this, allocate(BUFFER_CAPACITY));
+            line.buffer.clear();
+            line.queuedAt = 0;
+            return line;
+        }
+
+        private ByteBuffer allocate(int capacity) {
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        // Keeps the line for reuse, unless the pool is already full, in which case it is left to the GC.
+        private void recycle(SharedLine line) {
+            free.offer(line);
+        }
+    }
+}
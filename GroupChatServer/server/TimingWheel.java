@@ -0,0 +1,90 @@
+/**
+ * @author Burton O Sumner
+ * */
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@summary Hashed timing wheel that runs every timeout the server keeps per connection, from one thread.}
+ * Time is cut into ticks, and a task is filed in the slot for the tick it is due on, modulo the number of
+ * slots, so scheduling one costs the same however many are pending, and each tick only looks at the tasks
+ * filed in its own slot; with the slots spanning longer than most timeouts, that is only the tasks due
+ * then. Tasks due further out than the slots span are passed over once per turn of the wheel until then.
+ * <p>
+ * Tasks are scheduled from any thread, through a queue the wheel empties into its slots on each tick,
+ * and run on whichever thread calls {@link #tick}, so they must be quick. Tasks run up to a tick late,
+ * never early. */
+final class TimingWheel {
+    // A task, and the tick it is due on.
+    private static final class Entry {
+        final Runnable task;
+        final long dueTick;
+
+        Entry(Runnable task, long dueTick) {
+            this.task = task;
+            this.dueTick = dueTick;
+        }
+    }
+
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    // Tasks filed by the tick they are due on, modulo its length, which is a power of two. Only touched
+    // by the ticking thread.
+    private final ArrayList<ArrayList<Entry>> slots;
+    private final int mask;
+    // Tasks scheduled since the last tick.
+    private final ConcurrentLinkedQueue<Entry> scheduled = new ConcurrentLinkedQueue<Entry>();
+    // The last tick whose slot has been run. Only touched by the ticking thread.
+    private long tick = 0;
+
+    // A wheel with at least slotCount slots, a tick of tickMillis each.
+    TimingWheel(long tickMillis, int slotCount) {
+        tickNanos = tickMillis * 1_000_000L;
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        slots = new ArrayList<ArrayList<Entry>>(size);
+        for (int i = 0; i < size; ++i) {
+            slots.add(new ArrayList<Entry>());
+        }
+        mask = size - 1;
+    }
+
+    // Runs task once delayMillis have passed. Safe from any thread.
+    void schedule(Runnable task, long delayMillis) {
+        long due = System.nanoTime() - origin + delayMillis * 1_000_000L;
+        // Rounded up, so a task never runs early.
+        scheduled.add(new Entry(task, (due + tickNanos - 1) / tickNanos));
+    }
+
+    /** {@summary Files newly scheduled tasks, then runs every task due by now.}
+     * Called every tick by a single thread; should a call come late, it catches up on every tick since. */
+    void tick() {
+        long now = (System.nanoTime() - origin) / tickNanos;
+        for (Entry entry; (entry = scheduled.poll()) != null;) {
+            // Anything already due is run on the very next tick.
+            slots.get((int) (Math.max(entry.dueTick, tick + 1) & mask)).add(entry);
+        }
+        while (tick < now) {
+            ++tick;
+            expire(slots.get((int) (tick & mask)));
+        }
+    }
+
+    // Runs the slot's due tasks, keeping the rest in their original order.
+    private void expire(ArrayList<Entry> slot) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); ++i) {
+            Entry entry = slot.get(i);
+            if (entry.dueTick > tick) {
+                slot.set(kept++, entry);
+                continue;
+            }
+            try {
+                entry.task.run();
+            } catch (RuntimeException e) {
+                // One failing task mustn't stop the wheel, and every task after it, from running.
+                e.printStackTrace();
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * @author Burton O Sumner
+ * */
+
+/**
+ * {@summary Token bucket that limits a rate while allowing short bursts above it.}
+ * Kept as the time at which the bucket would be full again, rather than as a count of tokens refilled
+ * on every use, so taking from it is a couple of arithmetic operations and never needs a timer. Taking
+ * more than the bucket holds always succeeds but leaves it in debt, and the caller is told how long to
+ * wait for the debt to be paid off before taking more, which suits a reader that has already read what
+ * it is charging for. Not thread-safe; each bucket belongs to a single reader. */
+final class TokenBucket {
+    // Highest rate, beyond which a second's worth of tokens no longer converts to nanoseconds in a long.
+    static final long MAX_RATE = Long.MAX_VALUE / 1_000_000_000L;
+    // Longest burst, in seconds of tokens at the rate, far short of where nanoseconds would overflow.
+    static final long MAX_BURST_SECONDS = 365L * 24 * 60 * 60;
+
+    // Tokens added per second, and the most the bucket holds, expressed as the time it takes to fill.
+    private final long perSecond, capacityNanos;
+    // When the bucket will be full again, in System.nanoTime(), or any earlier time if it already is.
+    private long fullAt;
+
+    // A bucket for perSecond tokens a second, holding up to burst of them, which it starts out with.
+    TokenBucket(long perSecond, long burst) {
+        if (perSecond <= 0 || perSecond > MAX_RATE || burst < 0 || burst / perSecond > MAX_BURST_SECONDS)
+            throw new IllegalArgumentException("Rate " + perSecond + " with a burst of " + burst + " out of bounds");
+        this.perSecond = perSecond;
+        this.capacityNanos = nanosFor(burst);
+        fullAt = System.nanoTime();
+    }
+
+    /** {@summary Takes amount tokens at now, in System.nanoTime().}
+     * @return How long, in nanoseconds, until the bucket is out of debt again, or zero or less if it
+     *         isn't in debt. */
+    long take(long amount, long now) {
+        // Whatever the bucket held beyond its capacity was never there.
+        if (fullAt - now < 0)
+            fullAt = now;
+        fullAt += nanosFor(amount);
+        return fullAt - now - capacityNanos;
+    }
+
+    // The time it takes to add tokens at the rate, worked out in whole seconds and the rest, so that
+    // neither part overflows for any rate up to MAX_RATE.
+    private long nanosFor(long tokens) {
+        return tokens / perSecond * 1_000_000_000L + tokens % perSecond * 1_000_000_000L / perSecond;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for ChatConnection, against a scripted server on the loopback interface.} */
+class ChatConnectionTest {
+    // Everything the connection hands its listener, as text, in the order it arrived.
+    private static final class Recorder implements ChatConnection.Listener {
+        final List<String> events = new ArrayList<String>();
+        final CountDownLatch message = new CountDownLatch(1);
+        // Everyone connected, as the listener would keep track of them.
+        final Set<String> users = new HashSet<String>();
+
+        @Override
+        public synchronized void onRoster(String[] users) {
+            events.add("roster " + String.join(",", users));
+            this.users.addAll(List.of(users));
+        }
+
+        @Override
+        public synchronized void onUserJoined(String user) {
+            users.add(user);
+        }
+
+        @Override
+        public synchronized void onMessage(String sender, String text) {
+            events.add("message " + sender + ": " + text);
+            message.countDown();
+        }
+
+        @Override
+        public synchronized void onUnknown(String[] fields) {
+            events.add("unknown " + String.join("\t", fields));
+        }
+
+        synchronized List<String> events() {
+            return new ArrayList<String>(events);
+        }
+    }
+
+    private final ServerSocket server = new ServerSocket(0);
+    private ChatConnection connection;
+    private Socket peer;
+    private BufferedReader peerIn;
+    private PrintWriter peerOut;
+
+    ChatConnectionTest() throws IOException {
+        server.setSoTimeout(5000);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (connection != null)
+            connection.close();
+        if (peer != null)
+            peer.close();
+        server.close();
+    }
+
+    // Starts connecting as asked, on a thread of its own, since connect() waits for the reply to the
+    // handshake, which the test's server sends once it has read it.
+    private Thread startConnecting(boolean binary, Set<ChatConnection.Option> options, Recorder recorder) {
+        connection = new ChatConnection("bob", "localhost", server.getLocalPort(), 0, binary, options, recorder);
+        Thread connecting = new Thread(() -> {
+            try {
+                connection.connect();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        connecting.start();
+        return connecting;
+    }
+
+    // Accepts the connection's next socket, returning the handshake it opens with.
+    private String accept() throws IOException {
+        if (peer != null)
+            peer.close();
+        peer = server.accept();
+        peer.setSoTimeout(15_000);
+        peerIn = new BufferedReader(new InputStreamReader(peer.getInputStream()));
+        peerOut = new PrintWriter(peer.getOutputStream(), true);
+        return peerIn.readLine();
+    }
+
+    // Connects, answering the handshake with ack, and returns the handshake.
+    private String connect(boolean binary, Set<ChatConnection.Option> options, Recorder recorder, String ack)
+            throws Exception {
+        Thread connecting = startConnecting(binary, options, recorder);
+        String handshake = accept();
+        peerOut.println(ack);
+        connecting.join(5000);
+        assertTrue(connection.isConnected());
+        return handshake;
+    }
+
+    private String connect(boolean binary, Recorder recorder) throws Exception {
+        return connect(binary, EnumSet.allOf(ChatConnection.Option.class), recorder,
+                "[ACK_CONN]\tbob\t-\tbob\talice");
+    }
+
+    @Test
+    void textConnectionIgnoresTheProtocolOfferQuietly() throws Exception {
+        Recorder recorder = new Recorder();
+        connect(false, recorder);
+        connection.start();
+        peerOut.println("[PROTO]\t" + FrameCodec.VERSION);
+        peerOut.println("[PROTO_ACK]");
+        peerOut.println("[MSG]\talice\thi");
+        assertTrue(recorder.message.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("roster bob,alice", "message alice: hi"), recorder.events());
+        // Still speaking text, without having answered the offer.
+        assertTrue(connection.sendMessage("hello"));
+        assertEquals("hello", peerIn.readLine());
+    }
+
+    @Test
+    void asksForNothingPastTheUsernameWithoutOptions() throws Exception {
+        Recorder recorder = new Recorder();
+        String handshake = connect(true, EnumSet.noneOf(ChatConnection.Option.class), recorder,
+                "[ACK_CONN]\tbob\tbob\talice");
+        assertEquals("[UNAME]\tbob", handshake);
+        assertEquals(List.of("roster bob,alice"), recorder.events());
+    }
+
+    @Test
+    void asksForOnlyTheOptionsGiven() throws Exception {
+        String handshake = connect(true, EnumSet.of(ChatConnection.Option.HEARTBEAT), new Recorder(),
+                "[ACK_CONN]\tbob\tbob");
+        assertEquals("[UNAME]\tbob\t0\t" + FrameCodec.HEARTBEAT, handshake);
+    }
+
+    @Test
+    void neverAsksForCompressionOverText() throws Exception {
+        String handshake = connect(false, EnumSet.of(ChatConnection.Option.DEFLATE), new Recorder(),
+                "[ACK_CONN]\tbob\tbob");
+        assertEquals("[UNAME]\tbob", handshake);
+    }
+
+    @Test
+    void readsTheTokenAndCodecAskedFor() throws Exception {
+        Recorder recorder = new Recorder();
+        connect(true, EnumSet.of(ChatConnection.Option.RESUME, ChatConnection.Option.DEFLATE), recorder,
+                "[ACK_CONN]\tbob\ttoken\t" + FrameCodec.DEFLATE + "\tbob\talice");
+        assertEquals(List.of("roster bob,alice"), recorder.events());
+    }
+
+    @Test
+    void treatsFieldsMissingFromTheAcknowledgementAsNotSupported() throws Exception {
+        Recorder recorder = new Recorder();
+        connect(true, EnumSet.of(ChatConnection.Option.RESUME, ChatConnection.Option.DEFLATE), recorder,
+                "[ACK_CONN]\tbob\tbob");
+        assertEquals(List.of("roster bob"), recorder.events());
+        recorder = new Recorder();
+        connection.close();
+        connect(true, EnumSet.of(ChatConnection.Option.RESUME, ChatConnection.Option.DEFLATE), recorder,
+                "[ACK_CONN]\tbob\t-\tbob\talice");
+        assertEquals(List.of("roster bob,alice"), recorder.events());
+    }
+
+    @Test
+    void fallsBackToTheBareHandshakeWhenTheServerClosesOnOptions() throws Exception {
+        Recorder recorder = new Recorder();
+        Thread connecting = startConnecting(true, EnumSet.allOf(ChatConnection.Option.class), recorder);
+        assertTrue(accept().startsWith("[UNAME]\tbob\t0\t"));
+        peer.close();
+        assertEquals("[UNAME]\tbob", accept());
+        peerOut.println("[ACK_CONN]\tbob\tbob\talice");
+        connecting.join(5000);
+        assertTrue(connection.isConnected());
+        assertEquals(List.of("roster bob,alice"), recorder.events());
+    }
+
+    @Test
+    void fallsBackToTheBareHandshakeWhenTheServerIgnoresOptions() throws Exception {
+        // As the original server does, leaving the connection open without a reply.
+        Recorder recorder = new Recorder();
+        Thread connecting = startConnecting(false, EnumSet.allOf(ChatConnection.Option.class), recorder);
+        server.setSoTimeout(ChatConnection.HANDSHAKE_MILLIS + 5000);
+        Socket ignored = server.accept();
+        try {
+            assertEquals("[UNAME]\tbob", accept());
+            peerOut.println("[ACK_CONN]\tbob\tbob\talice");
+            connecting.join(5000);
+            assertTrue(connection.isConnected());
+            assertEquals(List.of("roster bob,alice"), recorder.events());
+        } finally {
+            ignored.close();
+        }
+    }
+
+    @Test
+    void escapesTextChatThatLooksLikeARequest() throws Exception {
+        connect(false, new Recorder());
+        assertTrue(connection.sendMessage("[DM]\talice\thi"));
+        assertEquals("[CHAT]\t[DM] alice hi", peerIn.readLine());
+        assertTrue(connection.sendRequest("[DM]", "alice", "hi"));
+        assertEquals("[DM]\talice\thi", peerIn.readLine());
+    }
+
+    @Test
+    void takesARosterTooLongForOneLineFromTheLinesAfterTheAcknowledgement() throws Exception {
+        // 5000 names of 38 characters, as a server splits them: some in the acknowledgement, and the
+        // rest in a [PRESENCE] batch and [NC]s, far more than the 64 KiB a line may hold all told.
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 5000; ++i) {
+            names.add(String.format("user-%05d-padding-padding-padding-pad", i));
+        }
+        Recorder recorder = new Recorder();
+        connect(false, EnumSet.of(ChatConnection.Option.PRESENCE), recorder,
+                "[ACK_CONN]\tbob\t" + String.join("\t", names.subList(0, 400)));
+        connection.start();
+        peerOut.println("[PRESENCE]\t400\t" + String.join("\t", names.subList(400, 800)));
+        for (String name : names.subList(800, 5000)) {
+            peerOut.println("[NC]\t" + name);
+        }
+        peerOut.println("[MSG]\talice\tdone");
+        assertTrue(recorder.message.await(5, TimeUnit.SECONDS));
+        synchronized (recorder) {
+            assertEquals(new HashSet<String>(names), recorder.users);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for FrameReader, in particular the limits on what it reads.} */
+class FrameReaderTest {
+    private static FrameReader reader(byte[] bytes) {
+        return new FrameReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+    }
+
+    private static FrameReader reader(String text) {
+        return reader(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A stream handing out at most chunk bytes per read, as a socket might.
+    private static FrameReader trickle(byte[] bytes, int chunk) {
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+        return new FrameReader(in, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void readsLinesWithoutTheirTerminators() throws IOException {
+        FrameReader in = reader("one\r\ntwo\n\nlast");
+        assertEquals("one", in.readLine());
+        assertEquals("two", in.readLine());
+        assertEquals("", in.readLine());
+        // Unterminated, so never a line.
+        assertNull(in.readLine());
+    }
+
+    @Test
+    void splitsFieldsKeepingEmptyOnes() throws IOException {
+        assertArrayEquals(new String[] { "[MSG]", "", "hi", "" }, reader("[MSG]\t\thi\t\n").readFields((byte) '\t'));
+    }
+
+    @Test
+    void acceptsALineOfTheLongestLength() throws IOException {
+        String longest = "x".repeat(FrameReader.MAX_LINE_LENGTH);
+        assertEquals(longest, reader(longest + "\n").readLine());
+        assertEquals(longest, reader(longest + "\r\n").readLine());
+        assertEquals(longest, trickle((longest + "\r\n").getBytes(StandardCharsets.UTF_8), 1000).readLine());
+    }
+
+    @Test
+    void rejectsALineOneByteTooLongHoweverItArrives() {
+        byte[] line = ("x".repeat(FrameReader.MAX_LINE_LENGTH + 1) + "\n").getBytes(StandardCharsets.UTF_8);
+        assertThrows(ProtocolException.class, () -> reader(line).readLine());
+        assertThrows(ProtocolException.class, () -> trickle(line, 1000).readLine());
+        assertThrows(ProtocolException.class, () -> trickle(line, 7).readLine());
+    }
+
+    @Test
+    void rejectsAnEndlessLineWithoutWaitingForItsEnd() {
+        // Never terminated, but given up on once past the limit rather than read to the end.
+        byte[] endless = new byte[FrameReader.MAX_LINE_LENGTH * 8];
+        assertThrows(ProtocolException.class, () -> trickle(endless, 4096).readLine());
+    }
+
+    @Test
+    void readsFramesFollowingTextInTheSameRead() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes((FrameCodec.PROTO_ACK + "\n").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer frame = FrameCodec.encode("[MSG]", "alice", "hi");
+        bytes.write(frame.array(), 0, frame.limit());
+        FrameReader in = reader(bytes.toByteArray());
+        assertEquals(FrameCodec.PROTO_ACK, in.readLine());
+        assertArrayEquals(new String[] { "[MSG]", "alice", "hi" }, in.readFrame());
+        assertNull(in.readFrame());
+    }
+
+    @Test
+    void acceptsAFrameOfTheLargestPayload() throws IOException {
+        // One field, its length and then its bytes, filling the payload.
+        String body = "y".repeat(FrameCodec.MAX_PAYLOAD - 4);
+        ByteBuffer frame = FrameCodec.encode(FrameCodec.HEADERS[FrameCodec.CHAT], body);
+        FrameReader in = trickle(Arrays.copyOf(frame.array(), frame.limit()), 5000);
+        assertTrue(in.nextFrame());
+        assertEquals(FrameCodec.CHAT, in.frameType());
+        assertEquals(FrameCodec.MAX_PAYLOAD, in.sliceLength());
+        assertThrows(IllegalArgumentException.class,
+                () -> FrameCodec.encode(FrameCodec.HEADERS[FrameCodec.CHAT], body + "y"));
+    }
+
+    @Test
+    void rejectsAFrameClaimingTooLargeAPayload() {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + 16);
+        header.put(FrameCodec.CHAT).putInt(FrameCodec.MAX_PAYLOAD + 1);
+        // Rejected from its header alone, before any of the payload.
+        assertThrows(ProtocolException.class, () -> reader(header.array()).nextFrame());
+    }
+
+    @Test
+    void rejectsAFrameOfUnknownType() {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        header.put((byte) 127).putInt(0);
+        assertThrows(ProtocolException.class, () -> reader(header.array()).nextFrame());
+    }
+}
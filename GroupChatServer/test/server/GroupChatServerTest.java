@@ -0,0 +1,100 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for how GroupChatServer splits a long [ACK_CONN] across lines.} */
+class GroupChatServerTest {
+    // The longest line a client reads, as FrameReader limits it.
+    private static final int MAX_LINE_BYTES = 1 << 16;
+
+    // An acknowledgement after prefix listing users of about 38 characters each, like user-00042-padding....
+    private static String acknowledgement(String prefix, int users, List<String> names) {
+        StringBuilder ack = new StringBuilder(prefix);
+        for (int i = 0; i < users; ++i) {
+            String name = String.format("user-%05d-padding-padding-padding-pad", i);
+            names.add(name);
+            ack.append('\t').append(name);
+        }
+        return ack.toString();
+    }
+
+    // Everyone the lines list, as a client reading them would end up with.
+    private static Set<String> roster(List<String> lines, int rosterField) {
+        Set<String> users = new HashSet<String>();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            switch (fields[0]) {
+                case "[ACK_CONN]":
+                    users.addAll(List.of(fields).subList(rosterField, fields.length));
+                    break;
+                case "[NC]":
+                    assertEquals(2, fields.length);
+                    users.add(fields[1]);
+                    break;
+                case "[PRESENCE]":
+                    assertEquals(Integer.parseInt(fields[1]), fields.length - 2, "every name is a join");
+                    users.addAll(List.of(fields).subList(2, fields.length));
+                    break;
+                default:
+                    fail("unexpected line " + line);
+            }
+        }
+        return users;
+    }
+
+    @Test
+    void leavesAShortAcknowledgementAlone() {
+        String ack = "[ACK_CONN]\tbob\t-\talice\tbob";
+        assertEquals(List.of(ack), GroupChatServer.splitAcknowledgement(ack, "[ACK_CONN]\tbob\t-".length(), true));
+    }
+
+    @Test
+    void splitsALargeRosterIntoLinesClientsCanRead() {
+        String prefix = "[ACK_CONN]\tnewcomer\ttoken\tnone";
+        for (boolean batchesPresence : new boolean[] { false, true }) {
+            List<String> names = new ArrayList<String>();
+            String ack = acknowledgement(prefix, 5000, names);
+            assertTrue(ack.getBytes(StandardCharsets.UTF_8).length > MAX_LINE_BYTES);
+            List<String> lines = GroupChatServer.splitAcknowledgement(ack, prefix.length(), batchesPresence);
+            assertTrue(lines.get(0).startsWith(prefix + "\t"), "keeps the fields before the roster");
+            for (String line : lines) {
+                assertTrue(line.getBytes(StandardCharsets.UTF_8).length < MAX_LINE_BYTES);
+            }
+            assertEquals(new HashSet<String>(names), roster(lines, 4));
+            if (batchesPresence)
+                assertTrue(lines.size() < 20, "batched into a few lines, not one per user");
+        }
+    }
+
+    @Test
+    void keepsEveryLineWithinReachWhateverTheNamesAreMadeOf() {
+        // Three bytes a character in UTF-8.
+        String prefix = "[ACK_CONN]\tnewcomer";
+        StringBuilder ack = new StringBuilder(prefix);
+        for (int i = 0; i < 3000; ++i) {
+            ack.append('\t').append("€".repeat(30)).append(i);
+        }
+        for (String line : GroupChatServer.splitAcknowledgement(ack.toString(), prefix.length(), true)) {
+            assertTrue(line.getBytes(StandardCharsets.UTF_8).length < MAX_LINE_BYTES);
+        }
+    }
+
+    @Test
+    void alwaysListsSomeoneInTheAcknowledgementItself() {
+        // A name longer than the limit on its own still goes out, as it always would have.
+        String prefix = "[ACK_CONN]\tbob";
+        String huge = "x".repeat(GroupChatServer.MAX_ACK_CHARS + 10);
+        List<String> lines = GroupChatServer.splitAcknowledgement(prefix + "\t" + huge + "\tbob", prefix.length(), false);
+        assertEquals(List.of(prefix + "\t" + huge, "[NC]\tbob"), lines);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for Histogram.} */
+class HistogramTest {
+    @Test
+    void countsSmallValuesExactly() {
+        for (long v = 0; v < Histogram.SUB_BUCKETS; ++v) {
+            assertEquals(v, Histogram.lowest(Histogram.index(v)));
+        }
+    }
+
+    @Test
+    void bucketsEveryValueToWithinItsPrecision() {
+        int last = -1;
+        for (long v = 0; v < 1 << 20; v += 1 + v / 64) {
+            int i = Histogram.index(v);
+            long lowest = Histogram.lowest(i);
+            assertTrue(i >= last, "buckets out of order at " + v);
+            assertTrue(lowest <= v && v - lowest <= lowest / Histogram.SUB_BUCKETS, v + " in bucket from " + lowest);
+            last = i;
+        }
+    }
+
+    @Test
+    void bucketsStartWhereTheirLowestValueIs() {
+        int buckets = Histogram.index(Long.MAX_VALUE) + 1;
+        for (int i = 0; i < buckets; ++i) {
+            long lowest = Histogram.lowest(i);
+            assertEquals(i, Histogram.index(lowest));
+            if (i > 0)
+                assertEquals(i - 1, Histogram.index(lowest - 1));
+        }
+    }
+
+    @Test
+    void recordsTheExtremes() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.count());
+        assertEquals(Long.MAX_VALUE, h.max());
+        // Negative values count as zero.
+        assertEquals(0, h.percentile(50));
+    }
+
+    @Test
+    void reportsNothingWhenEmpty() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(99));
+    }
+
+    @Test
+    void findsPercentilesToWithinABucket() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 10_000; ++v) {
+            h.record(v);
+        }
+        assertEquals(10_000, h.count());
+        assertEquals(10_000, h.max());
+        for (double p : new double[] { 50, 90, 99, 99.9 }) {
+            long expected = (long) Math.ceil(p * 100);
+            long actual = h.percentile(p);
+            assertTrue(actual <= expected && expected - actual <= actual / Histogram.SUB_BUCKETS,
+                    "p" + p + " was " + actual);
+        }
+        assertEquals(Histogram.lowest(Histogram.index(10_000)), h.percentile(100));
+    }
+
+    @Test
+    void startsAtTheSmallestValueRecorded() {
+        Histogram h = new Histogram();
+        h.record(7);
+        h.record(1000);
+        assertEquals(7, h.percentile(0));
+        assertEquals(7, h.percentile(50));
+        // The lowest value of the largest one's bucket.
+        assertEquals(Histogram.lowest(Histogram.index(1000)), h.percentile(100));
+    }
+
+    @Test
+    void losesNothingRecordedConcurrently() throws InterruptedException {
+        Histogram h = new Histogram();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; ++t) {
+            long offset = t;
+            threads.add(new Thread(() -> {
+                for (long v = 0; v < 100_000; ++v) {
+                    h.record(v * 8 + offset);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800_000, h.count());
+        assertEquals(799_999, h.max());
+    }
+
+    @Test
+    void countsEveryRecordingIntoOneHotBucket() throws InterruptedException {
+        Histogram h = new Histogram();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; ++t) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; ++i) {
+                    h.record(1000);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800_000, h.count());
+        assertEquals(Histogram.lowest(Histogram.index(1000)), h.percentile(0));
+        assertEquals(Histogram.lowest(Histogram.index(1000)), h.percentile(100));
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@summary Tests for MessageLog, on segments of the smallest size it allows.} */
+class MessageLogTest {
+    // Messages big enough that two fill a segment, whose size is rounded up to fit the largest frame.
+    private static final int BIG = FrameCodec.MAX_PAYLOAD / 2 - 64;
+
+    @TempDir
+    Path dir;
+    private final LogSink log = new LogSink(1024);
+    private final List<MessageLog> opened = new ArrayList<MessageLog>();
+
+    @AfterEach
+    void closeAll() {
+        opened.forEach(MessageLog::close);
+        log.close();
+    }
+
+    private MessageLog open(long maxBytes, long maxAgeMillis) throws IOException {
+        MessageLog history = new MessageLog(dir, 0, maxBytes, maxAgeMillis, log);
+        opened.add(history);
+        history.start();
+        return history;
+    }
+
+    private MessageLog open() throws IOException {
+        return open(Long.MAX_VALUE, 0);
+    }
+
+    private static SharedLine frame(String text) {
+        return SharedLine.wrap(FrameCodec.encode("[MSG]", "alice", text));
+    }
+
+    // Appends each message, waiting for them all to be written, and returns the last sequence number.
+    private static long append(MessageLog history, String... texts) {
+        long last = -1;
+        for (String text : texts) {
+            SharedLine frame = frame(text);
+            last = history.append(frame);
+            frame.release();
+        }
+        assertTrue(history.awaitWritten(last, 5000), "not written");
+        return last;
+    }
+
+    // The texts of up to count of the most recent messages, up to last, oldest first.
+    private static List<String> replay(MessageLog history, long last, int count) {
+        List<String> texts = new ArrayList<String>();
+        history.replay(last, count, record -> {
+            try {
+                texts.add(FrameCodec.decode(record)[2]);
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+        return texts;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + MessageLog.SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    private static String big(char c) {
+        return String.valueOf(c).repeat(BIG);
+    }
+
+    @Test
+    void numbersMessagesFromOneAndReplaysTheLatest() throws IOException {
+        MessageLog history = open();
+        assertEquals(0, history.lastSequence());
+        long last = append(history, "a", "b", "c", "d");
+        assertEquals(4, last);
+        assertEquals(List.of("b", "c", "d"), replay(history, last, 3));
+        assertEquals(List.of("a", "b"), replay(history, 2, 10));
+    }
+
+    @Test
+    void continuesNumberingAcrossARestart() throws IOException {
+        MessageLog history = open();
+        append(history, "a", "b", "c");
+        history.close();
+        history = open();
+        assertEquals(3, history.lastSequence());
+        assertEquals(4, append(history, "d"));
+        assertEquals(List.of("a", "b", "c", "d"), replay(history, 4, 10));
+    }
+
+    @Test
+    void ignoresATornTrailingRecordOnReopen() throws IOException {
+        MessageLog history = open();
+        append(history, "a", "b");
+        history.close();
+        // A third record whose header made it to disk, but only some of its frame.
+        ByteBuffer whole = FrameCodec.encode("[MSG]", "alice", "torn");
+        int end = 2 * (MessageLog.RECORD_HEADER + FrameCodec.encode("[MSG]", "alice", "a").remaining());
+        ByteBuffer torn = ByteBuffer.allocate(MessageLog.RECORD_HEADER + 3);
+        torn.putInt(whole.remaining()).putLong(3).put(whole.array(), 0, 3).flip();
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(torn, end);
+        }
+        history = open();
+        assertEquals(2, history.lastSequence());
+        // Written over the torn one.
+        assertEquals(3, append(history, "c"));
+        assertEquals(List.of("a", "b", "c"), replay(history, 3, 10));
+        history.close();
+        assertEquals(List.of("a", "b", "c"), replay(open(), 3, 10));
+    }
+
+    @Test
+    void replaysAcrossSegmentBoundaries() throws IOException {
+        MessageLog history = open();
+        long last = append(history, big('a'), big('b'), big('c'), big('d'), big('e'));
+        assertEquals(3, segments().size());
+        List<String> expected = List.of(big('b'), big('c'), big('d'), big('e'));
+        assertEquals(expected, replay(history, last, 4));
+        // Full segments come back from their saved indexes, the last from a scan.
+        history.close();
+        history = open();
+        assertEquals(5, history.lastSequence());
+        assertEquals(expected, replay(history, last, 4));
+        assertEquals(List.of(big('b'), big('c')), replay(history, 3, 2));
+    }
+
+    @Test
+    void deletesTheOldestSegmentsOnceTooBig() throws IOException {
+        // Room for two segments' worth of messages.
+        MessageLog history = open(4L * BIG, 0);
+        long last = append(history, big('a'), big('b'), big('c'), big('d'), big('e'), big('f'), big('g'));
+        List<Path> left = segments();
+        assertEquals(2, left.size());
+        assertEquals(String.format("%020d%s", 5, MessageLog.SEGMENT_SUFFIX), left.get(0).getFileName().toString());
+        assertEquals(List.of(big('e'), big('f'), big('g')), replay(history, last, 10));
+        // The numbering carries on past what was deleted.
+        history.close();
+        assertEquals(8, append(open(4L * BIG, 0), "h"));
+    }
+
+    @Test
+    void deletesSegmentsOnceTooOld() throws IOException, InterruptedException {
+        MessageLog history = open(Long.MAX_VALUE, 200);
+        append(history, big('a'), big('b'));
+        Thread.sleep(400);
+        // Starting the next segment finds the full one too old, but never the one being written.
+        long last = append(history, big('c'), big('d'), big('e'));
+        assertEquals(2, segments().size());
+        assertEquals(List.of(big('c'), big('d'), big('e')), replay(history, last, 10));
+    }
+
+    @Test
+    void stopsRatherThanRenumberWhenANewSegmentCannotBeCreated() throws IOException {
+        MessageLog history = open();
+        append(history, big('a'), big('b'));
+        // Whatever is there must be left alone, and the full segment as it was.
+        Path squatter = dir.resolve(String.format("%020d%s", 3, MessageLog.SEGMENT_SUFFIX));
+        Files.writeString(squatter, "not ours");
+        SharedLine frame = frame(big('c'));
+        assertEquals(3, history.append(frame));
+        frame.release();
+        assertFalse(history.awaitWritten(3, 5000));
+        frame = frame("d");
+        assertEquals(-1, history.append(frame));
+        frame.release();
+        assertEquals("not ours", Files.readString(squatter));
+        // Not trimmed under its mapping, which is still written to in full should anything else be.
+        int end = 2 * (MessageLog.RECORD_HEADER + FrameCodec.encode("[MSG]", "alice", big('a')).remaining());
+        assertTrue(Files.size(segments().get(0)) > end);
+        assertEquals(List.of(big('a'), big('b')), replay(history, 3, 10));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for OutboundQueue and its overflow policies.} */
+class OutboundQueueTest {
+    private static SharedLine line(String text) {
+        return SharedLine.wrap(ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String text(SharedLine line) {
+        return line.decode(0, line.length() - 1, StandardCharsets.UTF_8);
+    }
+
+    // Offers a line to queue, as a shard does, and drops the shard's own reference to it.
+    private static OutboundQueue.Offer send(OutboundQueue queue, SharedLine line) {
+        OutboundQueue.Offer result = queue.offer(line);
+        line.release();
+        return result;
+    }
+
+    // Whether nobody holds a reference to line any more.
+    private static boolean released(SharedLine line) {
+        try {
+            line.release();
+            return false;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
+
+    @Test
+    void dropOldestKeepsTheNewestLines() {
+        OutboundQueue queue = new OutboundQueue(2, ServerOptions.OverflowPolicy.DROP_OLDEST);
+        SharedLine a = line("a");
+        assertEquals(OutboundQueue.Offer.QUEUED, send(queue, a));
+        assertEquals(OutboundQueue.Offer.QUEUED, send(queue, line("b")));
+        assertEquals(OutboundQueue.Offer.LAGGING, send(queue, line("c")));
+        assertEquals(OutboundQueue.Offer.OVERFLOWING, send(queue, line("d")));
+        assertTrue(released(a));
+        assertEquals(2, queue.droppedCount());
+        assertEquals("c", text(queue.poll()));
+        assertEquals("d", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void dropNewestKeepsTheOldestLines() {
+        OutboundQueue queue = new OutboundQueue(1, ServerOptions.OverflowPolicy.DROP_NEWEST);
+        send(queue, line("a"));
+        SharedLine b = line("b");
+        assertEquals(OutboundQueue.Offer.LAGGING, send(queue, b));
+        assertTrue(released(b));
+        assertEquals(1, queue.droppedCount());
+        assertEquals("a", text(queue.poll()));
+    }
+
+    @Test
+    void reportsLaggingAgainOnlyAfterCatchingUp() {
+        OutboundQueue queue = new OutboundQueue(1, ServerOptions.OverflowPolicy.DROP_NEWEST);
+        send(queue, line("a"));
+        assertEquals(OutboundQueue.Offer.LAGGING, send(queue, line("b")));
+        assertEquals(OutboundQueue.Offer.OVERFLOWING, send(queue, line("c")));
+        queue.poll().release();
+        assertEquals(OutboundQueue.Offer.QUEUED, send(queue, line("d")));
+        assertEquals(OutboundQueue.Offer.LAGGING, send(queue, line("e")));
+    }
+
+    @Test
+    void disconnectEmptiesTheQueue() {
+        OutboundQueue queue = new OutboundQueue(1, ServerOptions.OverflowPolicy.DISCONNECT);
+        SharedLine a = line("a"), b = line("b");
+        send(queue, a);
+        assertEquals(OutboundQueue.Offer.DISCONNECT, send(queue, b));
+        assertTrue(queue.isEmpty());
+        assertTrue(released(a));
+        assertTrue(released(b));
+    }
+
+    @Test
+    void holdsAReferenceOfItsOwnUntilTaken() {
+        OutboundQueue queue = new OutboundQueue(4, ServerOptions.OverflowPolicy.DROP_OLDEST);
+        SharedLine a = line("a");
+        send(queue, a);
+        SharedLine taken = queue.poll();
+        assertSame(a, taken);
+        taken.release();
+        assertTrue(released(a));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for Outbox.} */
+class OutboxTest {
+    private final LongAdder depth = new LongAdder();
+    private final Outbox<String> outbox = new Outbox<String>(String[]::new, String::length, depth);
+
+    @Test
+    void pollsInBatchesInTheOrderAdded() {
+        for (int i = 0; i < Outbox.BATCH_SIZE + 10; ++i) {
+            outbox.add(Integer.toString(i));
+        }
+        String[] first = outbox.poll();
+        assertEquals(Outbox.BATCH_SIZE, first.length);
+        assertEquals("0", first[0]);
+        String[] second = outbox.poll();
+        assertEquals(10, second.length);
+        assertEquals(Integer.toString(Outbox.BATCH_SIZE), second[0]);
+        assertNull(outbox.poll());
+    }
+
+    @Test
+    void countsWhatIsQueued() {
+        outbox.add("abc");
+        outbox.add("de");
+        assertEquals(2, depth.sum());
+        assertEquals(5, outbox.bytes());
+        outbox.poll();
+        assertEquals(0, depth.sum());
+        assertEquals(0, outbox.bytes());
+    }
+
+    @Test
+    void handsEachBatchAnArrayOfItsOwn() {
+        outbox.add("a");
+        String[] first = outbox.poll();
+        outbox.add("b");
+        outbox.poll();
+        assertEquals("a", first[0]);
+    }
+
+    @Test
+    void wakesTheConsumerOnceAMessageIsAdded() throws InterruptedException {
+        String[][] received = new String[1][];
+        Thread consumer = new Thread(() -> {
+            while ((received[0] = outbox.poll()) == null) {
+                outbox.await(() -> false);
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        outbox.add("hello");
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertArrayEquals(new String[] { "hello" }, received[0]);
+    }
+}
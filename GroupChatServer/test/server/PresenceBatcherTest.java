@@ -0,0 +1,129 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for PresenceBatcher, with changes written as +name for a join and -name for a leave.} */
+class PresenceBatcherTest {
+    private final LongAdder cancelled = new LongAdder();
+    private final List<String> discarded = new ArrayList<String>();
+    private final PresenceBatcher<String> batcher = new PresenceBatcher<String>(change -> change.substring(1),
+            change -> change.charAt(0) == '+', discarded::add, cancelled);
+
+    // Flushes the batcher, returning each batch announced as its joins followed by its leaves.
+    private List<List<String>> flush() {
+        List<List<String>> batches = new ArrayList<List<String>>();
+        batcher.flush((joins, leaves) -> {
+            List<String> batch = new ArrayList<String>(joins);
+            batch.addAll(leaves);
+            batches.add(batch);
+        });
+        return batches;
+    }
+
+    @Test
+    void announcesEveryChangeOfAWindowAsOneBatch() {
+        assertTrue(batcher.changed("+alice"));
+        assertFalse(batcher.changed("+bob"));
+        assertFalse(batcher.changed("+carol"));
+        assertEquals(List.of(List.of("+alice", "+bob", "+carol")), flush());
+        // The next change starts the next window.
+        assertTrue(batcher.changed("-bob"));
+        assertEquals(List.of(List.of("-bob")), flush());
+        assertEquals(0, cancelled.sum());
+    }
+
+    @Test
+    void announcesNothingForAnEmptyWindow() {
+        assertEquals(List.of(), flush());
+    }
+
+    @Test
+    void putsJoinsBeforeLeavesInOrderOfFirstChange() {
+        batcher.changed("+alice");
+        batcher.changed("+bob");
+        flush();
+        batcher.changed("-alice");
+        batcher.changed("+carol");
+        batcher.changed("-bob");
+        batcher.changed("+dave");
+        assertEquals(List.of(List.of("+carol", "+dave", "-alice", "-bob")), flush());
+    }
+
+    @Test
+    void dropsAJoinAndLeaveWithinTheWindow() {
+        batcher.changed("+alice");
+        batcher.changed("+bob");
+        batcher.changed("-alice");
+        assertEquals(List.of(List.of("+bob")), flush());
+        // The join was superseded by the leave, which then cancelled out.
+        assertEquals(List.of("+alice", "-alice"), discarded);
+        assertEquals(1, cancelled.sum());
+    }
+
+    @Test
+    void dropsALeaveAndRejoinWithinTheWindow() {
+        batcher.changed("+alice");
+        flush();
+        batcher.changed("-alice");
+        batcher.changed("+alice");
+        batcher.changed("-alice");
+        batcher.changed("+alice");
+        assertEquals(List.of(), flush());
+        assertEquals(1, cancelled.sum());
+        assertEquals(4, discarded.size());
+        assertEquals("\talice", batcher.encode("", "alice"));
+    }
+
+    @Test
+    void keepsOnlyTheNetChangeOfEachName() {
+        batcher.changed("+alice");
+        flush();
+        batcher.changed("-alice");
+        batcher.changed("+alice");
+        batcher.changed("-alice");
+        assertEquals(List.of(List.of("-alice")), flush());
+        assertEquals(List.of("-alice", "+alice"), discarded);
+    }
+
+    @Test
+    void acknowledgesWithTheRosterAsOfTheLastBatch() {
+        batcher.changed("+alice");
+        flush();
+        batcher.changed("+bob");
+        // Bob is only in the roster once his join has been announced, but a new user is always in it.
+        assertEquals("[ACK_CONN]\talice\tcarol", batcher.encode("[ACK_CONN]", "carol"));
+        assertEquals("[ACK_CONN]\talice", batcher.encode("[ACK_CONN]", "alice"));
+        flush();
+        String roster = batcher.encode("[ACK_CONN]", "bob");
+        assertTrue(roster.equals("[ACK_CONN]\talice\tbob") || roster.equals("[ACK_CONN]\tbob\talice"), roster);
+    }
+
+    @Test
+    void splitsABatchTooLongForOneLine() {
+        int users = 2 * PresenceBatcher.MAX_BATCH_CHARS / 10 + 5;
+        for (int i = 0; i < users; ++i) {
+            batcher.changed(String.format("+user%05d", i));
+        }
+        List<List<String>> batches = flush();
+        assertTrue(batches.size() >= 2, "one batch of " + users);
+        int total = 0;
+        for (List<String> batch : batches) {
+            int chars = 0;
+            for (String change : batch) {
+                assertEquals(String.format("+user%05d", total++), change);
+                // The name and the tab before it.
+                chars += change.length();
+            }
+            assertTrue(chars <= PresenceBatcher.MAX_BATCH_CHARS, "batch of " + chars + " characters");
+        }
+        assertEquals(users, total);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for Roster.} */
+class RosterTest {
+    private final Roster<String> roster = new Roster<String>(String[]::new);
+
+    private static Set<String> set(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    @Test
+    void encodesEveryUsernameAfterThePrefix() {
+        assertEquals("[ACK_CONN]\tbob", roster.encode("[ACK_CONN]\tbob", '\t'));
+        roster.add("alice", "a");
+        roster.add("bob", "b");
+        String encoded = roster.encode("[ACK_CONN]\tbob", '\t');
+        assertTrue(encoded.startsWith("[ACK_CONN]\tbob\t"));
+        String[] fields = encoded.split("\t");
+        assertEquals(set("alice", "bob"), set(Arrays.copyOfRange(fields, 2, fields.length)));
+    }
+
+    @Test
+    void encodesWithTheDelimiterGiven() {
+        roster.add("alice", "a");
+        assertEquals("users,alice", roster.encode("users", ','));
+    }
+
+    @Test
+    void givesTakenNamesTheNextFreeSuffix() {
+        assertEquals(0, roster.register("bob", "1"));
+        assertEquals(1, roster.register("bob", "2"));
+        assertEquals(2, roster.register("bob", "3"));
+        assertEquals("2", roster.get("bob1"));
+        assertEquals("3", roster.get("bob2"));
+    }
+
+    @Test
+    void reusesASuffixOnceGivenBack() {
+        roster.register("bob", "1");
+        roster.register("bob", "2");
+        roster.register("bob", "3");
+        assertTrue(roster.remove("bob1", "2", "bob", 1));
+        assertEquals(1, roster.register("bob", "4"));
+        assertEquals("4", roster.get("bob1"));
+    }
+
+    @Test
+    void skipsSuffixesSomeoneAskedForOutright() {
+        roster.register("bob", "1");
+        roster.register("bob1", "2");
+        assertEquals(2, roster.register("bob", "3"));
+    }
+
+    @Test
+    void treatsReservedNamesAsTaken() {
+        assertEquals(1, roster.register("bob", "1", name -> name.equals("bob")));
+    }
+
+    @Test
+    void removesANameOnlyForItsHolder() {
+        roster.add("alice", "a");
+        assertFalse(roster.remove("alice", "someone else"));
+        assertTrue(roster.remove("alice", "a"));
+        assertNull(roster.get("alice"));
+        assertEquals("users", roster.encode("users", '\t'));
+    }
+
+    @Test
+    void sharesASnapshotUntilTheNextChange() {
+        roster.add("alice", "a");
+        String[] names = roster.names();
+        assertSame(names, roster.names());
+        long version = roster.version();
+        roster.add("bob", "b");
+        assertTrue(roster.version() > version);
+        assertNotSame(names, roster.names());
+        assertEquals(set("alice", "bob"), set(roster.names()));
+        assertEquals(set("a", "b"), set(roster.members()));
+    }
+}
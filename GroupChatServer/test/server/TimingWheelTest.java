@@ -0,0 +1,81 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for TimingWheel.} */
+class TimingWheelTest {
+    // Ticks wheel until deadline, in System.nanoTime(), sleeping a millisecond between ticks.
+    private static void tickUntil(TimingWheel wheel, long deadline) throws InterruptedException {
+        while (System.nanoTime() - deadline < 0) {
+            wheel.tick();
+            Thread.sleep(1);
+        }
+        wheel.tick();
+    }
+
+    @Test
+    void runsATaskOnceItIsDueAndNeverEarly() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 64);
+        long start = System.nanoTime();
+        long[] ranAt = { 0 };
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(() -> { ranAt[0] = System.nanoTime(); runs.incrementAndGet(); }, 50);
+        tickUntil(wheel, start + 200_000_000L);
+        assertEquals(1, runs.get());
+        assertTrue(ranAt[0] - start >= 50_000_000L, "ran early");
+    }
+
+    @Test
+    void runsTasksDueBeyondOneTurnOfTheWheel() throws InterruptedException {
+        // Four slots of 5 ms span 20 ms, so the task is passed over several times first.
+        TimingWheel wheel = new TimingWheel(5, 4);
+        long start = System.nanoTime();
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(runs::incrementAndGet, 60);
+        tickUntil(wheel, start + 40_000_000L);
+        assertEquals(0, runs.get());
+        tickUntil(wheel, start + 200_000_000L);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void runsTasksDueTogetherInTheOrderScheduled() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < 5; ++i) {
+            int n = i;
+            wheel.schedule(() -> order.add(n), 0);
+        }
+        tickUntil(wheel, System.nanoTime() + 50_000_000L);
+        assertEquals(java.util.List.of(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    void catchesUpOnTicksMissedByALateCall() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 64);
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(runs::incrementAndGet, 10);
+        wheel.schedule(runs::incrementAndGet, 30);
+        wheel.tick();
+        Thread.sleep(100);
+        wheel.tick();
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    void keepsTickingPastAFailingTask() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(5, 64);
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(() -> { throw new IllegalStateException("expected by the test"); }, 0);
+        wheel.schedule(runs::incrementAndGet, 0);
+        tickUntil(wheel, System.nanoTime() + 50_000_000L);
+        assertEquals(1, runs.get());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * @author Burton O Sumner
+ * */
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@summary Tests for TokenBucket, on a clock of their own rather than the real one.} */
+class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void letsAFullBurstThroughAtOnce() {
+        TokenBucket bucket = new TokenBucket(10, 20);
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(bucket.take(1, now) <= 0, "in debt after " + (i + 1));
+        }
+        // One over the burst is a tenth of a second of debt, at ten a second.
+        assertEquals(SECOND / 10, bucket.take(1, now));
+    }
+
+    @Test
+    void chargesTheWholeAmountOfAnOversizedTake() {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        long now = System.nanoTime();
+        // Already read, so it is let through, and paid off over the next four seconds.
+        assertEquals(4 * SECOND, bucket.take(5000, now));
+        assertEquals(4 * SECOND + SECOND / 1000, bucket.take(1, now));
+    }
+
+    @Test
+    void paysDebtOffAtTheRate() {
+        TokenBucket bucket = new TokenBucket(100, 100);
+        long now = System.nanoTime();
+        assertEquals(SECOND, bucket.take(200, now));
+        // Half a second later, half of it is paid off.
+        now += SECOND / 2;
+        assertEquals(SECOND / 2, bucket.take(0, now));
+        // Once it is all paid off, the bucket refills at the rate, a token per 10 ms.
+        now += SECOND / 2 + SECOND / 10;
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(bucket.take(1, now) <= 0);
+        }
+        assertEquals(SECOND / 100, bucket.take(1, now));
+    }
+
+    @Test
+    void neverHoldsMoreThanItsBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        // Idle for a minute, which refills far more than five tokens, of which it keeps five.
+        now += 60 * SECOND;
+        assertEquals(0, bucket.take(5, now));
+        assertEquals(SECOND / 10, bucket.take(1, now));
+    }
+
+    @Test
+    void keepsToTheRateOverTime() {
+        TokenBucket bucket = new TokenBucket(50, 50);
+        long now = System.nanoTime(), start = now;
+        int taken = 0;
+        // Takes one at a time, waiting out any debt, for ten seconds of the clock.
+        while (now - start < 10 * SECOND) {
+            long debt = bucket.take(1, now);
+            ++taken;
+            if (debt > 0)
+                now += debt;
+        }
+        // The burst, then fifty a second.
+        assertEquals(50 + 50 * 10, taken, 1);
+    }
+
+    @Test
+    void handlesBurstsTooBigToCountInNanoseconds() {
+        // Ten billion bytes at a billion a second, where tokens * 10^9 alone would overflow.
+        TokenBucket bucket = new TokenBucket(1_000_000_000L, 10_000_000_000L);
+        long now = System.nanoTime();
+        assertTrue(bucket.take(1, now) <= 0);
+        assertTrue(bucket.take(9_999_999_999L, now) <= 0);
+        assertEquals(SECOND, bucket.take(1_000_000_000L, now));
+    }
+
+    @Test
+    void handlesTheLargestRateAndBurst() {
+        TokenBucket bucket = new TokenBucket(TokenBucket.MAX_RATE, TokenBucket.MAX_RATE * TokenBucket.MAX_BURST_SECONDS);
+        long now = System.nanoTime();
+        assertTrue(bucket.take(TokenBucket.MAX_RATE, now) <= 0);
+        assertTrue(bucket.take(1, now + SECOND) <= 0);
+    }
+
+    @Test
+    void rejectsRatesItCannotKeep() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(TokenBucket.MAX_RATE + 1, 1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new TokenBucket(1000, 1000 * (TokenBucket.MAX_BURST_SECONDS + 1)));
+    }
+}